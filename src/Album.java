@@ -4,8 +4,12 @@ import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Predicate;
 
 /**
@@ -19,6 +23,14 @@ public class Album implements Serializable {
     private List<Photo> photos;
     private int index = 0;
     private String dateRange = "HI"; 
+    private transient Journal journal; // Journal of the owning user, or null if not tracked
+    private transient TagIndex tagIndex; // Tag index of the owning user, or null if not indexed
+    private transient AlbumShard shard; // Where the photos are stored on disk, or null if never saved
+    private transient boolean modified; // Whether the photos differ from the shard
+    private transient List<Mutation> deferred; // Replayed photo changes waiting for the photos to load
+    private transient int storedCount; // Photo count, earliest and latest date recorded in the catalog
+    private transient long storedEarliest;
+    private transient long storedLatest;
     
     /**
      * Constructs an Album with the specified name.
@@ -38,7 +50,7 @@ public class Album implements Serializable {
      * @return the size of the photos list
      */
     public int getPhotoCount() {
-        return photos.size();
+        return photos == null ? storedCount : photos.size();
     }
 
     /**
@@ -48,12 +60,12 @@ public class Album implements Serializable {
      * @return the date range of the photos in the album
      */
     public String getDateRange(){
-        if (photos.isEmpty()) 
+        if (getPhotoCount() == 0) 
         {
             return "N/A";
-        } else if (photos.size() == 1) 
+        } else if (getPhotoCount() == 1) 
         {
-            Calendar date = photos.get(0).getDateTaken();
+            Calendar date = getEarliestDate();
             String dateStr = (date.get(Calendar.MONTH) + 1) + "/" + date.get(Calendar.DAY_OF_MONTH) + "/" + date.get(Calendar.YEAR);
             return dateStr;
         } else 
@@ -83,12 +95,58 @@ public class Album implements Serializable {
             throw new IllegalArgumentException("Photo cannot be null");
         }
         
-        if (photos.contains(photo))
+        if (photos().contains(photo))
         {
             throw new IllegalArgumentException("Photo already exists in album.");
         }
         updateDateRange();
-        photos.add(photo);
+        photos().add(photo);
+        modified = true;
+
+        if (journal != null) {
+            photo.attach(journal);
+            journal.record(Mutation.addPhoto(name, photo));
+        }
+        if (tagIndex != null) tagIndex.addPhoto(this, photo);
+    }
+
+    /**
+     * Adds photos to the album in one go, skipping photos whose file is already in the album. The album is
+     * searched once for the whole batch rather than once per photo, so large imports stay fast.
+     * 
+     * @param newPhotos the photos to add
+     * @return the photos that were added
+     */
+    public List<Photo> addPhotos(List<Photo> newPhotos) {
+        Set<String> paths = new HashSet<>();
+        for (Photo photo : photos()) 
+        {
+            paths.add(photo.getFilePath());
+        }
+
+        List<Photo> added = new ArrayList<>();
+        for (Photo photo : newPhotos) 
+        {
+            if (photo == null) 
+            {
+                throw new IllegalArgumentException("Photo cannot be null");
+            }
+            if (!paths.add(photo.getFilePath())) continue;
+
+            photos().add(photo);
+            added.add(photo);
+            if (journal != null) {
+                photo.attach(journal);
+                journal.record(Mutation.addPhoto(name, photo));
+            }
+            if (tagIndex != null) tagIndex.addPhoto(this, photo);
+        }
+
+        if (!added.isEmpty()) {
+            modified = true;
+            updateDateRange();
+        }
+        return added;
     }
 
     /**
@@ -97,6 +155,9 @@ public class Album implements Serializable {
      * @param name the new name of the album
      */
     public void setName(String name) {
+        if (journal != null && !name.equals(this.name)) {
+            journal.record(Mutation.renameAlbum(this.name, name));
+        }
         this.name = name;
     }
 
@@ -121,13 +182,19 @@ public class Album implements Serializable {
             throw new IllegalArgumentException("Photo cannot be null");
         }
         
-        if (!photos.contains(photo)) 
+        if (!photos().contains(photo)) 
         {
             throw new IllegalArgumentException("Photo not found in the album");
         }
         
         updateDateRange();
-        photos.remove(photo);
+        photos().remove(photo);
+        modified = true;
+
+        if (journal != null) {
+            journal.record(Mutation.removePhoto(name, photo));
+        }
+        if (tagIndex != null) tagIndex.removePhoto(this, photo);
     }
 
     /**
@@ -136,7 +203,7 @@ public class Album implements Serializable {
      * @return the thumbnail photo or null
      */
     public Photo getThumbnail() {
-        return photos.isEmpty() ? null : photos.get(0); 
+        return photos().isEmpty() ? null : photos().get(0); 
     }
 
     /**
@@ -145,7 +212,7 @@ public class Album implements Serializable {
      * @return a list of all photos in the album
      */
     public List<Photo> getPhotos() {
-        return new ArrayList<Photo>(photos);
+        return new ArrayList<Photo>(photos());
     }
 
     /**
@@ -170,7 +237,139 @@ public class Album implements Serializable {
             throw new IllegalArgumentException("Album name cannot be null or empty");
         }
         
-        this.name = newName;
+        setName(newName);
+    }
+
+    /**
+     * Finds the photo in this album with the given file path.
+     * 
+     * @param filePath the file path of the photo
+     * @return the photo, or null if the album does not contain it
+     */
+    Photo findPhoto(String filePath) {
+        for (Photo photo : photos()) {
+            if (photo.getFilePath().equals(filePath)) {
+                return photo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restores the photos of an album read from a catalog file, without recording a change.
+     * 
+     * @param photos the photos, which must not contain duplicates
+     */
+    void restore(List<Photo> photos) {
+        this.photos = photos;
+    }
+
+    /**
+     * Restores an album whose photos stay in a mapped shard until they are first needed.
+     * The photo count and date range are answered from the manifest without loading the photos.
+     * 
+     * @param shard where the photos are stored
+     * @param count the number of photos
+     * @param earliest the earliest capture date in epoch milliseconds
+     * @param latest the latest capture date in epoch milliseconds
+     */
+    void restore(AlbumShard shard, int count, long earliest, long latest) {
+        this.photos = null;
+        this.shard = shard;
+        this.storedCount = count;
+        this.storedEarliest = earliest;
+        this.storedLatest = latest;
+    }
+
+    /**
+     * Returns the photo list, loading it from the shard on first use.
+     * Photo changes replayed while the album was not loaded are applied to the photos it creates.
+     * 
+     * @return the album's photo list
+     */
+    private List<Photo> photos() {
+        if (photos == null) {
+            Set<Photo> created = Collections.newSetFromMap(new IdentityHashMap<>());
+            photos = shard.load(created);
+
+            if (deferred != null) {
+                for (Mutation mutation : deferred) {
+                    for (Photo photo : photos) {
+                        if (!mutation.concerns(photo)) continue;
+                        // Photos reused from another loaded album already have the change
+                        if (created.contains(photo)) mutation.applyTo(photo);
+                        modified = true;
+                    }
+                }
+                deferred = null;
+            }
+            if (journal != null) {
+                for (Photo photo : photos) photo.attach(journal);
+            }
+            if (tagIndex != null) {
+                for (Photo photo : photos) tagIndex.bind(photo);
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Checks whether the album's photos have been created.
+     * 
+     * @return false if the photos are still only in the shard
+     */
+    boolean isLoaded() {
+        return photos != null;
+    }
+
+    /**
+     * Queues a replayed photo change until the album's photos are loaded.
+     * 
+     * @param mutation a caption, tag or perceptual hash change
+     */
+    void defer(Mutation mutation) {
+        if (deferred == null) deferred = new ArrayList<>();
+        deferred.add(mutation);
+    }
+
+    /**
+     * Marks the album's photos as different from its shard.
+     */
+    void markModified() {
+        modified = true;
+    }
+
+    /**
+     * Returns the shard that can be kept for this album when its user is saved.
+     * 
+     * @return the shard file name, or null if the album must be written to a new shard
+     */
+    String getCurrentShard() {
+        if (photos == null && deferred != null) photos(); // Find out whether the replayed changes apply here
+        return modified || shard == null ? null : shard.getName();
+    }
+
+    /**
+     * Attaches the journal that records changes to this album and its photos.
+     * 
+     * @param journal the journal of the owning user, or null to stop recording
+     */
+    void attach(Journal journal) {
+        this.journal = journal;
+        if (photos == null) return; // Attached when loaded
+
+        for (Photo photo : photos) {
+            photo.attach(journal);
+        }
+    }
+
+    /**
+     * Attaches the tag index that follows this album's photos. Photos loaded later are bound to it as they load.
+     * 
+     * @param tagIndex the tag index of the owning user, or null to stop indexing
+     */
+    void attachIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
     }
 
     /**
@@ -189,7 +388,7 @@ public class Album implements Serializable {
 
         Album filteredAlbum = new Album(this.name);
         
-        for (Photo photo : photos) 
+        for (Photo photo : photos()) 
             if (predicate.test(photo)) filteredAlbum.addPhoto(photo); // Add to the new filtered album if it matches the predicate
             
         return filteredAlbum; // Return the new album containing only the photos that match the predicate
@@ -213,7 +412,7 @@ public class Album implements Serializable {
             throw new IllegalArgumentException("Photo cannot be null");
         }
         
-        if (!photos.contains(photo)) 
+        if (!photos().contains(photo)) 
         {
             throw new IllegalArgumentException("Photo not found in the album");
         }
@@ -240,7 +439,7 @@ public class Album implements Serializable {
             throw new IllegalArgumentException("Target album cannot be null");
         }
         
-        if (!this.photos.contains(photo)) 
+        if (!photos().contains(photo)) 
         {
             throw new IllegalArgumentException("Photo not found in the current album");
         }
@@ -257,12 +456,12 @@ public class Album implements Serializable {
      */
     public Photo getPhoto() {
         
-        if (index < 0 || index >= photos.size()) 
+        if (index < 0 || index >= photos().size()) 
         {
             throw new IndexOutOfBoundsException("Index out of bounds for the photos list");
         }
         
-        return photos.get(index); // Return the photo at the specified index
+        return photos().get(index); // Return the photo at the specified index
     }
 
     /**
@@ -270,14 +469,14 @@ public class Album implements Serializable {
      */
     public void nextPhoto() {
         
-        if (photos.isEmpty())
+        if (photos().isEmpty())
         {
             throw new IllegalStateException("No photos in the album to navigate");
         }
         
         index++; // Move to the next photo
         
-        if (index >= photos.size()) 
+        if (index >= photos().size()) 
         { // Wrap around if it exceeds the size of the list
             index = 0;
         }
@@ -287,7 +486,7 @@ public class Album implements Serializable {
      * Moves to the previous photo in the album. If the beginning of the album is reached, it wraps around to the last photo.
      */
     public void previousPhoto() {
-        if (photos.isEmpty()) 
+        if (photos().isEmpty()) 
         {
             throw new IllegalStateException("No photos in the album to navigate");
         }
@@ -296,25 +495,36 @@ public class Album implements Serializable {
         
         if (index < 0) 
         { // Wrap around to the last photo if it goes below 0
-            index = photos.size() - 1;
+            index = photos().size() - 1;
         }
     }
 
     /**
      * Returns the earliest date of all photos in the album.
-     * If the album is empty, returns null.
+     * If the album is empty, returns null. Albums of a user with a tag index read it from the index's date order.
      * 
      * @return the earliest date of a photo in the album
      */
     public Calendar getEarliestDate() {
         
-        if (photos.isEmpty()) 
+        if (getPhotoCount() == 0) 
         {
             return null;
         }
+
+        if (photos == null) 
+        {
+            return toCalendar(storedEarliest);
+        }
+
+        Calendar indexed = tagIndex == null ? null : tagIndex.getEarliest(this);
+        if (indexed != null) 
+        {
+            return indexed;
+        }
         
-        Calendar earliest = photos.get(0).getDateTaken();
-        for (Photo photo : photos) 
+        Calendar earliest = photos().get(0).getDateTaken();
+        for (Photo photo : photos()) 
         {
             Calendar date = photo.getDateTaken();
             
@@ -329,19 +539,30 @@ public class Album implements Serializable {
 
     /**
      * Returns the latest date of all photos in the album.
-     * If the album is empty, returns null.
+     * If the album is empty, returns null. Albums of a user with a tag index read it from the index's date order.
      * 
      * @return the latest date of a photo in the album
      */
     public Calendar getLatestDate() {
         
-        if (photos.isEmpty()) 
+        if (getPhotoCount() == 0) 
         {
             return null;
         }
+
+        if (photos == null) 
+        {
+            return toCalendar(storedLatest);
+        }
+
+        Calendar indexed = tagIndex == null ? null : tagIndex.getLatest(this);
+        if (indexed != null) 
+        {
+            return indexed;
+        }
         
-        Calendar latest = photos.get(0).getDateTaken();
-        for (Photo photo : photos) 
+        Calendar latest = photos().get(0).getDateTaken();
+        for (Photo photo : photos()) 
         {
             Calendar date = photo.getDateTaken();
             
@@ -353,4 +574,16 @@ public class Album implements Serializable {
 
         return latest;
     }
+
+    /**
+     * Converts epoch milliseconds to a calendar in the default time zone.
+     * 
+     * @param millis the time in epoch milliseconds
+     * @return the calendar
+     */
+    private static Calendar toCalendar(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
 }
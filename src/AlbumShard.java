@@ -0,0 +1,62 @@
+package src;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the photos of a lazily loaded album are stored: an album in a mapped catalog file.
+ * <p>
+ * For sharded users the catalog is the album's own shard file and {@link #getName()} names it, so an album whose
+ * photos have not changed keeps its shard when the user is saved.
+ * </p>
+ */
+public class AlbumShard {
+
+    private final String name;
+    private final MappedCatalog catalog;
+    private final int index;
+    private final User owner;
+
+    /**
+     * Constructs a shard reference.
+     *
+     * @param name the shard file name, or null if the album lives in a single-file catalog
+     * @param catalog the mapped catalog holding the album
+     * @param index the position of the album in the catalog
+     * @param owner the user the album belongs to
+     */
+    AlbumShard(String name, MappedCatalog catalog, int index, User owner) {
+        this.name = name;
+        this.catalog = catalog;
+        this.index = index;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the shard file name.
+     *
+     * @return the file name, or null if the album does not have its own shard
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Creates the album's photos, reusing photo objects the owner already has loaded for the same files.
+     *
+     * @param created receives the photos that were newly created
+     * @return the album's photos
+     */
+    List<Photo> load(Set<Photo> created) {
+        Map<String, Photo> loaded = new HashMap<>();
+        for (Album album : owner.getAlbums()) {
+            if (!album.isLoaded()) continue;
+            for (Photo photo : album.getPhotos()) {
+                loaded.putIfAbsent(photo.getFilePath(), photo);
+            }
+        }
+        return catalog.loadAlbum(index, loaded, created);
+    }
+}
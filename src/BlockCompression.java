@@ -0,0 +1,268 @@
+package src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A chunked compression layer for catalog files.
+ * <p>
+ * Data is cut into chunks of up to 64 KB, and each chunk is compressed on its own with the fastest
+ * {@link Deflater} level, so both directions stream with bounded memory. A compressed file starts with
+ * {@link #MAGIC}, which no uncompressed catalog starts with, so readers can tell the two apart from the first
+ * four bytes.
+ * </p>
+ * <pre>
+ * header:  magic, version, chunk size
+ * chunks:  { raw length, compressed length, deflated bytes }
+ * </pre>
+ * The stream simply ends after the last chunk; the catalog inside carries its own checksum, which catches a
+ * file cut off between chunks.
+ */
+public class BlockCompression {
+
+    /** First four bytes of a compressed file. */
+    public static final int MAGIC = 0x505A4950; // "PZIP"
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Returns a stream that compresses everything written to it into the given output. Flushing the stream
+     * writes the current chunk; closing it also closes the output.
+     *
+     * @param out the output to write compressed data to
+     * @return the compressing stream
+     * @throws IOException If an I/O error occurs while writing the header
+     */
+    public static OutputStream compress(OutputStream out) throws IOException {
+        return new CompressingOutputStream(out);
+    }
+
+    /**
+     * Returns a stream that decompresses a compressed file.
+     *
+     * @param in the input, positioned at the start of the file
+     * @return the decompressing stream
+     * @throws IOException If an I/O error occurs or the input is not in the compressed format
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        return new DecompressingInputStream(in);
+    }
+
+    /**
+     * Compresses written data chunk by chunk.
+     */
+    private static class CompressingOutputStream extends FilterOutputStream {
+
+        private final DataOutputStream data;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] compressed = new byte[CHUNK_SIZE + CHUNK_SIZE / 8 + 64];
+        private int length; // Bytes buffered in the current chunk
+
+        /**
+         * Constructs a compressing stream and writes the header.
+         *
+         * @param out the output to write compressed data to
+         * @throws IOException If an I/O error occurs
+         */
+        CompressingOutputStream(OutputStream out) throws IOException {
+            super(out);
+            data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeShort(VERSION);
+            data.writeInt(CHUNK_SIZE);
+        }
+
+        /**
+         * Writes a byte.
+         *
+         * @param b the byte
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void write(int b) throws IOException {
+            if (length == CHUNK_SIZE) writeChunk();
+            chunk[length++] = (byte) b;
+        }
+
+        /**
+         * Writes bytes from an array.
+         *
+         * @param b the array
+         * @param off the first byte to write
+         * @param len the number of bytes to write
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == CHUNK_SIZE) writeChunk();
+                int n = Math.min(len, CHUNK_SIZE - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Compresses and writes the current chunk, then flushes the output.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            data.flush();
+        }
+
+        /**
+         * Writes the last chunk and closes the output.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        /**
+         * Compresses and writes the buffered chunk, if there is one.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        private void writeChunk() throws IOException {
+            if (length == 0) return;
+            deflater.reset();
+            deflater.setInput(chunk, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            data.writeInt(length);
+            data.writeInt(size);
+            data.write(compressed, 0, size);
+            length = 0;
+        }
+    }
+
+    /**
+     * Decompresses a compressed file chunk by chunk.
+     */
+    private static class DecompressingInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] compressed = new byte[0];
+        private byte[] chunk = new byte[0];
+        private int position; // Next byte to return from the current chunk
+        private int length; // Bytes in the current chunk
+
+        /**
+         * Constructs a decompressing stream and checks the header.
+         *
+         * @param in the input, positioned at the start of the file
+         * @throws IOException If an I/O error occurs or the input is not in the compressed format
+         */
+        DecompressingInputStream(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC || this.in.readUnsignedShort() != VERSION) {
+                throw new IOException("Not a supported compressed file");
+            }
+            this.in.readInt(); // Chunk size, only needed by writers
+        }
+
+        /**
+         * Reads a byte.
+         *
+         * @return the byte, or -1 at the end of the file
+         * @throws IOException If an I/O error occurs or the data is malformed
+         */
+        @Override
+        public int read() throws IOException {
+            if (position == length && !readChunk()) return -1;
+            return chunk[position++] & 0xFF;
+        }
+
+        /**
+         * Reads bytes into an array.
+         *
+         * @param b the array
+         * @param off the position to store the first byte at
+         * @param len the maximum number of bytes to read
+         * @return the number of bytes read, or -1 at the end of the file
+         * @throws IOException If an I/O error occurs or the data is malformed
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (position == length && !readChunk()) return -1;
+            int n = Math.min(len, length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Closes the input.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        /**
+         * Reads and decompresses the next chunk.
+         *
+         * @return false at the end of the file
+         * @throws IOException If an I/O error occurs or the chunk is malformed
+         */
+        private boolean readChunk() throws IOException {
+            int rawLength;
+            try {
+                rawLength = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            int size = in.readInt();
+            if (rawLength <= 0 || size <= 0) throw new IOException("Malformed compressed chunk");
+
+            if (compressed.length < size) compressed = new byte[size];
+            if (chunk.length < rawLength) chunk = new byte[rawLength];
+            in.readFully(compressed, 0, size);
+
+            inflater.reset();
+            inflater.setInput(compressed, 0, size);
+            try {
+                length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(chunk, length, rawLength - length);
+                    if (n == 0 && inflater.needsInput()) break;
+                    length += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed compressed chunk", e);
+            }
+            if (length != rawLength) throw new IOException("Malformed compressed chunk");
+            position = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Imports every photo in a directory tree, as a pipeline of stages running in parallel.
+ * <p>
+ * A scanner walks the tree and hands image files to the next stage; a pool of threads reads each file's
+ * {@link PhotoMetadata}; a deduplicator drops files whose content is already in the album or earlier in the
+ * import, comparing lengths first and {@link ContentHashIndex} hashes only when lengths match; a second
+ * pool puts each photo's thumbnail in the {@link ThumbnailStore}, dropping files that cannot be decoded; and an
+ * inserter collects the photos into batches and hands each batch to the caller, who adds it to the album so the
+ * catalog is written once per batch rather than once per photo. Stages are joined by bounded queues, so a fast
+ * stage waits for a slow one instead of piling up work in memory.
+ * </p>
+ * <p>
+ * Progress can be read at any time and is also reported to a listener. Cancelling stops the scan and lets the
+ * stages drain without doing further work; batches already handed over stay imported.
+ * </p>
+ */
+public class BulkImport {
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int QUEUE_SIZE = 256; // Files waiting between two stages
+    private static final int BATCH_SIZE = 500; // Photos added to the album at once
+    private static final long BATCH_DELAY_MS = 500; // Longest a partial batch waits while files keep coming
+    private static final Set<String> EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif");
+
+    /**
+     * A file moving through the pipeline.
+     */
+    private static class Item {
+        final long sequence; // Position in scan order
+        final String path;
+        final long length;
+        Photo photo; // Created once the metadata is read
+
+        /**
+         * Constructs an item.
+         *
+         * @param sequence the position in scan order
+         * @param path the absolute path of the file
+         * @param length the length of the file
+         */
+        Item(long sequence, String path, long length) {
+            this.sequence = sequence;
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    private static final Item END = new Item(-1, null, 0); // Marks the end of a queue's input
+
+    /**
+     * A snapshot of an import's progress.
+     */
+    public static class Progress {
+        private final int found;
+        private final int duplicates;
+        private final int failed;
+        private final int imported;
+        private final boolean done;
+
+        /**
+         * Constructs a progress snapshot.
+         *
+         * @param found the number of image files found so far
+         * @param duplicates the number of files skipped because they or identical copies are already in the album
+         * @param failed the number of files that could not be read
+         * @param imported the number of photos added to the album
+         * @param done true if the import has finished or was cancelled and has stopped
+         */
+        public Progress(int found, int duplicates, int failed, int imported, boolean done) {
+            this.found = found;
+            this.duplicates = duplicates;
+            this.failed = failed;
+            this.imported = imported;
+            this.done = done;
+        }
+
+        /**
+         * Returns the number of image files found so far. The total is only known once the scan is over.
+         *
+         * @return the number of files
+         */
+        public int getFound() {
+            return found;
+        }
+
+        /**
+         * Returns the number of files skipped because they or identical copies are already in the album.
+         *
+         * @return the number of files
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of files that could not be read or decoded.
+         *
+         * @return the number of files
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of photos added to the album.
+         *
+         * @return the number of photos
+         */
+        public int getImported() {
+            return imported;
+        }
+
+        /**
+         * Returns the number of files that have gone all the way through the pipeline.
+         *
+         * @return the number of files
+         */
+        public int getProcessed() {
+            return duplicates + failed + imported;
+        }
+
+        /**
+         * Checks whether the import has stopped, because it finished or was cancelled.
+         *
+         * @return true if no more photos will be added
+         */
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    private final File root;
+    private final Set<String> existing; // Paths already in the album
+    private final ContentHashIndex hashes = DataManager.getContentHashIndex();
+    private final int thumbnailSize;
+    private final Consumer<List<Photo>> inserter;
+    private volatile Consumer<Progress> listener;
+    private volatile boolean cancelled;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicInteger found = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger imported = new AtomicInteger();
+
+    private final BlockingQueue<Item> scanned = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Item> described = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Item> unique = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Item> ready = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /**
+     * Constructs an import of a directory tree.
+     *
+     * @param root the directory to import, with all its subdirectories
+     * @param existingPaths the file paths of the photos already in the album, which are skipped along with
+     *                      identical copies
+     * @param thumbnailSize the size of the thumbnails to prepare
+     * @param inserter adds a batch of new photos to the album; called on an import thread, one batch at a time
+     */
+    public BulkImport(File root, Collection<String> existingPaths, int thumbnailSize,
+                      Consumer<List<Photo>> inserter) {
+        this.root = root;
+        this.existing = new HashSet<>(existingPaths);
+        this.thumbnailSize = thumbnailSize;
+        this.inserter = inserter;
+    }
+
+    /**
+     * Sets the listener told about progress, at most a few times a second and once when the import stops.
+     *
+     * @param listener receives progress on an import thread
+     */
+    public void setOnProgress(Consumer<Progress> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the import in the background.
+     */
+    public void start() {
+        startThreads("import-scanner", 1, this::scan, scanned);
+        startThreads("import-metadata", THREADS, () -> {
+            MetadataReader reader = new MetadataReader(); // One per thread, since readers reuse their buffer
+            runStage(scanned, described, item -> describe(item, reader));
+        }, described);
+        startThreads("import-dedupe", 1, () -> {
+            Set<String> seen = new HashSet<>(existing);
+            Map<Long, List<String>> byLength = new HashMap<>();
+            for (String path : existing) {
+                byLength.computeIfAbsent(new File(path).length(), length -> new ArrayList<>()).add(path);
+            }
+            runStage(described, unique, item -> deduplicate(item, seen, byLength));
+            try {
+                hashes.save();
+            } catch (IOException e) {
+                System.err.println("Error saving content hashes: " + e.getMessage());
+            }
+        }, unique);
+        startThreads("import-thumbnails", THREADS, () -> runStage(unique, ready, this::prepareThumbnail), ready);
+        startThreads("import-inserter", 1, this::insert, null);
+    }
+
+    /**
+     * Runs the whole import on the calling thread's behalf and waits for it to finish.
+     *
+     * @return the final progress
+     * @throws InterruptedException If interrupted while waiting; the import is cancelled
+     */
+    public Progress run() throws InterruptedException {
+        start();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+        return getProgress();
+    }
+
+    /**
+     * Cancels the import. Photos not yet handed to the inserter are not imported.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Checks whether the import was cancelled.
+     *
+     * @return true if it was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the progress so far.
+     *
+     * @return a progress snapshot
+     */
+    public Progress getProgress() {
+        return new Progress(found.get(), duplicates.get(), failed.get(), imported.get(), finished.getCount() == 0);
+    }
+
+    /**
+     * Walks the directory tree and queues every image file. Runs on the scanner thread.
+     *
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    private void scan() throws InterruptedException {
+        long[] sequence = new long[1];
+        try {
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                /**
+                 * Queues a file if it is an image, judging by its extension.
+                 *
+                 * @param file the file
+                 * @param attributes the file's basic attributes
+                 * @return whether to continue
+                 * @throws IOException If interrupted while queueing
+                 */
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (cancelled) return FileVisitResult.TERMINATE;
+                    if (attributes.isRegularFile() && isImage(file)) {
+                        found.incrementAndGet();
+                        try {
+                            scanned.put(new Item(sequence[0]++, file.toAbsolutePath().toString(), attributes.size()));
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted while scanning", e);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                /**
+                 * Skips files and directories that cannot be read.
+                 *
+                 * @param file the file
+                 * @param e the error
+                 * @return whether to continue
+                 */
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("Error scanning " + file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error scanning " + root + ": " + e.getMessage());
+        }
+        scanned.put(END);
+    }
+
+    /**
+     * Reads a file's metadata and creates its photo. Runs on a metadata thread.
+     *
+     * @param item the file
+     * @param reader the thread's metadata reader
+     * @return true to pass the file on, false if it cannot be read
+     */
+    private boolean describe(Item item, MetadataReader reader) {
+        try {
+            PhotoMetadata metadata = reader.read(new File(item.path));
+            item.photo = new Photo(item.path, metadata.getDateTaken());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error reading " + item.path + ": " + e.getMessage());
+            failed.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Drops a file that is already in the album or earlier in this import, under its own path or as an identical
+     * copy. Files are only hashed if another file has the same length. Runs on the dedupe thread.
+     *
+     * @param item the file
+     * @param seen the paths seen so far, including those in the album
+     * @param byLength the paths of the files kept so far, including those in the album, by file length
+     * @return true to pass the file on, false if it is a duplicate
+     */
+    private boolean deduplicate(Item item, Set<String> seen, Map<Long, List<String>> byLength) {
+        List<String> sameLength = byLength.computeIfAbsent(item.length, length -> new ArrayList<>());
+        if (!seen.add(item.path) || isCopy(item, sameLength)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        sameLength.add(item.path);
+        return true;
+    }
+
+    /**
+     * Checks whether a file has the same content as one of the given files of the same length.
+     *
+     * @param item the file
+     * @param sameLength the paths of files with the same length
+     * @return true if one of them has identical content
+     */
+    private boolean isCopy(Item item, List<String> sameLength) {
+        if (sameLength.isEmpty()) return false;
+        long hash;
+        try {
+            hash = hashes.hash(new File(item.path));
+        } catch (IOException e) {
+            return false; // Left for the next stages to report
+        }
+        for (String path : sameLength) {
+            try {
+                if (hashes.hash(new File(path)) == hash) return true;
+            } catch (IOException e) {
+                // A file that cannot be read is not a copy
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts a photo's thumbnail in the store, so it shows at once in the album. Runs on a thumbnail thread.
+     *
+     * @param item the file
+     * @return true to pass the file on, false if it cannot be decoded
+     */
+    private boolean prepareThumbnail(Item item) {
+        if (ThumbnailCache.getShared().prepare(item.path, thumbnailSize, thumbnailSize)) return true;
+        System.err.println("Error decoding " + item.path);
+        failed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Collects photos into batches and hands each to the inserter, in scan order within the batch. A batch is
+     * handed over once full, or once its first photo has waited long enough. Runs on the inserter thread.
+     *
+     * @throws InterruptedException If interrupted while waiting for photos
+     */
+    private void insert() throws InterruptedException {
+        List<Item> batch = new ArrayList<>();
+        long batchStart = 0;
+        long lastReport = 0;
+        while (true) {
+            Item item = ready.poll(BATCH_DELAY_MS / 5, TimeUnit.MILLISECONDS);
+            if (item != null && item != END && !cancelled) {
+                if (batch.isEmpty()) batchStart = System.currentTimeMillis();
+                batch.add(item);
+            }
+
+            long now = System.currentTimeMillis();
+            boolean flush = batch.size() >= BATCH_SIZE || item == END || now - batchStart >= BATCH_DELAY_MS;
+            if (flush && !batch.isEmpty() && !cancelled) {
+                batch.sort(Comparator.comparingLong(entry -> entry.sequence));
+                List<Photo> photos = new ArrayList<>(batch.size());
+                for (Item entry : batch) {
+                    photos.add(entry.photo);
+                }
+                try {
+                    inserter.accept(photos);
+                    imported.addAndGet(photos.size());
+                } catch (RuntimeException e) {
+                    System.err.println("Error adding imported photos: " + e.getMessage());
+                    failed.addAndGet(photos.size());
+                }
+                batch.clear();
+            }
+
+            if (item == END) return;
+            if (now - lastReport >= BATCH_DELAY_MS / 2) {
+                lastReport = now;
+                report();
+            }
+        }
+    }
+
+    /**
+     * Runs one stage: takes files from its input queue, processes them and passes those that are kept on, until
+     * the input ends. Once cancelled, files are taken and dropped without processing, so earlier stages never
+     * stay blocked on a full queue.
+     *
+     * @param in the input queue
+     * @param out the output queue
+     * @param step processes a file and tells whether to pass it on
+     * @throws InterruptedException If interrupted while waiting on a queue
+     */
+    private void runStage(BlockingQueue<Item> in, BlockingQueue<Item> out, Step step) throws InterruptedException {
+        while (true) {
+            Item item = in.take();
+            if (item == END) {
+                in.put(END); // Let the other threads of the stage see it too
+                return;
+            }
+            if (cancelled) continue;
+
+            boolean keep;
+            try {
+                keep = step.process(item);
+            } catch (RuntimeException e) {
+                System.err.println("Error importing " + item.path + ": " + e.getMessage());
+                failed.incrementAndGet();
+                keep = false;
+            }
+            if (keep) out.put(item);
+        }
+    }
+
+    /**
+     * Processes one file in a stage.
+     */
+    private interface Step {
+
+        /**
+         * Processes a file.
+         *
+         * @param item the file
+         * @return true to pass the file on to the next stage
+         */
+        boolean process(Item item);
+    }
+
+    /**
+     * A stage's body that may be interrupted.
+     */
+    private interface Body {
+
+        /**
+         * Runs the stage until its input ends.
+         *
+         * @throws InterruptedException If interrupted while waiting on a queue
+         */
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Starts the threads of a stage. Once the last of them is done, the end of input is passed to the next
+     * stage, or the import is marked finished after the last stage.
+     *
+     * @param name the thread name
+     * @param count the number of threads
+     * @param body what each thread runs
+     * @param out the stage's output queue, or null for the last stage
+     */
+    private void startThreads(String name, int count, Body body, BlockingQueue<Item> out) {
+        AtomicInteger running = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    body.run();
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                } catch (RuntimeException e) {
+                    System.err.println("Error in " + name + ": " + e.getMessage());
+                    cancelled = true;
+                } finally {
+                    if (running.decrementAndGet() == 0) finish(out);
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // Leave the UI ahead
+            thread.start();
+        }
+    }
+
+    /**
+     * Passes the end of input on once a stage is done, or marks the import finished after the last stage.
+     *
+     * @param out the stage's output queue, or null for the last stage
+     */
+    private void finish(BlockingQueue<Item> out) {
+        if (out == null) {
+            finished.countDown();
+            report();
+            return;
+        }
+        try {
+            out.put(END);
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells the listener about the progress so far.
+     */
+    private void report() {
+        Consumer<Progress> callback = listener;
+        if (callback != null) callback.accept(getProgress());
+    }
+
+    /**
+     * Checks whether a file is an image that can be imported, judging by its extension.
+     *
+     * @param file the file
+     * @return true if it is a JPEG, PNG or GIF file
+     */
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,440 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes user snapshots in a compact, versioned binary format.
+ * <p>
+ * A user is stored as a small manifest holding the user's tag types and album table, plus one shard file per
+ * album holding that album's photos. Both use the same layout. Every string (tag names and values, album names,
+ * captions, and the directory and file name of photo paths) is stored once in a string table and referenced by
+ * index. Dates are stored as epoch milliseconds. Photos are fixed-size records, which lets {@link MappedCatalog}
+ * map a file and decode only the albums that are opened.
+ * </p>
+ * <pre>
+ * header:          magic, version, epoch, username, tag type count and position, album count,
+ *                  positions of the sections below
+ * string offsets:  int[strings + 1] into the string data
+ * string data:     UTF-8 bytes
+ * tag types:       int[] string indexes
+ * albums:          { name, photo count, first entry or shard file name, earliest date, latest date }
+ * entries:         int[] photo record indexes, grouped by album
+ * photos:          { directory, file name, caption, first tag, tag count, date, hash time, perceptual hash }
+ * tags:            { name, value } string index pairs
+ * tag index:       optional, manifests only; see below
+ * trailer:         CRC-32 of everything before it
+ * </pre>
+ * A manifest ({@link #MAGIC}) has empty entry, photo and tag sections and names each album's shard. If the user's
+ * {@link TagIndex} was built, the manifest stores it after the tag section:
+ * <pre>
+ * photo IDs:       count, then { directory, file name, date } per ID, string indexes -1 for free IDs
+ * tags:            name count, then per name: name, value count, then per value: value, photo ID bitmap
+ * albums:          photo ID bitmap per album, in album table order
+ * </pre>
+ * A shard ({@link #SHARD_MAGIC}) holds a single album. Version 6 files, whose tag index had no dates and is
+ * rebuilt instead, version 5 files, which had no tag index, version 4 files, which had no perceptual hashes,
+ * version 3 files, which had no checksum, version 2 files, which kept every album in the manifest, and version 1
+ * files, a sequential encoding, are still read.
+ */
+public class CatalogCodec {
+
+    /** First four bytes of a manifest file. */
+    public static final int MAGIC = 0x50434154; // "PCAT"
+    /** First four bytes of an album shard file. */
+    public static final int SHARD_MAGIC = 0x50414C42; // "PALB"
+    /** Appended to a username to name the directory next to its manifest that holds its album shards. */
+    public static final String SHARD_DIR_SUFFIX = ".albums";
+    static final int VERSION = 7;
+    static final int HEADER_SIZE = 4 + 2 + 8 + 4 * 10;
+
+    /**
+     * Writes a user's manifest: its tag types, an album table pointing at the album shards and, if it was built,
+     * the user's tag index.
+     *
+     * @param user the user to write
+     * @param epoch the epoch identifying the journal that applies to this snapshot
+     * @param shardNames the shard file name of each album, in album order
+     * @param out the output to write to; flushed but not closed
+     * @throws IOException If an I/O error occurs
+     */
+    public static void writeManifest(User user, long epoch, List<String> shardNames, OutputStream out)
+            throws IOException {
+        TagIndex tagIndex = user.peekTagIndex();
+        write(MAGIC, epoch, user.getUsername(), user.getTagTypes(), user.getAlbums(), shardNames,
+                tagIndex == null ? null : tagIndex.copy(), out);
+    }
+
+    /**
+     * Writes an album shard holding the album's photos.
+     *
+     * @param album the album to write
+     * @param username the owner of the album
+     * @param out the output to write to; flushed but not closed
+     * @throws IOException If an I/O error occurs
+     */
+    public static void writeShard(Album album, String username, OutputStream out) throws IOException {
+        write(SHARD_MAGIC, 0, username, Collections.emptyList(), Collections.singletonList(album), null, null, out);
+    }
+
+    /**
+     * Writes a catalog file.
+     *
+     * @param magic the file kind
+     * @param epoch the snapshot epoch
+     * @param username the owner
+     * @param tagTypes the owner's tag types
+     * @param albums the albums to describe
+     * @param shardNames the shard of each album, or null to store the albums' photos in this file
+     * @param tagIndex a copy of the owner's tag index to store, or null
+     * @param stream the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    private static void write(int magic, long epoch, String username, List<String> tagTypes, List<Album> albums,
+            List<String> shardNames, TagIndex tagIndex, OutputStream stream) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(stream, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        // Number every distinct photo and string
+        Map<Photo, Integer> photoIds = new IdentityHashMap<>();
+        List<Photo> photos = new ArrayList<>();
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        int entryCount = 0;
+
+        intern(strings, username);
+        for (String tagType : tagTypes) intern(strings, tagType);
+        for (int a = 0; a < albums.size(); a++) {
+            Album album = albums.get(a);
+            intern(strings, album.getName());
+            if (shardNames != null) {
+                intern(strings, shardNames.get(a));
+                continue;
+            }
+            for (Photo photo : album.getPhotos()) {
+                entryCount++;
+                if (photoIds.containsKey(photo)) continue;
+                photoIds.put(photo, photos.size());
+                photos.add(photo);
+                String path = photo.getFilePath();
+                String directory = directoryOf(path);
+                intern(strings, directory);
+                intern(strings, path.substring(directory.length()));
+                intern(strings, photo.getCaption());
+                for (Tag tag : photo.getTags()) {
+                    intern(strings, tag.getName());
+                    intern(strings, tag.getValue());
+                }
+            }
+        }
+        if (tagIndex != null) {
+            for (int id = 0; id < tagIndex.getIdCount(); id++) {
+                String path = tagIndex.getPath(id);
+                if (path == null) continue;
+                String directory = directoryOf(path);
+                intern(strings, directory);
+                intern(strings, path.substring(directory.length()));
+            }
+            for (String name : tagIndex.getNames()) {
+                intern(strings, name);
+                for (String value : tagIndex.getValues(name).keySet()) intern(strings, value);
+            }
+        }
+
+        byte[][] encoded = new byte[strings.size()][];
+        int stringBytes = 0;
+        int i = 0;
+        for (String s : strings.keySet()) {
+            encoded[i] = s.getBytes(StandardCharsets.UTF_8);
+            stringBytes += encoded[i++].length;
+        }
+
+        // Section positions follow from the counts
+        int stringOffsetsPos = HEADER_SIZE;
+        int stringDataPos = stringOffsetsPos + 4 * (encoded.length + 1);
+        int tagTypesPos = stringDataPos + stringBytes;
+        int albumsPos = tagTypesPos + 4 * tagTypes.size();
+        int entriesPos = albumsPos + MappedCatalog.ALBUM_RECORD_SIZE * albums.size();
+        int photosPos = entriesPos + 4 * entryCount;
+        int tagsPos = photosPos + MappedCatalog.PHOTO_RECORD_SIZE * photos.size();
+
+        out.writeInt(magic);
+        out.writeShort(VERSION);
+        out.writeLong(epoch);
+        out.writeInt(strings.get(username));
+        out.writeInt(tagTypes.size());
+        out.writeInt(tagTypesPos);
+        out.writeInt(albums.size());
+        out.writeInt(stringOffsetsPos);
+        out.writeInt(stringDataPos);
+        out.writeInt(albumsPos);
+        out.writeInt(entriesPos);
+        out.writeInt(photosPos);
+        out.writeInt(tagsPos);
+
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            out.writeInt(offset);
+            offset += bytes.length;
+        }
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) out.write(bytes);
+
+        for (String tagType : tagTypes) out.writeInt(strings.get(tagType));
+
+        int firstEntry = 0;
+        for (int a = 0; a < albums.size(); a++) {
+            Album album = albums.get(a);
+            Calendar earliest = album.getEarliestDate();
+            Calendar latest = album.getLatestDate();
+            out.writeInt(strings.get(album.getName()));
+            out.writeInt(album.getPhotoCount());
+            out.writeInt(shardNames != null ? strings.get(shardNames.get(a)) : firstEntry);
+            out.writeLong(earliest == null ? 0 : earliest.getTimeInMillis());
+            out.writeLong(latest == null ? 0 : latest.getTimeInMillis());
+            firstEntry += album.getPhotoCount();
+        }
+
+        if (shardNames == null) {
+            writePhotos(albums, photos, photoIds, strings, out);
+        }
+        if (tagIndex != null) {
+            writeTagIndex(tagIndex, albums, strings, out);
+        }
+
+        out.flush();
+        new DataOutputStream(stream).writeInt((int) checked.getChecksum().getValue());
+        stream.flush();
+    }
+
+    /**
+     * Writes the tag index section of a manifest.
+     *
+     * @param tagIndex the tag index
+     * @param albums the albums, in album table order
+     * @param strings the string table
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeTagIndex(TagIndex tagIndex, List<Album> albums, Map<String, Integer> strings,
+            DataOutputStream out) throws IOException {
+        out.writeInt(tagIndex.getIdCount());
+        for (int id = 0; id < tagIndex.getIdCount(); id++) {
+            String path = tagIndex.getPath(id);
+            if (path == null) {
+                out.writeInt(-1);
+                out.writeInt(-1);
+                out.writeLong(0);
+                continue;
+            }
+            String directory = directoryOf(path);
+            out.writeInt(strings.get(directory));
+            out.writeInt(strings.get(path.substring(directory.length())));
+            out.writeLong(tagIndex.getTime(id));
+        }
+
+        List<String> names = tagIndex.getNames();
+        out.writeInt(names.size());
+        for (String name : names) {
+            Map<String, CompressedBitmap> values = tagIndex.getValues(name);
+            out.writeInt(strings.get(name));
+            out.writeInt(values.size());
+            for (Map.Entry<String, CompressedBitmap> value : values.entrySet()) {
+                out.writeInt(strings.get(value.getKey()));
+                value.getValue().writeTo(out);
+            }
+        }
+
+        for (Album album : albums) {
+            tagIndex.getAlbum(album).writeTo(out);
+        }
+    }
+
+    /**
+     * Writes the entry, photo and tag sections of a catalog that stores its albums' photos.
+     *
+     * @param albums the albums
+     * @param photos the distinct photos, in record order
+     * @param photoIds the record index of each photo
+     * @param strings the string table
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writePhotos(List<Album> albums, List<Photo> photos, Map<Photo, Integer> photoIds,
+            Map<String, Integer> strings, DataOutputStream out) throws IOException {
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) out.writeInt(photoIds.get(photo));
+        }
+
+        int firstTag = 0;
+        for (Photo photo : photos) {
+            String path = photo.getFilePath();
+            String directory = directoryOf(path);
+            out.writeInt(strings.get(directory));
+            out.writeInt(strings.get(path.substring(directory.length())));
+            out.writeInt(strings.get(photo.getCaption()));
+            out.writeInt(firstTag);
+            out.writeInt(photo.getTags().size());
+            out.writeLong(photo.getDateTaken().getTimeInMillis());
+            out.writeLong(photo.getPerceptualHashModified());
+            out.writeLong(photo.getPerceptualHash());
+            firstTag += photo.getTags().size();
+        }
+
+        for (Photo photo : photos) {
+            for (Tag tag : photo.getTags()) {
+                out.writeInt(strings.get(tag.getName()));
+                out.writeInt(strings.get(tag.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Reads a user's manifest. Version 2 and later files are mapped, or decompressed if they were written
+     * through {@link BlockCompression}, and their albums loaded lazily; version 1 files are decoded in full.
+     *
+     * @param file the file to read
+     * @param epoch receives the snapshot epoch in its first element
+     * @return the user, or null if the file is not a catalog file
+     * @throws IOException If an I/O error occurs, the catalog version is not supported or a checksum does not match
+     */
+    public static User read(File file, long[] epoch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic == BlockCompression.MAGIC) return MappedCatalog.open(file, epoch);
+            if (magic != MAGIC) return null;
+            int version = in.readUnsignedShort();
+            if (version == 1) return readVersion1(in, epoch);
+            if (version < 2 || version > VERSION) {
+                throw new IOException("Unsupported catalog version: " + version);
+            }
+        } catch (EOFException e) {
+            return null; // Too short to be a catalog file
+        }
+        return MappedCatalog.open(file, epoch);
+    }
+
+    /**
+     * Reads a version 1 catalog, which stores strings, photos and albums sequentially with variable-length
+     * integers.
+     *
+     * @param in the input to read from, positioned after the version
+     * @param epoch receives the snapshot epoch in its first element
+     * @return the user
+     * @throws IOException If an I/O error occurs
+     */
+    private static User readVersion1(DataInput in, long[] epoch) throws IOException {
+        epoch[0] = in.readLong();
+
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+
+        User user = new User(strings[readVarInt(in)]);
+        List<String> tagTypes = new ArrayList<>();
+        int tagTypeCount = readVarInt(in);
+        for (int i = 0; i < tagTypeCount; i++) tagTypes.add(strings[readVarInt(in)]);
+
+        // Tags are immutable, so equal name/value pairs share one instance
+        Map<Long, Tag> tagCache = new HashMap<>();
+        Photo[] photos = new Photo[readVarInt(in)];
+        for (int i = 0; i < photos.length; i++) {
+            String path = strings[readVarInt(in)] + readString(in);
+            String caption = readString(in);
+            Calendar date = Calendar.getInstance();
+            date.setTimeInMillis(in.readLong());
+
+            int tagCount = readVarInt(in);
+            List<Tag> tags = new ArrayList<>(tagCount);
+            for (int t = 0; t < tagCount; t++) {
+                int name = readVarInt(in);
+                int value = readVarInt(in);
+                tags.add(tagCache.computeIfAbsent(((long) name << 32) | value,
+                        key -> new Tag(strings[name], strings[value])));
+            }
+
+            photos[i] = new Photo(path, date);
+            photos[i].restore(caption, tags);
+        }
+
+        int albumCount = readVarInt(in);
+        List<Album> albums = new ArrayList<>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            Album album = new Album(strings[readVarInt(in)]);
+            int photoCount = readVarInt(in);
+            List<Photo> albumPhotos = new ArrayList<>(photoCount);
+            for (int p = 0; p < photoCount; p++) albumPhotos.add(photos[readVarInt(in)]);
+            album.restore(albumPhotos);
+            albums.add(album);
+        }
+
+        user.restore(tagTypes, albums);
+        return user;
+    }
+
+    /**
+     * Returns the directory part of a path, including its trailing separator.
+     *
+     * @param path a file path using either separator
+     * @return the directory prefix, or an empty string
+     */
+    private static String directoryOf(String path) {
+        return path.substring(0, Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+
+    /**
+     * Adds a string to the string table if it is not already present.
+     *
+     * @param strings the string table
+     * @param s the string
+     */
+    private static void intern(Map<String, Integer> strings, String s) {
+        strings.putIfAbsent(s, strings.size());
+    }
+
+    /**
+     * Reads a non-negative integer stored with seven bits per byte.
+     *
+     * @param in the input to read from
+     * @return the value
+     * @throws IOException If an I/O error occurs
+     */
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * Reads a string stored as its UTF-8 length followed by its bytes.
+     *
+     * @param in the input to read from
+     * @return the string
+     * @throws IOException If an I/O error occurs
+     */
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
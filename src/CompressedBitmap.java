@@ -0,0 +1,613 @@
+package src;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of non-negative integers, such as photo IDs, stored compactly and combined quickly.
+ * <p>
+ * The integers are split by their upper 16 bits into containers of up to 65536 values. A container holding few
+ * values keeps them as a sorted array of their lower 16 bits; once it holds more than 4096, a 65536-bit bitmap is
+ * smaller and it switches to one. Intersections and unions work container by container, with word-wide
+ * operations on bitmaps, so combining sets of a hundred thousand photos touches a few kilobytes.
+ * </p>
+ */
+public class CompressedBitmap {
+
+    private static final int ARRAY_MAX = 4096; // Largest container kept as an array
+    private static final int WORDS = 1024; // Longs in a bitmap container
+
+    /**
+     * The values sharing the same upper 16 bits, either as a sorted array or as a bitmap.
+     */
+    private static final class Container {
+        char[] array; // Sorted lower bits, or null if the bitmap is used
+        long[] bits;
+        int cardinality;
+
+        /**
+         * Constructs an array container.
+         *
+         * @param array the sorted values, which may have spare room at the end
+         * @param cardinality the number of values
+         */
+        Container(char[] array, int cardinality) {
+            this.array = array;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Constructs a bitmap container.
+         *
+         * @param bits the bitmap
+         * @param cardinality the number of bits set
+         */
+        Container(long[] bits, int cardinality) {
+            this.bits = bits;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Checks whether a value is in the container.
+         *
+         * @param low the lower 16 bits of the value
+         * @return true if it is present
+         */
+        boolean contains(char low) {
+            if (bits != null) return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        /**
+         * Adds a value, switching to a bitmap once the array would grow too large.
+         *
+         * @param low the lower 16 bits of the value
+         * @return true if it was not present
+         */
+        boolean add(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0) return false;
+                bits[low >>> 6] |= mask;
+                cardinality++;
+                return true;
+            }
+
+            int at = Arrays.binarySearch(array, 0, cardinality, low);
+            if (at >= 0) return false;
+            at = -at - 1;
+            if (cardinality == ARRAY_MAX) {
+                bits = toBits(array, cardinality);
+                array = null;
+                bits[low >>> 6] |= 1L << low;
+            } else {
+                if (cardinality == array.length) array = Arrays.copyOf(array, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+                System.arraycopy(array, at, array, at + 1, cardinality - at);
+                array[at] = low;
+            }
+            cardinality++;
+            return true;
+        }
+
+        /**
+         * Removes a value, switching back to an array once the bitmap holds few enough values.
+         *
+         * @param low the lower 16 bits of the value
+         * @return true if it was present
+         */
+        boolean remove(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) return false;
+                bits[low >>> 6] &= ~mask;
+                if (--cardinality <= ARRAY_MAX) {
+                    array = toArray(bits, cardinality);
+                    bits = null;
+                }
+                return true;
+            }
+
+            int at = Arrays.binarySearch(array, 0, cardinality, low);
+            if (at < 0) return false;
+            System.arraycopy(array, at + 1, array, at, cardinality - at - 1);
+            cardinality--;
+            return true;
+        }
+
+        /**
+         * Returns a copy of the container.
+         *
+         * @return the copy
+         */
+        Container copy() {
+            if (bits != null) return new Container(bits.clone(), cardinality);
+            return new Container(Arrays.copyOf(array, cardinality), cardinality);
+        }
+
+        /**
+         * Passes every value to an action, in ascending order.
+         *
+         * @param high the upper 16 bits of the values
+         * @param action the action
+         */
+        void forEach(int high, IntConsumer action) {
+            int base = high << 16;
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) action.accept(base | array[i]);
+                return;
+            }
+            for (int w = 0; w < WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    action.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    private char[] keys = new char[4]; // Upper 16 bits of each container, ascending
+    private Container[] containers = new Container[4];
+    private int size; // Number of containers
+
+    /**
+     * Constructs an empty bitmap.
+     */
+    public CompressedBitmap() {
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value the value, not negative
+     * @return true if it was not present
+     */
+    public boolean add(int value) {
+        char high = (char) (value >>> 16);
+        int at = find(high);
+        if (at < 0) {
+            at = -at - 1;
+            insert(at, high, new Container(new char[4], 0));
+        }
+        return containers[at].add((char) value);
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param value the value
+     * @return true if it was present
+     */
+    public boolean remove(int value) {
+        int at = find((char) (value >>> 16));
+        if (at < 0 || !containers[at].remove((char) value)) return false;
+        if (containers[at].cardinality == 0) {
+            System.arraycopy(keys, at + 1, keys, at, size - at - 1);
+            System.arraycopy(containers, at + 1, containers, at, size - at - 1);
+            containers[--size] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a value is in the set.
+     *
+     * @param value the value
+     * @return true if it is present
+     */
+    public boolean contains(int value) {
+        int at = find((char) (value >>> 16));
+        return at >= 0 && containers[at].contains((char) value);
+    }
+
+    /**
+     * Returns the number of values in the set.
+     *
+     * @return the cardinality
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) cardinality += containers[i].cardinality;
+        return cardinality;
+    }
+
+    /**
+     * Checks whether the set is empty.
+     *
+     * @return true if it holds no values
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the smallest value in the set.
+     *
+     * @return the value, or -1 if the set is empty
+     */
+    public int first() {
+        if (size == 0) return -1;
+        Container container = containers[0];
+        int low;
+        if (container.bits == null) {
+            low = container.array[0];
+        } else {
+            int w = 0;
+            while (container.bits[w] == 0) w++;
+            low = (w << 6) | Long.numberOfTrailingZeros(container.bits[w]);
+        }
+        return (keys[0] << 16) | low;
+    }
+
+    /**
+     * Passes every value to an action, in ascending order.
+     *
+     * @param action the action
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) containers[i].forEach(keys[i], action);
+    }
+
+    /**
+     * Returns the values in ascending order.
+     *
+     * @return the values
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] next = { 0 };
+        forEach(value -> values[next[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Returns a copy of the set.
+     *
+     * @return the copy
+     */
+    public CompressedBitmap copy() {
+        CompressedBitmap copy = new CompressedBitmap();
+        copy.keys = Arrays.copyOf(keys, Math.max(4, size));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < size; i++) copy.containers[i] = containers[i].copy();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Returns the values in both sets.
+     *
+     * @param a a set
+     * @param b another set
+     * @return the intersection
+     */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container container = and(a.containers[i], b.containers[j]);
+                if (container != null) result.append(a.keys[i], container);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values in either set.
+     *
+     * @param a a set
+     * @param b another set
+     * @return the union
+     */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.containers[i++].copy());
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.append(b.keys[j], b.containers[j++].copy());
+            } else {
+                result.append(a.keys[i], or(a.containers[i++], b.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values in the first set but not in the second.
+     *
+     * @param a a set
+     * @param b the values to leave out
+     * @return the difference
+     */
+    public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+        CompressedBitmap result = new CompressedBitmap();
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) j++;
+            Container container = j < b.size && b.keys[j] == a.keys[i]
+                    ? andNot(a.containers[i], b.containers[j]) : a.containers[i].copy();
+            if (container != null) result.append(a.keys[i], container);
+        }
+        return result;
+    }
+
+    /**
+     * Builds a set from a plain bitmap, where bit {@code i % 64} of word {@code i / 64} stands for value i.
+     * Setting bits in a plain bitmap first is faster than adding many values out of order.
+     *
+     * @param words the bitmap, which is not kept
+     * @return the set
+     */
+    public static CompressedBitmap fromWords(long[] words) {
+        CompressedBitmap result = new CompressedBitmap();
+        for (int start = 0; start < words.length; start += WORDS) {
+            int end = Math.min(start + WORDS, words.length);
+            int cardinality = 0;
+            for (int w = start; w < end; w++) cardinality += Long.bitCount(words[w]);
+            if (cardinality == 0) continue;
+            long[] bits = new long[WORDS];
+            System.arraycopy(words, start, bits, 0, end - start);
+            result.append((char) (start / WORDS), fromBits(bits, cardinality));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the set: the container count, then for each container its upper bits, its cardinality and either
+     * its sorted lower bits or its bitmap.
+     *
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            Container container = containers[i];
+            out.writeChar(keys[i]);
+            out.writeInt(container.cardinality);
+            if (container.bits != null) {
+                for (long word : container.bits) out.writeLong(word);
+            } else {
+                for (int v = 0; v < container.cardinality; v++) out.writeChar(container.array[v]);
+            }
+        }
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(DataOutput)}, advancing the buffer past it.
+     *
+     * @param buffer the buffer, positioned at the set
+     * @return the set
+     */
+    public static CompressedBitmap readFrom(ByteBuffer buffer) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            char high = buffer.getChar();
+            int cardinality = buffer.getInt();
+            if (cardinality > ARRAY_MAX) {
+                long[] bits = new long[WORDS];
+                buffer.asLongBuffer().get(bits);
+                buffer.position(buffer.position() + 8 * WORDS);
+                bitmap.append(high, new Container(bits, cardinality));
+            } else {
+                char[] array = new char[cardinality];
+                buffer.asCharBuffer().get(array);
+                buffer.position(buffer.position() + 2 * cardinality);
+                bitmap.append(high, new Container(array, cardinality));
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Finds the container for the given upper bits.
+     *
+     * @param high the upper 16 bits
+     * @return the container's position, or {@code -(insertion point) - 1} if there is none
+     */
+    private int find(char high) {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    /**
+     * Inserts a container.
+     *
+     * @param at the position
+     * @param high the upper 16 bits of its values
+     * @param container the container
+     */
+    private void insert(int at, char high, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, at, keys, at + 1, size - at);
+        System.arraycopy(containers, at, containers, at + 1, size - at);
+        keys[at] = high;
+        containers[at] = container;
+        size++;
+    }
+
+    /**
+     * Appends a container after all others.
+     *
+     * @param high the upper 16 bits of its values, greater than those of every container
+     * @param container the container
+     */
+    private void append(char high, Container container) {
+        insert(size, high, container);
+    }
+
+    /**
+     * Intersects two containers.
+     *
+     * @param a a container
+     * @param b another container
+     * @return the intersection, or null if it is empty
+     */
+    private static Container and(Container a, Container b) {
+        if (a.bits != null && b.bits != null) {
+            long[] bits = new long[WORDS];
+            int cardinality = 0;
+            for (int w = 0; w < WORDS; w++) {
+                bits[w] = a.bits[w] & b.bits[w];
+                cardinality += Long.bitCount(bits[w]);
+            }
+            return fromBits(bits, cardinality);
+        }
+
+        if (a.bits == null && b.bits == null) {
+            char[] array = new char[Math.min(a.cardinality, b.cardinality)];
+            int i = 0;
+            int j = 0;
+            int cardinality = 0;
+            while (i < a.cardinality && j < b.cardinality) {
+                if (a.array[i] < b.array[j]) {
+                    i++;
+                } else if (a.array[i] > b.array[j]) {
+                    j++;
+                } else {
+                    array[cardinality++] = a.array[i++];
+                    j++;
+                }
+            }
+            return cardinality == 0 ? null : new Container(array, cardinality);
+        }
+
+        // One is an array; keep its values that the bitmap has
+        Container small = a.bits == null ? a : b;
+        Container other = small == a ? b : a;
+        char[] array = new char[small.cardinality];
+        int cardinality = 0;
+        for (int i = 0; i < small.cardinality; i++) {
+            if (other.contains(small.array[i])) array[cardinality++] = small.array[i];
+        }
+        return cardinality == 0 ? null : new Container(array, cardinality);
+    }
+
+    /**
+     * Unites two containers.
+     *
+     * @param a a container
+     * @param b another container
+     * @return the union
+     */
+    private static Container or(Container a, Container b) {
+        if (a.bits == null && b.bits == null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+            char[] array = new char[a.cardinality + b.cardinality];
+            int i = 0;
+            int j = 0;
+            int cardinality = 0;
+            while (i < a.cardinality || j < b.cardinality) {
+                if (j == b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+                    array[cardinality++] = a.array[i++];
+                } else if (i == a.cardinality || a.array[i] > b.array[j]) {
+                    array[cardinality++] = b.array[j++];
+                } else {
+                    array[cardinality++] = a.array[i++];
+                    j++;
+                }
+            }
+            return new Container(array, cardinality);
+        }
+
+        long[] bits = a.bits != null ? a.bits.clone() : toBits(a.array, a.cardinality);
+        if (b.bits != null) {
+            for (int w = 0; w < WORDS; w++) bits[w] |= b.bits[w];
+        } else {
+            for (int i = 0; i < b.cardinality; i++) bits[b.array[i] >>> 6] |= 1L << b.array[i];
+        }
+        int cardinality = 0;
+        for (long word : bits) cardinality += Long.bitCount(word);
+        return fromBits(bits, cardinality);
+    }
+
+    /**
+     * Removes the values of one container from another.
+     *
+     * @param a the container
+     * @param b the values to leave out
+     * @return the difference, or null if it is empty
+     */
+    private static Container andNot(Container a, Container b) {
+        if (a.bits == null) {
+            char[] array = new char[a.cardinality];
+            int cardinality = 0;
+            for (int i = 0; i < a.cardinality; i++) {
+                if (!b.contains(a.array[i])) array[cardinality++] = a.array[i];
+            }
+            return cardinality == 0 ? null : new Container(array, cardinality);
+        }
+
+        long[] bits = a.bits.clone();
+        if (b.bits != null) {
+            for (int w = 0; w < WORDS; w++) bits[w] &= ~b.bits[w];
+        } else {
+            for (int i = 0; i < b.cardinality; i++) bits[b.array[i] >>> 6] &= ~(1L << b.array[i]);
+        }
+        int cardinality = 0;
+        for (long word : bits) cardinality += Long.bitCount(word);
+        return cardinality == 0 ? null : fromBits(bits, cardinality);
+    }
+
+    /**
+     * Wraps a bitmap in a container, as an array if it holds few enough values.
+     *
+     * @param bits the bitmap
+     * @param cardinality the number of bits set
+     * @return the container, or null if no bit is set
+     */
+    private static Container fromBits(long[] bits, int cardinality) {
+        if (cardinality == 0) return null;
+        if (cardinality <= ARRAY_MAX) return new Container(toArray(bits, cardinality), cardinality);
+        return new Container(bits, cardinality);
+    }
+
+    /**
+     * Converts sorted values to a bitmap.
+     *
+     * @param array the values
+     * @param cardinality the number of values
+     * @return the bitmap
+     */
+    private static long[] toBits(char[] array, int cardinality) {
+        long[] bits = new long[WORDS];
+        for (int i = 0; i < cardinality; i++) bits[array[i] >>> 6] |= 1L << array[i];
+        return bits;
+    }
+
+    /**
+     * Converts a bitmap to sorted values.
+     *
+     * @param bits the bitmap
+     * @param cardinality the number of bits set
+     * @return the values
+     */
+    private static char[] toArray(long[] bits, int cardinality) {
+        char[] array = new char[Math.max(4, cardinality)];
+        int i = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                array[i++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return array;
+    }
+}
@@ -0,0 +1,352 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds photo files with identical content, by a 64-bit hash of their bytes kept on disk.
+ * <p>
+ * Files are hashed with XXH64, a fast non-cryptographic hash, reading them through a memory mapping. Hashes
+ * are stored by absolute path along with the file's modification time and length, and a file is only hashed
+ * again once either changes. Since only files of equal length can be identical, lengths are compared first and
+ * most files are never hashed at all.
+ * </p>
+ * <p>
+ * The index is shared by all users and saved to its file on {@link #save()}; entries of files that no photo
+ * refers to any more are dropped by {@link #retain(Set)}.
+ * </p>
+ */
+public class ContentHashIndex {
+
+    private static final int MAGIC = 0x50485348; // "PHSH"
+    private static final int VERSION = 1;
+    private static final long WINDOW = 64L * 1024 * 1024; // Bytes mapped at a time, a multiple of the stripe
+
+    // XXH64 constants
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * The hash of a file in a given state.
+     */
+    private static class Entry {
+        final long modified;
+        final long length;
+        final long hash;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param modified the file's modification time
+         * @param length the file's length
+         * @param hash the hash of the file's content
+         */
+        Entry(long modified, long length, long hash) {
+            this.modified = modified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private final File file;
+    private Map<String, Entry> entries; // Hashes by absolute path, read on first use
+    private boolean dirty; // Whether entries differ from the file
+
+    /**
+     * Constructs an index stored in the given file. Nothing is read until the index is first used.
+     *
+     * @param file the index file
+     */
+    public ContentHashIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the hash of a file's content, from the index if the file has not changed since it was hashed.
+     *
+     * @param source the file
+     * @return the hash
+     * @throws IOException If the file cannot be read
+     */
+    public long hash(File source) throws IOException {
+        String path = source.getAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long length = attributes.size();
+
+        synchronized (this) {
+            Entry entry = entries().get(path);
+            if (entry != null && entry.modified == modified && entry.length == length) return entry.hash;
+        }
+
+        // Hash without holding the lock, so other files can be looked up meanwhile
+        long hash = hashFile(source);
+        synchronized (this) {
+            entries().put(path, new Entry(modified, length, hash));
+            dirty = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Finds a file with the same content as a given file among candidates. Only candidates of the same length
+     * are hashed.
+     *
+     * @param source the file
+     * @param candidates the paths of the files to compare with
+     * @return the path of a candidate with identical content, other than the file itself, or null if none
+     * @throws IOException If the file cannot be read
+     */
+    public String findCopy(File source, Collection<String> candidates) throws IOException {
+        String path = source.getAbsolutePath();
+        long length = source.length();
+        long hash = 0;
+        boolean hashed = false;
+        for (String candidate : candidates) {
+            File other = new File(candidate);
+            if (other.length() != length || other.getAbsolutePath().equals(path)) continue;
+            if (!hashed) {
+                hash = hash(source);
+                hashed = true;
+            }
+            try {
+                if (hash(other) == hash) return candidate;
+            } catch (IOException e) {
+                // A candidate that cannot be read is not a copy
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Groups files with identical content. Files are first grouped by length, and only files sharing a length
+     * with another are hashed. Files that cannot be read are left out.
+     *
+     * @param paths the paths of the files
+     * @return the groups of two or more paths whose files have identical content
+     */
+    public List<List<String>> findDuplicates(Collection<String> paths) {
+        Map<Long, List<String>> byLength = new HashMap<>();
+        for (String path : new LinkedHashSet<>(paths)) {
+            File source = new File(path);
+            if (source.isFile()) byLength.computeIfAbsent(source.length(), length -> new ArrayList<>()).add(path);
+        }
+
+        List<List<String>> groups = new ArrayList<>();
+        for (List<String> sameLength : byLength.values()) {
+            if (sameLength.size() < 2) continue;
+
+            Map<Long, List<String>> byHash = new HashMap<>();
+            for (String path : sameLength) {
+                try {
+                    byHash.computeIfAbsent(hash(new File(path)), hash -> new ArrayList<>()).add(path);
+                } catch (IOException e) {
+                    System.err.println("Error hashing " + path + ": " + e.getMessage());
+                }
+            }
+            for (List<String> group : byHash.values()) {
+                if (group.size() > 1) groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Drops the hashes of files that are not referred to any more.
+     *
+     * @param paths the absolute paths of every photo that is still referred to
+     * @return the number of hashes dropped
+     */
+    public synchronized int retain(Set<String> paths) {
+        int removed = 0;
+        Iterator<String> keys = entries().keySet().iterator();
+        while (keys.hasNext()) {
+            if (!paths.contains(keys.next())) {
+                keys.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) dirty = true;
+        return removed;
+    }
+
+    /**
+     * Writes the index to its file if it changed. The index is written to a temporary file, forced to disk and
+     * moved into place, so a crash never leaves a partial index behind.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().modified);
+                out.writeLong(entry.getValue().length);
+                out.writeLong(entry.getValue().hash);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns the entries, reading them from the index file on first use. A missing or damaged file starts an
+     * empty index.
+     *
+     * @return the entries by absolute path
+     */
+    private Map<String, Entry> entries() {
+        if (entries != null) return entries;
+
+        entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return entries;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                entries.put(path, new Entry(in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (FileNotFoundException e) {
+            // No index yet
+        } catch (IOException e) {
+            System.err.println("Error reading content hash index: " + e.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Hashes a file's content with XXH64, mapping the file a window at a time.
+     *
+     * @param source the file
+     * @return the hash
+     * @throws IOException If the file cannot be read
+     */
+    public static long hashFile(File source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+
+            // Mix 32-byte stripes; only the last window can end in a partial stripe
+            MappedByteBuffer buffer = null;
+            int tail = 0; // Offset of the partial stripe in the last window
+            for (long position = 0; position < length; position += WINDOW) {
+                int size = (int) Math.min(WINDOW, length - position);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                for (tail = 0; tail + 32 <= size; tail += 32) {
+                    v1 = round(v1, buffer.getLong(tail));
+                    v2 = round(v2, buffer.getLong(tail + 8));
+                    v3 = round(v3, buffer.getLong(tail + 16));
+                    v4 = round(v4, buffer.getLong(tail + 24));
+                }
+            }
+
+            long hash;
+            if (length >= 32) {
+                hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                        + Long.rotateLeft(v4, 18);
+                hash = merge(hash, v1);
+                hash = merge(hash, v2);
+                hash = merge(hash, v3);
+                hash = merge(hash, v4);
+            } else {
+                hash = PRIME5;
+            }
+            hash += length;
+
+            // Mix the partial stripe
+            int end = buffer == null ? 0 : buffer.limit();
+            int i = tail;
+            for (; i + 8 <= end; i += 8) {
+                hash ^= round(0, buffer.getLong(i));
+                hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            }
+            if (i + 4 <= end) {
+                hash ^= (buffer.getInt(i) & 0xFFFFFFFFL) * PRIME1;
+                hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            for (; i < end; i++) {
+                hash ^= (buffer.get(i) & 0xFFL) * PRIME5;
+                hash = Long.rotateLeft(hash, 11) * PRIME1;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= PRIME2;
+            hash ^= hash >>> 29;
+            hash *= PRIME3;
+            hash ^= hash >>> 32;
+            return hash;
+        }
+    }
+
+    /**
+     * Mixes eight bytes of input into an accumulator.
+     *
+     * @param accumulator the accumulator
+     * @param input the input
+     * @return the new accumulator
+     */
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    /**
+     * Merges an accumulator into the hash once all stripes are mixed.
+     *
+     * @param hash the hash
+     * @param accumulator the accumulator
+     * @return the new hash
+     */
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+}
@@ -1,24 +1,65 @@
 package src;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The DataManager class is responsible for managing user data, including saving, loading, and removing user information,
  * as well as managing albums associated with the current user.
+ * <p>
+ * Each user is stored as a binary snapshot plus an append-only journal ({@code <user>.log}) of the changes made since
+ * that snapshot. The snapshot is a manifest ({@code <user>.dat}, see {@link CatalogCodec}) and one shard file per
+ * album in the {@code <user>.albums/} directory. Saving a loaded user only appends its new journal records; once the journal
+ * grows large it is compacted into a new snapshot, which rewrites only the shards of albums whose photos changed.
+ * Snapshots are committed atomically and carry checksums; the previous generation is kept ({@code <user>.dat.prev})
+ * and loaded instead if the current one turns out to be damaged. Several instances may share the data directory:
+ * writers lock {@code <user>.lock} and bump the version stamp in {@code <user>.ver}, while readers take no lock.
+ * Snapshots written with Java serialization or older catalog versions are still read, and are replaced on the next
+ * snapshot. A {@link UserIndex} ({@code users.idx}) summarizes every user so the user list never reads user files.
+ * Thumbnails of every user's photos are kept in a {@link ThumbnailStore} under {@code thumbs/}.
+ * </p>
  */
 public class DataManager {
 
     private static final String DATA_DIR = "data/"; // Directory to store user data files
+    private static final long COMPACT_MIN_BYTES = 64 * 1024; // Journal size that triggers compaction
+    private static final Object SAVE_LOCK = new Object(); // Serializes reads and writes of user files
+    private static final SaveService saver = new SaveService(); // Writes changes in the background
+    private static final UserIndex index = new UserIndex(new File(DATA_DIR + "users.idx")); // Summaries of all users
+    private static final UserCache cache = new UserCache(Runtime.getRuntime().maxMemory() / 4); // Recently loaded users
+    private static final ThumbnailStore thumbnails = new ThumbnailStore(new File(DATA_DIR + "thumbs")); // Shared by all users
+    private static final ContentHashIndex hashes = new ContentHashIndex(new File(DATA_DIR + "hashes.idx")); // Shared by all users
+    private static final int HASH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1); // Perceptual hashing
+    private static final long THUMBNAIL_COLLECT_INTERVAL_MS = 24L * 60 * 60 * 1000; // Time between thumbnail collections
     private static User currentUser; // The current user session
+    private static boolean journaling = true; // Whether saves append to a journal instead of rewriting the snapshot
+    private static boolean compression = false; // Whether new catalog files are written compressed
 
     /**
      * Gets the current user.
@@ -31,35 +72,383 @@ public class DataManager {
 
     /**
      * Sets the current user.
+     * Changes made to a journaled current user are saved in the background shortly after they happen.
      * 
      * @param currentUser The user to set as the current user.
      */
     public static void setCurrentUser(User currentUser) {
         DataManager.currentUser = currentUser;
+
+        if (currentUser != null && journaling && currentUser.getJournal() != null) {
+            currentUser.getJournal().setListener(() -> saver.changed(currentUser));
+        }
+    }
+
+    /**
+     * Sets the estimated heap size that recently loaded users may keep in memory between logins.
+     * Defaults to a quarter of the maximum heap.
+     * 
+     * @param bytes The budget in bytes.
+     */
+    public static void setUserCacheBudget(long bytes) {
+        cache.setBudget(bytes);
+    }
+
+    /**
+     * Enables or disables compression of newly written catalog files (see {@link BlockCompression}).
+     * Compressed and uncompressed files are told apart when read, so the setting can change at any time;
+     * existing files keep their format until they are rewritten.
+     * 
+     * @param enabled True to compress new manifests and shards.
+     */
+    public static void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+
+    /**
+     * Enables or disables journaled persistence. When disabled, users are saved on the calling thread and
+     * every save folds the changes into the snapshot immediately.
+     * 
+     * @param enabled True to append changes to a journal.
+     */
+    public static void setJournaling(boolean enabled) {
+        journaling = enabled;
     }
 
     /**
      * Saves the specified user to a file.
+     * If the user is journaled, only the changes made since the last save are appended to its journal,
+     * and the journal is compacted into a new snapshot once it has grown large enough.
+     * Safe to call from the background saver while the user is being edited, and while other instances of
+     * the application use the same data directory: the user's files are only written while holding its lock
+     * file, and its version stamp tells whether another instance saved the user since it was loaded. In that
+     * case the unsaved changes are appended on top of the other instance's, and a {@link SaveConflictException}
+     * reports that the loaded user is out of date.
      * 
      * @param user The user to save.
-     * @throws IOException If an I/O error occurs during the file operation.
+     * @throws SaveConflictException If the changes were merged with changes saved by another instance.
+     * @throws IOException           If an I/O error occurs during the file operation.
      */
     public static void saveUser(User user) throws IOException {
-        // Create the data directory if it does not exist
-        new File(DATA_DIR).mkdirs();
+        synchronized (SAVE_LOCK) {
+            // Create the data directory if it does not exist
+            new File(DATA_DIR).mkdirs();
+
+            String username = user.getUsername();
+            boolean conflict = false;
+            try (FileChannel lockFile = openLockFile(username)) {
+                lockFile.lock(); // Released when the channel is closed
+                long version = readVersion(username);
+                Journal journal = user.getJournal();
+                File snapshot = getUserFile(username);
 
-        ObjectOutputStream oos = null;
+                if (journal != null && snapshot.exists()) {
+                    if (journal.getSyncedVersion() != version || journal.getKnownLength() != journal.length()) {
+                        conflict = merge(username, journal);
+                    }
+                    journal.flush();
+                    if (!journaling || journal.length() > COMPACT_MIN_BYTES) {
+                        compact(username, journal);
+                    }
+                } else {
+                    writeSnapshot(user);
+                }
+
+                writeVersion(username, version + 1);
+                if (journal != null) {
+                    journal.setSyncedVersion(version + 1);
+                }
+            }
 
+            updateIndex(user);
+            if (conflict) {
+                cache.remove(username); // The next load reads the merged files
+                throw new SaveConflictException(username);
+            }
+            cache.saved(user, getFileStamp(username));
+        }
+    }
+
+    /**
+     * Brings a journal in step with files that may have been written by another instance, so pending changes
+     * can be appended on top of them. Called with the user's lock held.
+     * 
+     * @param username The user whose files changed.
+     * @param journal  The journal of the live user.
+     * @return True if the files hold changes the live user has not seen, false if they only needed repair.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static boolean merge(String username, Journal journal) throws IOException {
+        long[] epoch = new long[1];
         try {
-            oos = new ObjectOutputStream(new FileOutputStream(DATA_DIR + user.getUsername() + ".dat"));
-            oos.writeObject(user);
-        } finally {
-            if (oos != null) oos.close(); // Manual cleanup
+            readSnapshot(username, epoch, true);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Error reading user data for merge: " + username, e);
+        }
+
+        boolean sameSnapshot = epoch[0] == journal.getEpoch();
+        long seenLength = journal.getKnownLength();
+        journal.adopt(epoch[0]);
+        journal.load(true);
+        return !sameSnapshot || journal.getKnownLength() != seenLength;
+    }
+
+    /**
+     * Stores the summary of a user that has just been saved in the user index.
+     * The index is only a cache, so failing to write it does not fail the save.
+     * 
+     * @param user The saved user.
+     */
+    private static void updateIndex(User user) {
+        try {
+            index.put(summarize(user));
+        } catch (IOException e) {
+            System.err.println("Error updating user index for: " + user.getUsername());
+        }
+    }
+
+    /**
+     * Describes a user and its files for the user index. Only uses album counts, so no albums are loaded.
+     * 
+     * @param user The user to describe.
+     * @return The summary.
+     */
+    private static UserSummary summarize(User user) {
+        String username = user.getUsername();
+        long size = getUserFile(username).length() + getJournalFile(username).length();
+        File[] shards = getShardDir(username).listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                size += shard.length();
+            }
+        }
+
+        List<Album> albums = user.copyAlbums(); // The saver thread must not walk the live list
+        int photoCount = 0;
+        for (Album album : albums) {
+            photoCount += album.getPhotoCount();
+        }
+        return new UserSummary(username, size, albums.size(), photoCount, getLastModified(username));
+    }
+
+    /**
+     * Returns a value that changes whenever a user's files are written, used to tell whether a cached user
+     * still matches them.
+     * 
+     * @param username The username.
+     * @return The stamp.
+     */
+    private static long getFileStamp(String username) {
+        long stamp = readVersion(username);
+        stamp = 31 * stamp + getLastModified(username);
+        stamp = 31 * stamp + getUserFile(username).length();
+        return 31 * stamp + getJournalFile(username).length();
+    }
+
+    /**
+     * Returns the time a user's files were last written. Shards are always written before the manifest
+     * that references them, so only the manifest and the journal need to be checked.
+     * 
+     * @param username The username.
+     * @return The time in epoch milliseconds.
+     */
+    private static long getLastModified(String username) {
+        return Math.max(getUserFile(username).lastModified(), getJournalFile(username).lastModified());
+    }
+
+    /**
+     * Folds a user's journal into a new snapshot.
+     * The snapshot is rebuilt from the files rather than from the live objects, so edits made while it is
+     * written are not torn; they stay pending in the journal and go into the new log. The new snapshot always
+     * holds the user's tag index.
+     * 
+     * @param username The user to compact.
+     * @param journal  The journal of the live user, already flushed.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static void compact(String username, Journal journal) throws IOException {
+        User merged;
+        try {
+            merged = readUser(username, true);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Error reading user data for compaction: " + username, e);
+        }
+        merged.getTagIndex(); // Built once if the old snapshot had none, so the new one stores it
+
+        long epoch = nextEpoch(journal);
+        writeSnapshotFile(merged, epoch, false);
+        journal.rebase(epoch);
+    }
+
+    /**
+     * Writes a full snapshot of the live user and starts a new, empty journal for it.
+     * 
+     * @param user The user to write.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static void writeSnapshot(User user) throws IOException {
+        Journal journal = user.getJournal();
+        long epoch = nextEpoch(journal);
+        writeSnapshotFile(user, epoch, true);
+
+        if (journal != null) {
+            journal.reset(epoch);
+        } else {
+            getJournalFile(user.getUsername()).delete();
+        }
+    }
+
+    /**
+     * Returns an epoch for the next snapshot that is newer than the journal's.
+     * 
+     * @param journal The current journal, or null.
+     * @return The new epoch.
+     */
+    private static long nextEpoch(Journal journal) {
+        return Math.max(System.currentTimeMillis(), journal == null ? 0 : journal.getEpoch() + 1);
+    }
+
+    /**
+     * Writes a user's album shards and manifest.
+     * Albums whose photos are unchanged keep their shard, so a save only writes the albums it has to. Shards are
+     * never overwritten: changed albums get new shard files, and every new file is forced to disk before the
+     * manifest that references it is renamed into place. The manifest being replaced is kept as the previous
+     * generation ({@code <user>.dat.prev}), and only shards referenced by neither generation are deleted. Users
+     * loaded earlier may still have the old files mapped and must never see them truncated.
+     * 
+     * @param user       The user to write.
+     * @param epoch      The epoch identifying the journal that applies to this snapshot.
+     * @param rewriteAll True to write every album, for users whose shards may not exist on disk.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static void writeSnapshotFile(User user, long epoch, boolean rewriteAll) throws IOException {
+        String username = user.getUsername();
+        File shardDir = getShardDir(username);
+        shardDir.mkdirs();
+
+        List<String> shardNames = new ArrayList<>();
+        for (Album album : user.getAlbums()) {
+            String shardName = rewriteAll ? null : album.getCurrentShard();
+            if (shardName == null) {
+                shardName = epoch + "-" + shardNames.size() + ".alb";
+                try (FileOutputStream out = new FileOutputStream(new File(shardDir, shardName))) {
+                    CatalogCodec.writeShard(album, username, openCatalogStream(out));
+                    out.getFD().sync();
+                }
+            }
+            shardNames.add(shardName);
+        }
+        syncDirectory(shardDir);
+
+        File temp = new File(DATA_DIR + username + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            CatalogCodec.writeManifest(user, epoch, shardNames, openCatalogStream(out));
+            out.getFD().sync();
+        }
+
+        // Keep the current generation as the fallback, unless it is damaged and the fallback is still needed
+        File target = getUserFile(username);
+        File previous = getPreviousUserFile(username);
+        Set<String> keep = new HashSet<>(shardNames);
+        List<String> current = getReferencedShards(target);
+        if (current != null) {
+            keep.addAll(current);
+            Files.deleteIfExists(previous.toPath());
+            try {
+                Files.createLink(previous.toPath(), target.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(target.toPath(), previous.toPath());
+            }
+        } else {
+            List<String> fallback = getReferencedShards(previous);
+            if (fallback != null) keep.addAll(fallback);
+        }
+
+        commit(temp, target);
+
+        // Remove shards of albums that neither generation refers to
+        for (File shard : shardDir.listFiles()) {
+            if (isShardFile(shard) && !keep.contains(shard.getName())) {
+                shard.delete();
+            }
+        }
+    }
+
+    /**
+     * Wraps a file output for writing a catalog, compressing it if compression is enabled.
+     * The catalog writer flushes the stream when it is done, so the file can be forced to disk afterwards.
+     * 
+     * @param out The file output.
+     * @return The stream to write the catalog to.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static OutputStream openCatalogStream(FileOutputStream out) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        return compression ? BlockCompression.compress(buffered) : buffered;
+    }
+
+    /**
+     * Returns the shards a snapshot file refers to, checking the file on the way.
+     * Files in formats that predate checksums are taken as they are.
+     * 
+     * @param file The snapshot file.
+     * @return The shard names, empty if the snapshot has no shards, or null if the file is missing or damaged.
+     */
+    private static List<String> getReferencedShards(File file) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int magic = in.readInt();
+            boolean serialized = magic != CatalogCodec.MAGIC && magic != BlockCompression.MAGIC;
+            if (serialized || magic == CatalogCodec.MAGIC && in.readUnsignedShort() == 1) {
+                return new ArrayList<>(); // Serialized or version 1 snapshot
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        try {
+            return MappedCatalog.shardNames(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replaces a file with a temporary file that has already been forced to disk, then forces the
+     * rename itself to disk.
+     * 
+     * @param temp   The new contents.
+     * @param target The file to replace.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static void commit(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that files created or renamed in it survive a crash.
+     * Not every platform allows opening a directory; there the rename is left to the file system.
+     * 
+     * @param dir The directory.
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on Windows
         }
     }
 
     /**
      * Loads a user from a file based on their username.
+     * Pending background saves are written first so the loaded user reflects every change. A recently loaded
+     * user is returned from memory, as the same object, if its files have not changed since.
      * 
      * @param username The username of the user to load.
      * @return The user object, or null if the user does not exist.
@@ -67,12 +456,224 @@ public class DataManager {
      * @throws ClassNotFoundException If the class of a serialized object cannot be found.
      */
     public static User loadUser(String username) throws IOException, ClassNotFoundException {
-        File file = new File(DATA_DIR + username + ".dat");
+        saver.flush();
 
-        if (!file.exists()) return null;
+        synchronized (SAVE_LOCK) {
+            User user = cache.get(username, getFileStamp(username));
+            if (user == null) {
+                user = readUser(username, false);
+                if (user != null) cache.put(user, getFileStamp(username)); // Reading may repair the files
+            }
+            return user;
+        }
+    }
+
+    /**
+     * Checks whether a user has been saved, without reading any of its files.
+     * 
+     * @param username The username.
+     * @return True if the user exists.
+     */
+    public static boolean userExists(String username) {
+        return getUserFile(username).exists();
+    }
+
+    /**
+     * Reads a user's snapshot, replays its journal and attaches a journal for further changes.
+     * Readers never take the user's lock; they see the files as of some recent save.
+     * 
+     * @param username The username of the user to read.
+     * @param repair   True to repair damaged files on the way; only with the user's lock held.
+     * @return The user object, or null if the user does not exist.
+     * @throws IOException            If an I/O error occurs during the file operation.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    private static User readUser(String username, boolean repair) throws IOException, ClassNotFoundException {
+        if (!getUserFile(username).exists()) return null;
+
+        long version = readVersion(username); // Before the files, so a save that races with the read is seen as newer
+        long[] epoch = new long[1];
+        User user = readSnapshot(username, epoch, repair);
+
+        // Replay the changes made since the snapshot was written
+        Journal journal = new Journal(getJournalFile(username), epoch[0]);
+        for (Mutation mutation : journal.load(repair)) {
+            mutation.applyTo(user);
+        }
+
+        journal.setSyncedVersion(version);
+        user.attachJournal(journal);
+        return user;
+    }
+
+    /**
+     * Reads a user's snapshot, falling back to the previous generation if the current one is damaged.
+     * 
+     * @param username The username.
+     * @param epoch    Receives the snapshot epoch in its first element.
+     * @param repair   True to restore the previous generation over a damaged one; only with the user's lock held.
+     * @return The user object, without its journal replayed.
+     * @throws IOException            If an I/O error occurs or both generations are damaged.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    private static User readSnapshot(String username, long[] epoch, boolean repair)
+            throws IOException, ClassNotFoundException {
+        File file = getUserFile(username);
+        try {
+            return readSnapshot(file, epoch);
+        } catch (IOException e) {
+            // Go back to the previous generation; the journal belongs to the damaged one and is discarded
+            File previous = getPreviousUserFile(username);
+            if (!previous.exists()) throw e;
+            User user = readSnapshot(previous, epoch);
+            if (!repair) return user;
+
+            System.err.println("Snapshot of " + username + " is damaged, restoring the previous generation");
+            File temp = new File(DATA_DIR + username + ".tmp");
+            Files.copy(previous.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            commit(temp, file);
+            return user;
+        }
+    }
+
+    /**
+     * Reads a snapshot file in any of the supported formats.
+     * 
+     * @param file  The snapshot file.
+     * @param epoch Receives the snapshot epoch in its first element.
+     * @return The user object.
+     * @throws IOException            If an I/O error occurs or the file is damaged.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    private static User readSnapshot(File file, long[] epoch) throws IOException, ClassNotFoundException {
+        User user = CatalogCodec.read(file, epoch);
+        if (user == null) {
+            // Legacy snapshot written with Java serialization
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                user = (User) ois.readObject();
+                try {
+                    epoch[0] = ois.readLong();
+                } catch (EOFException e) {
+                    epoch[0] = 0; // Written before journaling existed
+                }
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Returns the snapshot file of a user.
+     * 
+     * @param username The username.
+     * @return The snapshot file.
+     */
+    private static File getUserFile(String username) {
+        return new File(DATA_DIR + username + ".dat");
+    }
+
+    /**
+     * Returns the previous generation of a user's snapshot file, kept as a fallback.
+     * 
+     * @param username The username.
+     * @return The previous snapshot file.
+     */
+    private static File getPreviousUserFile(String username) {
+        return new File(DATA_DIR + username + ".dat.prev");
+    }
+
+    /**
+     * Returns the directory holding a user's album shards.
+     * 
+     * @param username The username.
+     * @return The shard directory.
+     */
+    private static File getShardDir(String username) {
+        return new File(DATA_DIR + username + CatalogCodec.SHARD_DIR_SUFFIX);
+    }
+
+    /**
+     * Checks if a file is an album shard (ends with ".alb").
+     * Other files that happen to be in a shard directory are never deleted.
+     * 
+     * @param file The file to check.
+     * @return True if the file is an album shard, false otherwise.
+     */
+    private static boolean isShardFile(File file) {
+        return file.isFile() && file.getName().endsWith(".alb");
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            return (User) ois.readObject();
+    /**
+     * Returns the journal file of a user.
+     * 
+     * @param username The username.
+     * @return The journal file.
+     */
+    private static File getJournalFile(String username) {
+        return new File(DATA_DIR + username + ".log");
+    }
+
+    /**
+     * Returns the lock file of a user, which every writer locks. It is never deleted, since another instance may
+     * be waiting for its lock, and only the lock holder opens it: closing any other channel to a locked file
+     * releases the lock on some platforms.
+     * 
+     * @param username The username.
+     * @return The lock file.
+     */
+    private static File getLockFile(String username) {
+        return new File(DATA_DIR + username + ".lock");
+    }
+
+    /**
+     * Returns the file holding a user's version stamp, which every save increments.
+     * 
+     * @param username The username.
+     * @return The version file.
+     */
+    private static File getVersionFile(String username) {
+        return new File(DATA_DIR + username + ".ver");
+    }
+
+    /**
+     * Opens a user's lock file for locking, creating it if necessary. Closing the channel releases any lock
+     * taken through it.
+     * 
+     * @param username The username.
+     * @return The open channel.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static FileChannel openLockFile(String username) throws IOException {
+        return FileChannel.open(getLockFile(username).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads a user's version stamp. Needs no lock, since the stamp is a single aligned write.
+     * 
+     * @param username The username.
+     * @return The version stamp, 0 if the user has never been saved with one.
+     */
+    private static long readVersion(String username) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(getVersionFile(username)))) {
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a user's version stamp. Called with the user's lock held.
+     * 
+     * @param username The username.
+     * @param version  The version stamp.
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    private static void writeVersion(String username, long version) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(getVersionFile(username), "rw")) {
+            file.writeLong(version);
+            file.getFD().sync();
         }
     }
 
@@ -92,9 +693,38 @@ public class DataManager {
      * @param username The username of the user to remove.
      */
     public static void removeUser(String username) {
-        File file = new File(DATA_DIR + username + ".dat");
-        if (file.exists()) {
-            file.delete();
+        synchronized (SAVE_LOCK) {
+            cache.remove(username);
+            try (FileChannel lockFile = openLockFile(username)) {
+                lockFile.lock(); // Released when the channel is closed
+                File file = getUserFile(username);
+                if (file.exists()) {
+                    file.delete();
+                }
+                getPreviousUserFile(username).delete();
+                getJournalFile(username).delete();
+
+                File shardDir = getShardDir(username);
+                if (shardDir.isDirectory()) {
+                    for (File shard : shardDir.listFiles()) {
+                        if (isShardFile(shard)) {
+                            shard.delete();
+                        }
+                    }
+                    shardDir.delete(); // Only succeeds if nothing else was stored there
+                }
+
+                writeVersion(username, readVersion(username) + 1);
+            } catch (IOException e) {
+                System.err.println("Error removing user: " + username);
+                return;
+            }
+
+            try {
+                index.remove(username);
+            } catch (IOException e) {
+                System.err.println("Error updating user index for: " + username);
+            }
         }
     }
 
@@ -115,16 +745,45 @@ public class DataManager {
     }
 
     /**
-     * Saves the current user to a file.
+     * Saves the current user to a file, unless it has no unsaved changes.
      * 
      * @throws IOException If an I/O error occurs during the file operation.
      */
     public static void saveCurrentUser() throws IOException {
-        if (currentUser != null) {
+        if (currentUser != null && currentUser.hasUnsavedChanges()) {
+            saveUser(currentUser);
+        }
+    }
+
+    /**
+     * Requests that the current user's changes be saved soon.
+     * Does nothing if there are no unsaved changes; otherwise the save happens on the background saver,
+     * or right away on the calling thread when journaling is disabled.
+     * 
+     * @throws IOException If an I/O error occurs during a synchronous save.
+     */
+    public static void requestSave() throws IOException {
+        if (currentUser == null || !currentUser.hasUnsavedChanges()) return;
+
+        if (journaling) {
+            saver.changed(currentUser);
+        } else {
             saveUser(currentUser);
         }
     }
 
+    /**
+     * Writes every pending background save and waits for it to finish.
+     * Called before the application exits.
+     * 
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    public static void flush() throws IOException {
+        saver.flush();
+        saveCurrentUser();
+        hashes.save();
+    }
+
     /**
      * Loads all users from the data directory.
      * 
@@ -153,6 +812,7 @@ public class DataManager {
 
     /**
      * Gets a list of all users.
+     * Every user is read from disk; use {@link #getUserSummaries()} to only list them.
      * 
      * @return A list of all user objects.
      */
@@ -160,6 +820,55 @@ public class DataManager {
         return new ArrayList<User>(loadAllUsers().values());
     }
 
+    /**
+     * Gets the summaries of all users from the user index.
+     * Users whose files changed since they were indexed, or that are missing from the index, are read and
+     * re-indexed; every other user is listed without reading its files.
+     * 
+     * @return The summaries, ordered by username.
+     */
+    public static List<UserSummary> getUserSummaries() {
+        synchronized (SAVE_LOCK) {
+            List<UserSummary> updated = new ArrayList<>();
+            Set<String> existing = new HashSet<>();
+            File[] files = new File(DATA_DIR).listFiles();
+
+            if (files != null) {
+                for (File userFile : files) {
+                    if (!isUserDataFile(userFile)) continue;
+
+                    String username = userFile.getName().replace(".dat", "");
+                    existing.add(username);
+                    UserSummary summary = index.get(username);
+                    if (summary != null && summary.getLastModified() == getLastModified(username)) continue;
+
+                    try {
+                        updated.add(summarize(readUser(username, false)));
+                    } catch (Exception e) {
+                        System.err.println("Error loading user from file: " + userFile.getName());
+                    }
+                }
+            }
+
+            try {
+                index.update(updated, existing);
+            } catch (IOException e) {
+                System.err.println("Error writing user index");
+            }
+            return index.getAll();
+        }
+    }
+
+    /**
+     * Gets the summary of a user from the user index.
+     * 
+     * @param username The username.
+     * @return The summary, or null if the user has not been saved.
+     */
+    public static UserSummary getUserSummary(String username) {
+        return index.get(username);
+    }
+
     /**
      * Gets the albums of the current user.
      * 
@@ -171,6 +880,7 @@ public class DataManager {
 
     /**
      * Saves the current user's album data.
+     * Changes to the album are already recorded in the user's journal, so this appends them like any other save.
      * 
      * @param album The album to save.
      * @throws IOException If an I/O error occurs during the file operation.
@@ -178,4 +888,330 @@ public class DataManager {
     public static void saveAlbum(Album album) throws IOException {
         saveUser(currentUser);
     }
+
+    /**
+     * Gets the on-disk thumbnail store shared by all users.
+     * 
+     * @return The thumbnail store.
+     */
+    public static ThumbnailStore getThumbnailStore() {
+        return thumbnails;
+    }
+
+    /**
+     * Returns the content hashes of photo files, shared by all users.
+     * 
+     * @return The content hash index.
+     */
+    public static ContentHashIndex getContentHashIndex() {
+        return hashes;
+    }
+
+    /**
+     * Finds photos of a user whose files have identical content, across all of the user's albums. A file in
+     * several albums is only reported if another file has the same content. Runs on the thread that edits the
+     * user; views that compare files in the background call {@link #getPhotosByFile(User)},
+     * {@link #findDuplicateFiles(Collection)} and {@link #groupPhotos(List, Map)} themselves.
+     * 
+     * @param user The user.
+     * @return The groups of two or more photos with identical files, one photo per file.
+     */
+    public static List<List<Photo>> findDuplicates(User user) {
+        Map<String, Photo> photos = getPhotosByFile(user);
+        return groupPhotos(findDuplicateFiles(photos.keySet()), photos);
+    }
+
+    /**
+     * Returns one photo of a user for each file, loading all of the user's albums. Runs on the thread that
+     * edits the user.
+     * 
+     * @param user The user.
+     * @return The photos by absolute file path, in album order.
+     */
+    public static Map<String, Photo> getPhotosByFile(User user) {
+        Map<String, Photo> photos = new LinkedHashMap<>();
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                photos.putIfAbsent(photo.getFile().getAbsolutePath(), photo);
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Finds files with identical content by their content hashes, hashing files first if needed. Only reads
+     * the files, not any photo, so it may run on any thread.
+     * 
+     * @param paths The absolute paths of the files.
+     * @return The groups of two or more paths with identical content.
+     */
+    public static List<List<String>> findDuplicateFiles(Collection<String> paths) {
+        List<List<String>> groups = hashes.findDuplicates(paths);
+        try {
+            hashes.save();
+        } catch (IOException e) {
+            System.err.println("Error saving content hashes: " + e.getMessage());
+        }
+        return groups;
+    }
+
+    /**
+     * Turns groups of file paths back into the photos of those files.
+     * 
+     * @param groups The groups of paths, from {@link #findDuplicateFiles(Collection)}.
+     * @param photos The photos by path, from {@link #getPhotosByFile(User)}.
+     * @return The groups of photos.
+     */
+    public static List<List<Photo>> groupPhotos(List<List<String>> groups, Map<String, Photo> photos) {
+        List<List<Photo>> photoGroups = new ArrayList<>();
+        for (List<String> paths : groups) {
+            List<Photo> group = new ArrayList<>();
+            for (String path : paths) {
+                group.add(photos.get(path));
+            }
+            photoGroups.add(group);
+        }
+        return photoGroups;
+    }
+
+    /**
+     * Computes the perceptual hash of every photo of a user that has none, or whose file changed since it was
+     * hashed. Needs no display, so a batch job can load a user, call this and save the user.
+     * 
+     * @param user The user.
+     * @return The number of photos hashed.
+     */
+    public static int updatePerceptualHashes(User user) {
+        return updatePerceptualHashes(getAllPhotos(user));
+    }
+
+    /**
+     * Computes the perceptual hash of every given photo that has none, or whose file changed since it was
+     * hashed, on the calling thread, which must be the one that edits the photos. Views that hash in the
+     * background call {@link #listPerceptualHashFiles(Collection)}, {@link #computePerceptualHashes(Map)} and
+     * {@link #applyPerceptualHashes(Collection, Map)} themselves, so only the middle step leaves the UI thread.
+     * 
+     * @param photos The photos.
+     * @return The number of photos hashed.
+     */
+    public static int updatePerceptualHashes(Collection<Photo> photos) {
+        return applyPerceptualHashes(photos, computePerceptualHashes(listPerceptualHashFiles(photos)));
+    }
+
+    /**
+     * Lists the files of photos with the modification time their perceptual hash was computed for. Only reads
+     * the photos, so it runs on the thread that edits them.
+     * 
+     * @param photos The photos.
+     * @return The modification time each file was hashed for, 0 if it has no hash.
+     */
+    public static Map<File, Long> listPerceptualHashFiles(Collection<Photo> photos) {
+        Map<File, Long> hashedFor = new LinkedHashMap<>();
+        for (Photo photo : photos) {
+            // Copies of a file that disagree are all hashed again
+            hashedFor.merge(photo.getFile(), photo.getPerceptualHashModified(), (a, b) -> a.equals(b) ? a : 0L);
+        }
+        return hashedFor;
+    }
+
+    /**
+     * Computes the perceptual hash of every file that changed since it was hashed, on several threads. Only
+     * reads the files, not the photos, so it may run on any thread. Files that cannot be read are skipped.
+     * 
+     * @param hashedFor The modification time each file was last hashed for, from
+     *                  {@link #listPerceptualHashFiles(Collection)}.
+     * @return The hash and the modification time it was computed for, of each file that was hashed.
+     */
+    public static Map<File, long[]> computePerceptualHashes(Map<File, Long> hashedFor) {
+        Map<File, Long> stale = new LinkedHashMap<>(); // Modification time of each file to hash
+        for (Map.Entry<File, Long> entry : hashedFor.entrySet()) {
+            long modified = entry.getKey().lastModified();
+            if (modified != 0 && entry.getValue() != modified) stale.put(entry.getKey(), modified);
+        }
+        Map<File, long[]> hashes = new HashMap<>();
+        if (stale.isEmpty()) return hashes;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(HASH_THREADS, stale.size()), task -> {
+            Thread thread = new Thread(task, "perceptual-hash");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<File, Future<Long>> pending = new LinkedHashMap<>();
+            for (File file : stale.keySet()) {
+                pending.put(file, pool.submit(() -> PerceptualHash.compute(file)));
+            }
+
+            for (Map.Entry<File, Future<Long>> entry : pending.entrySet()) {
+                File file = entry.getKey();
+                try {
+                    hashes.put(file, new long[] { entry.getValue().get(), stale.get(file) });
+                } catch (ExecutionException e) {
+                    System.err.println("Error hashing " + file.getPath() + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return hashes;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets the perceptual hashes computed for the files of photos, which records them in the owner's journal.
+     * Runs on the thread that edits the photos.
+     * 
+     * @param photos The photos.
+     * @param hashes The hashes from {@link #computePerceptualHashes(Map)}.
+     * @return The number of photos hashed.
+     */
+    public static int applyPerceptualHashes(Collection<Photo> photos, Map<File, long[]> hashes) {
+        int hashed = 0;
+        for (Photo photo : photos) {
+            long[] hash = hashes.get(photo.getFile());
+            if (hash == null || (photo.getPerceptualHash() == hash[0]
+                    && photo.getPerceptualHashModified() == hash[1])) {
+                continue; // Not hashed, or the same photo through another album
+            }
+            photo.setPerceptualHash(hash[0], hash[1]);
+            hashed++;
+        }
+        return hashed;
+    }
+
+    /**
+     * Finds the photos of a user that look like a given photo, such as other shots of a burst or re-encoded
+     * copies. Photos are hashed first if needed.
+     * 
+     * @param user        The user whose albums are searched.
+     * @param photo       The photo.
+     * @param maxDistance The most bits the perceptual hashes may differ in, see {@link PerceptualHash}.
+     * @return The other photos that look alike, most alike first, one photo per file.
+     */
+    public static List<Photo> findSimilarPhotos(User user, Photo photo, int maxDistance) {
+        List<Photo> photos = getAllPhotos(user);
+        updatePerceptualHashes(photos);
+        updatePerceptualHashes(List.of(photo));
+        return findSimilarPhotos(photos, photo, maxDistance);
+    }
+
+    /**
+     * Finds the photos among already hashed ones that look like a given photo.
+     * 
+     * @param photos      The photos to search.
+     * @param photo       The photo.
+     * @param maxDistance The most bits the perceptual hashes may differ in, see {@link PerceptualHash}.
+     * @return The other photos that look alike, most alike first, one photo per file; none if the photo has no
+     *         hash.
+     */
+    public static List<Photo> findSimilarPhotos(Collection<Photo> photos, Photo photo, int maxDistance) {
+        if (!photo.hasPerceptualHash()) return new ArrayList<>();
+        return new SimilarityIndex(photos).findSimilar(photo, maxDistance);
+    }
+
+    /**
+     * Groups the photos of an album that look alike. Photos are hashed first if needed.
+     * 
+     * @param album       The album.
+     * @param maxDistance The most bits the perceptual hashes of neighbouring photos may differ in.
+     * @return The groups of two or more photos that look alike.
+     */
+    public static List<List<Photo>> findNearDuplicates(Album album, int maxDistance) {
+        List<Photo> photos = album.getPhotos();
+        updatePerceptualHashes(photos);
+        return new SimilarityIndex(photos).findGroups(maxDistance);
+    }
+
+    /**
+     * Returns every photo of a user, loading all of the user's albums. A photo in several albums is listed once
+     * per album.
+     * 
+     * @param user The user.
+     * @return The photos.
+     */
+    public static List<Photo> getAllPhotos(User user) {
+        List<Photo> photos = new ArrayList<>();
+        for (Album album : user.getAlbums()) {
+            photos.addAll(album.getPhotos());
+        }
+        return photos;
+    }
+
+    /**
+     * Searches a user's photos with a query written in the expression language of {@link Query}, such as
+     * {@code person=alice AND (album:Trips OR date:2023-06-01..2023-08-31) AND NOT caption:blurry}.
+     * Tags, dates and albums are answered from the user's tag index, which is built first if needed.
+     * 
+     * @param user  The user whose albums are searched.
+     * @param query The query text; empty text matches every photo.
+     * @return The matching photos, one photo per file.
+     * @throws IllegalArgumentException If the query is not valid.
+     */
+    public static List<Photo> search(User user, String query) {
+        return Query.parse(query).run(user);
+    }
+
+    /**
+     * Deletes stored thumbnails that no photo of any user refers to any more, or whose file has changed, and
+     * drops the content hashes of files no photo refers to. Every user's albums are read, so unless forced this
+     * only runs once the last collection is a day old. Thumbnails of photos added but not saved yet may be
+     * deleted; they are simply made again.
+     * 
+     * @param force True to collect even if the last collection is recent.
+     * @return The number of files deleted, or -1 if the collection was not due.
+     */
+    public static int collectThumbnails(boolean force) {
+        if (!force && System.currentTimeMillis() - thumbnails.getLastCollected() < THUMBNAIL_COLLECT_INTERVAL_MS) {
+            return -1;
+        }
+
+        try {
+            saver.flush();
+        } catch (IOException e) {
+            System.err.println("Error saving before collecting thumbnails");
+        }
+
+        Set<String> paths = new HashSet<>();
+        synchronized (SAVE_LOCK) {
+            File[] files = new File(DATA_DIR).listFiles();
+            if (files != null) {
+                for (File userFile : files) {
+                    if (!isUserDataFile(userFile)) continue;
+
+                    String username = userFile.getName().replace(".dat", "");
+                    try {
+                        User user = readUser(username, false); // Not the cached object, which views may be changing
+                        if (user != null) addPhotoPaths(user, paths);
+                    } catch (Exception e) {
+                        // Keep every thumbnail rather than lose those of a user that cannot be read
+                        System.err.println("Error loading user from file: " + userFile.getName());
+                        return 0;
+                    }
+                }
+            }
+        }
+        hashes.retain(paths);
+        try {
+            hashes.save();
+        } catch (IOException e) {
+            System.err.println("Error saving content hashes: " + e.getMessage());
+        }
+        return thumbnails.collect(paths);
+    }
+
+    /**
+     * Adds the absolute paths of all photos of a user to a set.
+     * 
+     * @param user  The user.
+     * @param paths The set to add to.
+     */
+    private static void addPhotoPaths(User user, Set<String> paths) {
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                paths.add(photo.getFile().getAbsolutePath());
+            }
+        }
+    }
 }
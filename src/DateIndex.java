@@ -0,0 +1,225 @@
+package src;
+
+import java.util.Arrays;
+
+/**
+ * Photos ordered by the date they were taken, for range queries without looking at the photos.
+ * <p>
+ * Dates are kept as a sorted array of epoch milliseconds with a parallel array of photo IDs, as handed out by
+ * {@link TagIndex}, so a range is found by two binary searches and the earliest and latest dates are the ends of
+ * the array. Photos taken at the same time are ordered by ID.
+ * </p>
+ */
+public class DateIndex {
+
+    private long[] times;
+    private int[] ids;
+    private int size;
+
+    /**
+     * Constructs an empty index.
+     */
+    public DateIndex() {
+        this(new long[16], new int[16], 0);
+    }
+
+    /**
+     * Constructs an index over sorted arrays.
+     *
+     * @param times the dates, sorted
+     * @param ids the photo ID of each date
+     * @param size the number of entries used
+     */
+    private DateIndex(long[] times, int[] ids, int size) {
+        this.times = times;
+        this.ids = ids;
+        this.size = size;
+    }
+
+    /**
+     * Builds an index of photos in any order.
+     *
+     * @param times the date of each photo; sorted in place along with the IDs
+     * @param ids the photo IDs
+     * @param size the number of photos
+     * @return the index
+     */
+    static DateIndex of(long[] times, int[] ids, int size) {
+        sort(times, ids, size);
+        return new DateIndex(times, ids, size);
+    }
+
+    /**
+     * Adds a photo.
+     *
+     * @param time the date it was taken, in epoch milliseconds
+     * @param id its ID
+     */
+    public void add(long time, int id) {
+        int at = position(time, id);
+        if (size == times.length) {
+            times = Arrays.copyOf(times, Math.max(16, size * 2));
+            ids = Arrays.copyOf(ids, times.length);
+        }
+        System.arraycopy(times, at, times, at + 1, size - at);
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        times[at] = time;
+        ids[at] = id;
+        size++;
+    }
+
+    /**
+     * Removes a photo.
+     *
+     * @param time the date it was added with
+     * @param id its ID
+     * @return true if it was present
+     */
+    public boolean remove(long time, int id) {
+        int at = position(time, id);
+        if (at == size || times[at] != time || ids[at] != id) return false;
+        System.arraycopy(times, at + 1, times, at, size - at - 1);
+        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes many photos in one pass.
+     *
+     * @param removed the IDs of the photos
+     */
+    public void removeAll(CompressedBitmap removed) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (removed.contains(ids[i])) continue;
+            times[kept] = times[i];
+            ids[kept++] = ids[i];
+        }
+        size = kept;
+    }
+
+    /**
+     * Returns the photos taken within a range of dates.
+     *
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the IDs of the photos
+     */
+    public CompressedBitmap find(long from, long to) {
+        if (from > to) return new CompressedBitmap();
+        int start = position(from, Integer.MIN_VALUE);
+        int end = position(to, Integer.MAX_VALUE);
+
+        // IDs come out of date order, so they are set in a plain bitmap first
+        int maxId = -1;
+        for (int i = start; i < end; i++) maxId = Math.max(maxId, ids[i]);
+        long[] words = new long[(maxId >>> 6) + 1];
+        for (int i = start; i < end; i++) words[ids[i] >>> 6] |= 1L << ids[i];
+        return CompressedBitmap.fromWords(words);
+    }
+
+    /**
+     * Counts the photos taken within a range of dates, without listing them.
+     *
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the number of photos
+     */
+    public int count(long from, long to) {
+        if (from > to) return 0;
+        return position(to, Integer.MAX_VALUE) - position(from, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Returns the number of photos in the index.
+     *
+     * @return the photo count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the index is empty.
+     *
+     * @return true if it holds no photos
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the date of the earliest photo.
+     *
+     * @return the date in epoch milliseconds; undefined if the index is empty
+     */
+    public long getEarliest() {
+        return times[0];
+    }
+
+    /**
+     * Returns the date of the latest photo.
+     *
+     * @return the date in epoch milliseconds; undefined if the index is empty
+     */
+    public long getLatest() {
+        return times[size - 1];
+    }
+
+    /**
+     * Finds where an entry belongs in the sorted order.
+     *
+     * @param time the date
+     * @param id the photo ID
+     * @return the position of the first entry not before it
+     */
+    private int position(long time, int id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time || (times[middle] == time && ids[middle] < id)) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Sorts entries by date, then ID, with a bottom-up merge sort over both arrays.
+     *
+     * @param times the dates
+     * @param ids the photo IDs
+     * @param size the number of entries
+     */
+    private static void sort(long[] times, int[] ids, int size) {
+        long[] timesFrom = times;
+        int[] idsFrom = ids;
+        long[] timesTo = new long[size];
+        int[] idsTo = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int i = start;
+                int j = middle;
+                for (int k = start; k < end; k++) {
+                    boolean left = j == end || (i < middle && (timesFrom[i] < timesFrom[j]
+                            || (timesFrom[i] == timesFrom[j] && idsFrom[i] <= idsFrom[j])));
+                    timesTo[k] = left ? timesFrom[i] : timesFrom[j];
+                    idsTo[k] = left ? idsFrom[i++] : idsFrom[j++];
+                }
+            }
+            long[] swapTimes = timesFrom;
+            timesFrom = timesTo;
+            timesTo = swapTimes;
+            int[] swapIds = idsFrom;
+            idsFrom = idsTo;
+            idsTo = swapIds;
+        }
+        if (timesFrom != times) {
+            System.arraycopy(timesFrom, 0, times, 0, size);
+            System.arraycopy(idsFrom, 0, ids, 0, size);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package src;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Decodes images on a small pool of background threads, so views never block the JavaFX Application Thread
+ * on disk reads or decoding.
+ * <p>
+ * Each load returns a {@link Request} right away and hands the image to its callback on the JavaFX Application
+ * Thread once it is ready. A request that is cancelled before its turn is never decoded, and one cancelled
+ * while decoding is never delivered, so views cancel the requests of tiles that are no longer shown.
+ * </p>
+ */
+public class ImageLoader {
+
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ImageLoader shared = new ImageLoader(THREADS);
+    private static Image placeholder; // Created on first use
+
+    /**
+     * A pending or finished load.
+     */
+    public static class Request {
+        private final Future<?> future;
+        private volatile boolean cancelled;
+
+        /**
+         * Constructs a request.
+         *
+         * @param future the queued decode, or null if there is none to cancel
+         */
+        Request(Future<?> future) {
+            this.future = future;
+        }
+
+        /**
+         * Cancels the load. The callback is not called after this returns, if it is called on the JavaFX
+         * Application Thread.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(false);
+        }
+
+        /**
+         * Checks whether the load was cancelled.
+         *
+         * @return true if it was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructs a loader.
+     *
+     * @param threads the number of images decoded at once
+     */
+    public ImageLoader(int threads) {
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-loader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // Leave the UI ahead
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the loader shared by all views.
+     *
+     * @return the shared loader
+     */
+    public static ImageLoader getShared() {
+        return shared;
+    }
+
+    /**
+     * Returns a neutral image to show until the real one is loaded. Views scale it to the tile size.
+     *
+     * @return the placeholder
+     */
+    public static synchronized Image getPlaceholder() {
+        if (placeholder == null) {
+            WritableImage image = new WritableImage(1, 1);
+            PixelWriter writer = image.getPixelWriter();
+            writer.setColor(0, 0, Color.gray(0.9));
+            placeholder = image;
+        }
+        return placeholder;
+    }
+
+    /**
+     * Loads the thumbnail of a photo. A thumbnail already held in memory is delivered before this returns.
+     *
+     * @param photo the photo
+     * @param size the maximum width and height of the thumbnail
+     * @param callback receives the thumbnail, or null if it cannot be read
+     * @return the request
+     */
+    public Request loadThumbnail(Photo photo, int size, Consumer<Image> callback) {
+        Image cached = ThumbnailCache.getShared().getIfCached(photo.getFilePath(), size, size);
+        if (cached != null) {
+            callback.accept(cached);
+            return new Request(null);
+        }
+        return submit(() -> photo.getThumbnail(size), callback);
+    }
+
+    /**
+     * Loads a photo at full resolution.
+     *
+     * @param photo the photo
+     * @param callback receives the image, or null if it cannot be read
+     * @return the request
+     */
+    public Request loadImage(Photo photo, Consumer<Image> callback) {
+        return submit(photo::getImage, callback);
+    }
+
+    /**
+     * Queues a decode and delivers its result on the JavaFX Application Thread unless cancelled.
+     *
+     * @param decoder produces the image on a background thread
+     * @param callback receives the image
+     * @return the request
+     */
+    private Request submit(Supplier<Image> decoder, Consumer<Image> callback) {
+        Request[] request = new Request[1];
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            Image image = decoder.get();
+            Platform.runLater(() -> {
+                if (!request[0].isCancelled()) callback.accept(image);
+            });
+        }, null);
+        request[0] = new Request(task);
+        executor.execute(task);
+        return request[0];
+    }
+}
@@ -0,0 +1,294 @@
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.scene.image.Image;
+
+/**
+ * Accounts for the decoded pixels of every image the application holds, against one budget.
+ * <p>
+ * Image caches register as a {@link Consumer} and reserve the bytes of an image before decoding it. When a
+ * reservation does not fit, consumers are asked to give up images less important than the one requested, least
+ * important first: images that are merely cached, then images kept near the one on display. If the budget is
+ * still exhausted, only part of the reservation is granted and the requester decodes at a lower resolution, or
+ * skips the decode if it was only speculative. Consumers release bytes as they drop images.
+ * </p>
+ */
+public class ImageMemory {
+
+    private static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    private static final ImageMemory shared = new ImageMemory(DEFAULT_BUDGET);
+    private static final Cleaner cleaner = Cleaner.create(); // Releases images nobody else accounts for
+
+    /**
+     * How important an image is, most important first.
+     */
+    public enum Priority {
+        /** Shown on screen right now. */
+        VISIBLE,
+        /** Likely to be shown next, such as prefetched neighbours. */
+        NEAR,
+        /** Kept in case it is needed again. */
+        CACHED
+    }
+
+    /**
+     * An image cache whose images are accounted for.
+     */
+    public interface Consumer {
+
+        /**
+         * Returns a name for monitoring.
+         *
+         * @return the name
+         */
+        String getName();
+
+        /**
+         * Returns the decoded pixel bytes the consumer currently holds.
+         *
+         * @return the size in bytes
+         */
+        long getBytes();
+
+        /**
+         * Drops images of the given priority, or less important ones, until the given number of bytes has been
+         * released. Called without any lock of the governor held.
+         *
+         * @param bytes the bytes wanted
+         * @param priority the most important priority that may be dropped
+         */
+        void reclaim(long bytes, Priority priority);
+    }
+
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    private final AtomicLong used = new AtomicLong();
+    private volatile long budget;
+
+    /**
+     * Constructs a governor.
+     *
+     * @param budget the decoded pixel bytes all images together may take up
+     */
+    public ImageMemory(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the governor shared by all image caches.
+     *
+     * @return the shared governor
+     */
+    public static ImageMemory getShared() {
+        return shared;
+    }
+
+    /**
+     * Registers an image cache so it is asked to give up images under pressure.
+     *
+     * @param consumer the cache
+     */
+    public void register(Consumer consumer) {
+        consumers.add(consumer);
+    }
+
+    /**
+     * Changes the budget. Images are only dropped the next time a reservation does not fit.
+     *
+     * @param budget the decoded pixel bytes all images together may take up
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the budget.
+     *
+     * @return the size in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the decoded pixel bytes currently accounted for.
+     *
+     * @return the size in bytes
+     */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    /**
+     * Returns the bytes held by each registered cache, for monitoring. Images accounted for by
+     * {@link #decode(File)} are only included in {@link #getUsedBytes()}.
+     *
+     * @return the size in bytes by cache name
+     */
+    public Map<String, Long> getUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        for (Consumer consumer : consumers) {
+            usage.merge(consumer.getName(), consumer.getBytes(), Long::sum);
+        }
+        return usage;
+    }
+
+    /**
+     * Reserves the bytes of an image about to be decoded, asking caches to give up less important images if
+     * needed. The caller must release what it was granted once it drops the image, and adjust the reservation
+     * with {@link #allocate(long)} or {@link #release(long)} if the decoded image turns out larger or smaller.
+     *
+     * @param bytes the bytes wanted
+     * @param priority the importance of the image
+     * @return the bytes granted, which is less than requested when memory is short
+     */
+    public long reserve(long bytes, Priority priority) {
+        if (tryAllocate(bytes)) return bytes;
+
+        // Reclaim the least important images first, but never ones as important as the request
+        Priority[] levels = Priority.values();
+        for (int level = levels.length - 1; level > priority.ordinal(); level--) {
+            for (Consumer consumer : consumers) {
+                long missing = used.get() + bytes - budget;
+                if (missing <= 0) break;
+                consumer.reclaim(missing, levels[level]);
+            }
+            if (tryAllocate(bytes)) return bytes;
+        }
+
+        // Grant what is left
+        while (true) {
+            long current = used.get();
+            long granted = Math.max(0, Math.min(bytes, budget - current));
+            if (used.compareAndSet(current, current + granted)) return granted;
+        }
+    }
+
+    /**
+     * Accounts for bytes unconditionally, such as an image that decoded larger than reserved.
+     *
+     * @param bytes the bytes
+     */
+    public void allocate(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * Releases bytes of an image that was dropped, or of a reservation that was not used.
+     *
+     * @param bytes the bytes
+     */
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Decodes an image file at full resolution, or smaller if memory is short. The image is accounted for as
+     * visible until it is garbage collected, since no cache keeps it.
+     *
+     * @param file the image file
+     * @return the image, or null if the file cannot be read
+     */
+    public Image decode(File file) {
+        int[] size = readSize(file);
+        long wanted = size == null ? 0 : (long) size[0] * size[1] * 4;
+        long granted = size == null ? 0 : reserve(wanted, Priority.VISIBLE);
+
+        Image image;
+        try (InputStream in = new FileInputStream(file)) {
+            if (size == null || granted >= wanted) {
+                image = new Image(in);
+            } else {
+                double scale = getScale(wanted, granted);
+                image = new Image(in, Math.max(1, size[0] * scale), Math.max(1, size[1] * scale), true, true);
+            }
+        } catch (IOException e) {
+            release(granted);
+            return null;
+        }
+        if (image.isError()) {
+            release(granted);
+            return null;
+        }
+
+        return track(image, granted);
+    }
+
+    /**
+     * Accounts for an image that no cache keeps, until it is garbage collected.
+     *
+     * @param image the image
+     * @param reserved the bytes reserved for it, which are adjusted to its actual size
+     * @return the image
+     */
+    public Image track(Image image, long reserved) {
+        long bytes = ThumbnailCache.pixelBytes(image);
+        allocate(bytes - reserved);
+        cleaner.register(image, () -> release(bytes));
+        return image;
+    }
+
+    /**
+     * Returns the factor to scale both sides of an image by so its pixels fit in the granted bytes. Images are
+     * never scaled below a quarter of their size, even if that exceeds the grant.
+     *
+     * @param wanted the bytes of the image at the requested size
+     * @param granted the bytes granted
+     * @return the scale, between 0.25 and 1
+     */
+    public static double getScale(long wanted, long granted) {
+        if (wanted <= 0 || granted >= wanted) return 1;
+        return Math.max(0.25, Math.sqrt((double) granted / wanted));
+    }
+
+    /**
+     * Tries to account for bytes within the budget.
+     *
+     * @param bytes the bytes
+     * @return true if they fit and were accounted for
+     */
+    private boolean tryAllocate(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > budget) return false;
+            if (used.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    /**
+     * Reads the pixel size of an image file from its header, without decoding it.
+     *
+     * @param file the image file
+     * @return the width and height, or null if the format is not recognised
+     */
+    private static int[] readSize(File file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package src;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+/**
+ * Decodes the photos around the one on display ahead of time, so stepping to the next or previous photo shows
+ * it at once.
+ * <p>
+ * Every time a photo is shown, the photos following it in the direction the user is moving are queued for
+ * decoding at display size, plus a few in the other direction. Decodes run one at a time on a background thread,
+ * nearest photo first, and queued photos that fall out of the window are dropped. Decoded images are kept in
+ * least recently used order within their own budget, apart from the {@link ThumbnailCache}; images in the current
+ * window are never evicted to fit that budget.
+ * </p>
+ * <p>
+ * Decodes are also accounted for by the {@link ImageMemory} governor, with the photo on display as visible and
+ * the rest of the window as near. When memory is short, neighbours are not prefetched and the photo on display
+ * is decoded at a lower resolution, then decoded again at full size the next time it is shown. The governor may
+ * have the prefetcher drop images outside the window, or neighbours, for more important images.
+ * </p>
+ */
+public class ImagePrefetcher implements ImageMemory.Consumer {
+
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024; // Decoded pixel bytes kept by default
+    private static final int AHEAD = 3; // Photos prefetched in the direction of navigation
+    private static final int BEHIND = 1; // Photos prefetched in the opposite direction
+    private static final ImagePrefetcher shared = new ImagePrefetcher(DEFAULT_BUDGET, AHEAD, BEHIND);
+
+    /**
+     * A photo decoded or to be decoded at a given size.
+     */
+    private static class Entry {
+        final Photo photo;
+        final String key;
+        final int width;
+        final int height;
+        long modified;
+        long length;
+        Image image; // Null until decoded
+        boolean decoding;
+        boolean failed;
+        boolean degraded; // Decoded smaller than asked for, for lack of memory
+        final List<Consumer<Image>> waiters = new ArrayList<>();
+
+        /**
+         * Constructs an entry that has not been decoded.
+         *
+         * @param photo the photo
+         * @param key the cache key
+         * @param width the maximum width
+         * @param height the maximum height
+         */
+        Entry(Photo photo, String key, int width, int height) {
+            this.photo = photo;
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final LinkedList<Entry> queue = new LinkedList<>(); // Entries to decode, nearest first
+    private final List<Entry> window = new ArrayList<>(); // Entries around the photo on display
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final ImageMemory memory = ImageMemory.getShared();
+    private final int ahead;
+    private final int behind;
+    private long budget;
+    private long totalBytes;
+    private int lastIndex = -1;
+    private boolean forward = true;
+
+    /**
+     * Constructs a prefetcher.
+     *
+     * @param budget the decoded pixel bytes the prefetcher may hold
+     * @param ahead the number of photos to prefetch in the direction of navigation
+     * @param behind the number of photos to prefetch in the opposite direction
+     */
+    public ImagePrefetcher(long budget, int ahead, int behind) {
+        this.budget = budget;
+        this.ahead = ahead;
+        this.behind = behind;
+        memory.register(this);
+    }
+
+    /**
+     * Returns the prefetcher shared by all views.
+     *
+     * @return the shared prefetcher
+     */
+    public static ImagePrefetcher getShared() {
+        return shared;
+    }
+
+    /**
+     * Changes the budget, evicting images if the prefetcher no longer fits.
+     *
+     * @param budget the decoded pixel bytes the prefetcher may hold
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Returns the decoded pixel bytes currently held.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Shows a photo of a list: delivers it decoded at the given size and prefetches its neighbours. A photo that
+     * was prefetched is delivered before this returns; otherwise it is decoded before any neighbour. The list
+     * wraps around at both ends, like the next and previous buttons.
+     *
+     * @param photos the photos being stepped through
+     * @param index the index of the photo to show
+     * @param width the maximum width to decode at
+     * @param height the maximum height to decode at
+     * @param callback receives the image on the JavaFX Application Thread, or null if it cannot be read; a photo
+     *                 that was prefetched at a lower resolution is delivered again once decoded at full size
+     * @return the request, which cancels delivery of the image but not the prefetching
+     */
+    public ImageLoader.Request show(List<Photo> photos, int index, int width, int height,
+                                    Consumer<Image> callback) {
+        int size = photos.size();
+        ImageLoader.Request request = new ImageLoader.Request(null);
+        Image ready;
+        boolean failed;
+
+        synchronized (this) {
+            // Follow the direction of navigation; jumps keep the last direction
+            if (lastIndex >= 0 && size > 1) {
+                if (index == (lastIndex + 1) % size) {
+                    forward = true;
+                } else if (index == (lastIndex - 1 + size) % size) {
+                    forward = false;
+                }
+            }
+            lastIndex = index;
+
+            // Queue the photo on display first, then its neighbours nearest first
+            window.clear();
+            queue.clear();
+            Entry current = enqueue(photos.get(index), width, height);
+            int step = forward ? 1 : -1;
+            for (int i = 1; i <= Math.max(ahead, behind) && i < size; i++) {
+                if (i <= ahead) enqueue(photos.get(Math.floorMod(index + i * step, size)), width, height);
+                if (i <= behind) enqueue(photos.get(Math.floorMod(index - i * step, size)), width, height);
+            }
+
+            ready = current.image;
+            failed = current.failed;
+            if (ready == null && !failed || current.degraded) {
+                current.waiters.add(image -> Platform.runLater(() -> {
+                    if (!request.isCancelled()) callback.accept(image);
+                }));
+            }
+            evict();
+        }
+
+        if (ready != null || failed) callback.accept(ready);
+        executor.execute(this::decodeQueued);
+        return request;
+    }
+
+    /**
+     * Drops every decoded image and queued decode.
+     */
+    public synchronized void clear() {
+        queue.clear();
+        window.clear();
+        entries.clear();
+        memory.release(totalBytes);
+        totalBytes = 0;
+        lastIndex = -1;
+    }
+
+    /**
+     * Returns a name for monitoring.
+     *
+     * @return the name
+     */
+    @Override
+    public String getName() {
+        return "prefetch";
+    }
+
+    /**
+     * Returns the decoded pixel bytes currently held.
+     *
+     * @return the size in bytes
+     */
+    @Override
+    public long getBytes() {
+        return getTotalBytes();
+    }
+
+    /**
+     * Drops least recently used images of the given priority or less important ones, for more important images.
+     * Images being decoded are kept.
+     *
+     * @param bytes the bytes wanted
+     * @param priority the most important priority that may be dropped
+     */
+    @Override
+    public synchronized void reclaim(long bytes, ImageMemory.Priority priority) {
+        long freed = 0;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (freed < bytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entry.image == null || entry.decoding || getPriority(entry).compareTo(priority) < 0) continue;
+            long entryBytes = ThumbnailCache.pixelBytes(entry.image);
+            eldest.remove();
+            totalBytes -= entryBytes;
+            memory.release(entryBytes);
+            freed += entryBytes;
+        }
+    }
+
+    /**
+     * Adds a photo to the window and queues it for decoding unless it is decoded already.
+     *
+     * @param photo the photo
+     * @param width the maximum width
+     * @param height the maximum height
+     * @return the photo's entry
+     */
+    private Entry enqueue(Photo photo, int width, int height) {
+        String key = photo.getFilePath() + '|' + width + 'x' + height;
+        File file = photo.getFile();
+        long modified = file.lastModified();
+        long length = file.length();
+
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.decoding && (entry.modified != modified || entry.length != length)) {
+            // The file changed since it was decoded
+            if (entry.image != null) {
+                long bytes = ThumbnailCache.pixelBytes(entry.image);
+                totalBytes -= bytes;
+                memory.release(bytes);
+            }
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = new Entry(photo, key, width, height);
+            entry.modified = modified;
+            entry.length = length;
+            entries.put(key, entry);
+        }
+
+        if (!window.contains(entry)) window.add(entry);
+        boolean wanted = entry.image == null && !entry.failed || entry.degraded;
+        if (wanted && !entry.decoding && !queue.contains(entry)) queue.add(entry);
+        return entry;
+    }
+
+    /**
+     * Returns how important an entry is: the photo on display is visible and the rest of the window near.
+     *
+     * @param entry the entry
+     * @return the priority
+     */
+    private ImageMemory.Priority getPriority(Entry entry) {
+        int position = window.indexOf(entry);
+        if (position == 0) return ImageMemory.Priority.VISIBLE;
+        return position > 0 ? ImageMemory.Priority.NEAR : ImageMemory.Priority.CACHED;
+    }
+
+    /**
+     * Decodes queued photos until the queue is empty. Runs on the prefetch thread.
+     */
+    private void decodeQueued() {
+        while (true) {
+            Entry entry;
+            ImageMemory.Priority priority;
+            synchronized (this) {
+                entry = queue.poll();
+                if (entry == null) return;
+                entry.decoding = true;
+                priority = getPriority(entry);
+            }
+
+            // Reserve the pixels of the whole box; the photo's aspect ratio usually makes it smaller
+            long wanted = (long) entry.width * entry.height * 4;
+            long granted = memory.reserve(wanted, priority);
+            double scale = ImageMemory.getScale(wanted, granted);
+            if (scale < 1 && priority != ImageMemory.Priority.VISIBLE) {
+                // Not worth degrading a photo that may never be shown
+                memory.release(granted);
+                synchronized (this) {
+                    entry.decoding = false;
+                    if (!entry.waiters.isEmpty()) queue.addFirst(entry); // Shown meanwhile
+                }
+                continue;
+            }
+
+            Image image = entry.photo.getImage((int) Math.ceil(entry.width * scale),
+                    (int) Math.ceil(entry.height * scale));
+
+            List<Consumer<Image>> waiters;
+            synchronized (this) {
+                entry.decoding = false;
+                waiters = new ArrayList<>(entry.waiters);
+                entry.waiters.clear();
+                if (image == null && entry.image != null) {
+                    // Keep the lower resolution image that failed to be replaced
+                    image = entry.image;
+                    memory.release(granted);
+                } else if (image != null && entries.get(entry.key) == entry) {
+                    if (entry.image != null) {
+                        long oldBytes = ThumbnailCache.pixelBytes(entry.image);
+                        totalBytes -= oldBytes;
+                        memory.release(oldBytes);
+                    }
+                    long bytes = ThumbnailCache.pixelBytes(image);
+                    totalBytes += bytes;
+                    memory.allocate(bytes - granted);
+                    entry.image = image;
+                    entry.degraded = scale < 1;
+                    evict();
+                } else {
+                    // Failed, or dropped while decoding: the image is only held by the waiters, if any
+                    if (image == null) {
+                        memory.release(granted);
+                    } else {
+                        memory.track(image, granted);
+                    }
+                    entry.image = image;
+                    entry.failed = image == null;
+                }
+            }
+            for (Consumer<Image> waiter : waiters) {
+                try {
+                    waiter.accept(image);
+                } catch (RuntimeException e) {
+                    System.err.println("Error delivering prefetched image: " + e.getMessage()); // Keep prefetching
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used images outside the current window until the rest fit the budget, and drops
+     * entries that were never decoded and are no longer wanted.
+     */
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (window.contains(entry) || entry.decoding) continue;
+            if (entry.image == null) {
+                eldest.remove();
+            } else if (totalBytes > budget) {
+                long bytes = ThumbnailCache.pixelBytes(entry.image);
+                totalBytes -= bytes;
+                memory.release(bytes);
+                eldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of mutations made to a user since their last snapshot was written.
+ * <p>
+ * Model objects record their changes into the journal attached to them. {@link DataManager} appends the
+ * pending records to the log file on save and replays the log on top of the snapshot when the user is loaded.
+ * Each log starts with the epoch of the snapshot it applies to, so a log left behind by an interrupted
+ * compaction is never replayed twice. Every record carries its length and a CRC-32, so a torn or damaged
+ * tail is detected and cut off instead of being replayed.
+ * </p>
+ */
+public class Journal {
+
+    private static final int MAGIC = 0x504A4E4C; // "PJNL"
+    private static final int VERSION = 3; // Version 1 records had no checksum, version 2 had short counts and strings
+
+    private final File file;
+    private long epoch;
+    private int fileVersion; // Version of the existing log file, or 0 if not known yet
+    private long knownLength; // Length of the log as this journal last read or wrote it
+    private long syncedVersion; // Version stamp of the user's files this journal is in step with
+    private final List<Mutation> pending = new ArrayList<>();
+    private long generation; // Number of mutations recorded so far
+    private long savedGeneration; // Generation at the last flush or snapshot
+    private Runnable listener; // Notified after every recorded mutation
+
+    /**
+     * Constructs a journal for the given log file.
+     *
+     * @param file the log file
+     * @param epoch the epoch of the snapshot this journal applies to
+     */
+    public Journal(File file, long epoch) {
+        this.file = file;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Returns the epoch of the snapshot this journal applies to.
+     *
+     * @return the snapshot epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the length of the log file as this journal last read or wrote it. A log that is longer now was
+     * appended to by someone else, or has a torn tail.
+     *
+     * @return the known log length in bytes
+     */
+    public synchronized long getKnownLength() {
+        return knownLength;
+    }
+
+    /**
+     * Returns the version stamp of the user's files at the time this journal was last in step with them.
+     *
+     * @return the version stamp
+     */
+    public synchronized long getSyncedVersion() {
+        return syncedVersion;
+    }
+
+    /**
+     * Records the version stamp of the user's files this journal is now in step with.
+     *
+     * @param version the version stamp
+     */
+    public synchronized void setSyncedVersion(long version) {
+        syncedVersion = version;
+    }
+
+    /**
+     * Sets the callback notified after every recorded mutation.
+     *
+     * @param listener the callback, or null for none
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Records a mutation to be appended on the next flush.
+     *
+     * @param mutation the mutation to record
+     */
+    public void record(Mutation mutation) {
+        synchronized (this) {
+            pending.add(mutation);
+            generation++;
+        }
+        Runnable callback = listener;
+        if (callback != null) callback.run();
+    }
+
+    /**
+     * Returns the number of mutations recorded since this journal was created.
+     *
+     * @return the current generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Checks whether mutations were recorded since the last flush or snapshot.
+     *
+     * @return true if the user has unsaved changes
+     */
+    public synchronized boolean isDirty() {
+        return generation != savedGeneration;
+    }
+
+    /**
+     * Returns the size of the log file on disk.
+     *
+     * @return the log length in bytes, or 0 if there is no log
+     */
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * Appends all pending mutations to the log file, creating it if necessary, and forces them to disk.
+     * Each record is written with its length and checksum so a partially written tail can be detected on replay.
+     *
+     * @throws IOException If an I/O error occurs during the file operation.
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) return;
+
+        boolean fresh = !file.exists() || file.length() == 0;
+        if (!fresh) {
+            if (fileVersion == 0) fileVersion = readVersion(file);
+            if (fileVersion < VERSION) upgrade(); // Records are only ever appended in the current format
+        }
+
+        // Encode everything first so the file sees a single append
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (fresh) {
+            writeHeader(out);
+            fileVersion = VERSION;
+        }
+        writeRecords(out, pending);
+
+        try (FileOutputStream fos = new FileOutputStream(file, !fresh)) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+        knownLength = file.length();
+        pending.clear();
+        savedGeneration = generation;
+    }
+
+    /**
+     * Starts a new log for the given snapshot epoch, discarding the current log file.
+     * Pending mutations are kept, since they were recorded after the flush the snapshot was built from.
+     *
+     * @param newEpoch the epoch of the snapshot that was just written
+     */
+    public synchronized void rebase(long newEpoch) {
+        epoch = newEpoch;
+        fileVersion = 0;
+        knownLength = 0;
+        file.delete();
+    }
+
+    /**
+     * Moves this journal onto a snapshot written by someone else, keeping the log file and the pending
+     * mutations. Followed by {@link #load(boolean)} to pick up the log's current length.
+     *
+     * @param newEpoch the epoch of the snapshot now on disk
+     */
+    public synchronized void adopt(long newEpoch) {
+        epoch = newEpoch;
+        fileVersion = 0;
+    }
+
+    /**
+     * Starts a new log for the given snapshot epoch, discarding the current log file and any pending
+     * mutations. Callers reset only after writing a snapshot that already contains every recorded change.
+     *
+     * @param newEpoch the epoch of the snapshot that was just written
+     */
+    public synchronized void reset(long newEpoch) {
+        rebase(newEpoch);
+        pending.clear();
+        savedGeneration = generation;
+    }
+
+    /**
+     * Reads every complete record of the log file that applies to this journal's snapshot epoch, and
+     * remembers where the last one ends. When repairing, a truncated or damaged record, left by an
+     * interrupted append, is cut off together with everything after it so that later appends start on a
+     * record boundary, and a stale log that belongs to another snapshot is emptied the same way. Only a
+     * writer holding the user's lock may repair, since what looks torn may be another instance's append
+     * in progress.
+     *
+     * @param repair true to cut the log back to its last complete record
+     * @return the mutations to replay, empty if the log does not exist or belongs to another snapshot
+     * @throws IOException If an I/O error occurs or the log header is invalid
+     */
+    public synchronized List<Mutation> load(boolean repair) throws IOException {
+        List<Mutation> mutations = new ArrayList<>();
+        knownLength = 0;
+        if (!file.exists()) return mutations;
+
+        long valid = 0; // Length of the file up to the last complete record
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : 0;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Not a journal file: " + file.getName());
+            }
+            if (in.readLong() == epoch) { // Otherwise a stale log from before the last compaction
+                valid = 16;
+                int headerSize = version >= 2 ? 8 : 4;
+                CRC32 crc = new CRC32();
+
+                while (true) {
+                    byte[] record;
+                    try {
+                        int length = in.readInt();
+                        int checksum = version >= 2 ? in.readInt() : 0;
+                        if (length < 0 || length > file.length() - valid) break; // Length itself is damaged
+                        record = new byte[length];
+                        in.readFully(record);
+                        if (version >= 2) {
+                            crc.reset();
+                            crc.update(record);
+                            if ((int) crc.getValue() != checksum) break;
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    mutations.add(Mutation.readFrom(new DataInputStream(new ByteArrayInputStream(record)), version));
+                    valid += headerSize + record.length;
+                }
+            }
+        } catch (EOFException e) {
+            // Header itself was cut off; nothing to replay
+        }
+
+        knownLength = valid;
+        if (repair && valid < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        return mutations;
+    }
+
+    /**
+     * Rewrites a log started in an older format in the current one, so that new records can be appended to it.
+     * Only the complete records for this journal's snapshot are kept, as a repairing load would keep them. The
+     * new log replaces the old one in a single rename where the file system supports it. Called with the user's
+     * lock held.
+     *
+     * @throws IOException If an I/O error occurs or the log header is invalid
+     */
+    private void upgrade() throws IOException {
+        List<Mutation> records = load(false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out);
+        writeRecords(out, records);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        fileVersion = VERSION;
+        knownLength = file.length();
+    }
+
+    /**
+     * Writes the header of a new log in the current format.
+     *
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(epoch);
+    }
+
+    /**
+     * Writes mutations as log records, each with its length and checksum.
+     *
+     * @param out the output to write to
+     * @param mutations the mutations
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeRecords(DataOutputStream out, List<Mutation> mutations) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        for (Mutation mutation : mutations) {
+            record.reset();
+            mutation.writeTo(new DataOutputStream(record));
+            crc.reset();
+            crc.update(record.toByteArray());
+            out.writeInt(record.size());
+            out.writeInt((int) crc.getValue());
+            record.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the format version from the header of an existing log file.
+     *
+     * @param file the log file
+     * @return the version
+     * @throws IOException If an I/O error occurs or the file is not a journal
+     */
+    private static int readVersion(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a journal file: " + file.getName());
+            }
+            return in.readInt();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only view of a catalog file written by {@link CatalogCodec}, memory-mapped and decoded on demand.
+ * <p>
+ * Opening a manifest only reads the header, the user's tag types, the album table and the tag index, and maps each album's
+ * shard without reading it. Photos are stored as fixed-size records and strings behind an offset table, so an
+ * album's {@link Photo} objects are created the first time the album's photos are needed, and only those strings
+ * are decoded. A photo whose file is already loaded in another album of the same user is reused rather than
+ * created twice.
+ * </p>
+ */
+public class MappedCatalog {
+
+    static final int ALBUM_RECORD_SIZE = 28; // name, photo count, first entry or shard, earliest date, latest date
+    static final int PHOTO_RECORD_SIZE = 44; // directory, file name, caption, first tag, tag count, date, hash time, hash
+    static final int VERSION_4_PHOTO_RECORD_SIZE = 28; // Without the perceptual hash
+
+    private final ByteBuffer buffer;
+    private final int stringOffsetsPos;
+    private final int stringDataPos;
+    private final int albumsPos;
+    private final int entriesPos;
+    private final int photosPos;
+    private final int tagsPos;
+    private final int photoRecordSize;
+
+    private final Map<Integer, Photo> photos = new HashMap<>(); // Materialized photos by record index
+    private final Map<Long, Tag> tags = new HashMap<>(); // Shared tags by name and value string index
+
+    /**
+     * Constructs a view over a mapped catalog.
+     *
+     * @param buffer the mapped file
+     */
+    private MappedCatalog(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.stringOffsetsPos = buffer.getInt(30);
+        this.stringDataPos = buffer.getInt(34);
+        this.albumsPos = buffer.getInt(38);
+        this.entriesPos = buffer.getInt(42);
+        this.photosPos = buffer.getInt(46);
+        this.tagsPos = buffer.getInt(50);
+        this.photoRecordSize = buffer.getShort(4) >= 5 ? PHOTO_RECORD_SIZE : VERSION_4_PHOTO_RECORD_SIZE;
+    }
+
+    /**
+     * Maps a catalog file and checks its header and, from version 4 on, its checksum.
+     * Files written through {@link BlockCompression} are detected and decompressed.
+     *
+     * @param file the file to map
+     * @param magic the expected file kind
+     * @return the catalog
+     * @throws IOException If an I/O error occurs, the file is not a catalog of the expected kind or it is damaged
+     */
+    static MappedCatalog map(File file, int magic) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed, and after the file is replaced
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.limit() >= 4 && buffer.getInt(0) == BlockCompression.MAGIC) {
+            // Compressed files are inflated onto the heap instead
+            try (InputStream in = BlockCompression.decompress(new BufferedInputStream(new FileInputStream(file)))) {
+                buffer = ByteBuffer.wrap(in.readAllBytes());
+            }
+        }
+
+        int version = buffer.limit() < CatalogCodec.HEADER_SIZE ? 0 : buffer.getShort(4); // 0 if cut off
+        if (version < 2 || version > CatalogCodec.VERSION || buffer.getInt(0) != magic) {
+            throw new IOException("Not a supported catalog file: " + file.getName());
+        }
+
+        if (version >= 4) {
+            int end = buffer.limit() - 4;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit(end));
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new IOException("Checksum mismatch in catalog file: " + file.getName());
+            }
+        }
+        return new MappedCatalog(buffer);
+    }
+
+    /**
+     * Maps a manifest and builds its user with lazily loaded albums.
+     *
+     * @param file a manifest of version 2 or later
+     * @param epoch receives the snapshot epoch in its first element
+     * @return the user
+     * @throws IOException If an I/O error occurs or a file is malformed
+     */
+    public static User open(File file, long[] epoch) throws IOException {
+        MappedCatalog catalog = map(file, CatalogCodec.MAGIC);
+        ByteBuffer buffer = catalog.buffer;
+        boolean sharded = buffer.getShort(4) >= 3; // Version 2 kept every album in the manifest
+        epoch[0] = buffer.getLong(6);
+
+        User user = new User(catalog.string(buffer.getInt(14)));
+        int tagTypeCount = buffer.getInt(18);
+        int tagTypesPos = buffer.getInt(22);
+        int albumCount = buffer.getInt(26);
+
+        List<String> tagTypes = new ArrayList<>(tagTypeCount);
+        for (int i = 0; i < tagTypeCount; i++) {
+            tagTypes.add(catalog.string(buffer.getInt(tagTypesPos + 4 * i)));
+        }
+
+        File shardDir = new File(file.getParentFile(), user.getUsername() + CatalogCodec.SHARD_DIR_SUFFIX);
+        List<Album> albums = new ArrayList<>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            int record = catalog.albumsPos + i * ALBUM_RECORD_SIZE;
+            AlbumShard shard;
+            if (sharded) {
+                String shardName = catalog.string(buffer.getInt(record + 8));
+                shard = new AlbumShard(shardName, map(new File(shardDir, shardName), CatalogCodec.SHARD_MAGIC), 0, user);
+            } else {
+                shard = new AlbumShard(null, catalog, i, user);
+            }
+
+            Album album = new Album(catalog.string(buffer.getInt(record)));
+            album.restore(shard, buffer.getInt(record + 4), buffer.getLong(record + 12), buffer.getLong(record + 20));
+            albums.add(album);
+        }
+
+        user.restore(tagTypes, albums);
+        if (buffer.getShort(4) >= 7 && catalog.tagsPos < buffer.limit() - 4) {
+            user.restoreTagIndex(catalog.readTagIndex(albums));
+        }
+        return user;
+    }
+
+    /**
+     * Reads the tag index stored in a manifest after its tag section, and attaches the albums to it.
+     *
+     * @param albums the manifest's albums, in album table order
+     * @return the tag index
+     */
+    private TagIndex readTagIndex(List<Album> albums) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(tagsPos);
+
+        int idCount = in.getInt();
+        String[] paths = new String[idCount];
+        long[] times = new long[idCount];
+        Map<Integer, String> directories = new HashMap<>(); // Shared by the photos of a folder
+        for (int id = 0; id < idCount; id++) {
+            int directory = in.getInt();
+            int fileName = in.getInt();
+            times[id] = in.getLong();
+            if (directory >= 0) paths[id] = directories.computeIfAbsent(directory, this::string) + string(fileName);
+        }
+        TagIndex index = new TagIndex(paths, times, idCount);
+
+        int nameCount = in.getInt();
+        for (int n = 0; n < nameCount; n++) {
+            String name = string(in.getInt());
+            int valueCount = in.getInt();
+            for (int v = 0; v < valueCount; v++) {
+                String value = string(in.getInt());
+                index.restoreTag(name, value, CompressedBitmap.readFrom(in));
+            }
+        }
+
+        for (Album album : albums) {
+            index.restoreAlbum(album, CompressedBitmap.readFrom(in));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the shard file names a manifest refers to.
+     *
+     * @param file a manifest
+     * @return the shard names, empty for manifests that keep their albums in the same file
+     * @throws IOException If an I/O error occurs or the file is not a valid manifest
+     */
+    static List<String> shardNames(File file) throws IOException {
+        MappedCatalog catalog = map(file, CatalogCodec.MAGIC);
+        List<String> names = new ArrayList<>();
+        if (catalog.buffer.getShort(4) >= 3) {
+            int albumCount = catalog.buffer.getInt(26);
+            for (int i = 0; i < albumCount; i++) {
+                names.add(catalog.string(catalog.buffer.getInt(catalog.albumsPos + i * ALBUM_RECORD_SIZE + 8)));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Creates the photos of an album. Called the first time the album's photos are needed.
+     *
+     * @param albumIndex the index of the album in the album table
+     * @param loaded photos already loaded for the same user, by file path
+     * @param created receives the photos that were newly created rather than reused
+     * @return the album's photos
+     */
+    synchronized List<Photo> loadAlbum(int albumIndex, Map<String, Photo> loaded, Set<Photo> created) {
+        int record = albumsPos + albumIndex * ALBUM_RECORD_SIZE;
+        int count = buffer.getInt(record + 4);
+        int first = buffer.getInt(record + 8);
+
+        List<Photo> albumPhotos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = buffer.getInt(entriesPos + 4 * (first + i));
+            Photo photo = photos.get(index);
+            if (photo == null) {
+                int photoRecord = photosPos + index * photoRecordSize;
+                String path = string(buffer.getInt(photoRecord)) + string(buffer.getInt(photoRecord + 4));
+                photo = loaded.get(path);
+                if (photo == null) {
+                    photo = photo(photoRecord, path);
+                    created.add(photo);
+                }
+                photos.put(index, photo);
+            }
+            albumPhotos.add(photo);
+        }
+        return albumPhotos;
+    }
+
+    /**
+     * Creates the photo stored in a record.
+     *
+     * @param record the position of the photo record
+     * @param path the decoded file path of the photo
+     * @return the photo
+     */
+    private Photo photo(int record, String path) {
+        Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(buffer.getLong(record + 20));
+
+        int firstTag = buffer.getInt(record + 12);
+        int tagCount = buffer.getInt(record + 16);
+        List<Tag> photoTags = new ArrayList<>(tagCount);
+        for (int t = 0; t < tagCount; t++) {
+            int entry = tagsPos + 8 * (firstTag + t);
+            int name = buffer.getInt(entry);
+            int value = buffer.getInt(entry + 4);
+            photoTags.add(tags.computeIfAbsent(((long) name << 32) | value,
+                    key -> new Tag(string(name), string(value))));
+        }
+
+        Photo photo = new Photo(path, date);
+        photo.restore(string(buffer.getInt(record + 8)), photoTags);
+        if (photoRecordSize >= PHOTO_RECORD_SIZE) {
+            photo.restorePerceptualHash(buffer.getLong(record + 36), buffer.getLong(record + 28));
+        }
+        return photo;
+    }
+
+    /**
+     * Decodes a string from the string table.
+     *
+     * @param index the string index
+     * @return the string
+     */
+    private String string(int index) {
+        int start = buffer.getInt(stringOffsetsPos + 4 * index);
+        int end = buffer.getInt(stringOffsetsPos + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringDataPos + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
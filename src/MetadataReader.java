@@ -0,0 +1,436 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Calendar;
+
+/**
+ * Reads {@link PhotoMetadata} from the headers of JPEG, PNG and GIF files without touching their pixel data.
+ * <p>
+ * JPEG files are walked segment by segment up to the frame header, and PNG files chunk by chunk up to the image
+ * data, reading only the few kilobytes in front of the pixels through positional {@link FileChannel} reads.
+ * The EXIF block, a TIFF structure in the JPEG APP1 segment or the PNG eXIf chunk, gives the capture date,
+ * orientation and GPS position. Files that do not record a capture date fall back to their modification time,
+ * read together with the other basic attributes in one call.
+ * </p>
+ * <p>
+ * A reader reuses its buffer from file to file, so a bulk import keeps one reader per thread. Readers are not
+ * safe for use by several threads at once.
+ * </p>
+ */
+public class MetadataReader {
+
+    private static final int CHUNK = 8 * 1024; // Bytes read at a time while walking headers
+    private static final int MAX_SEGMENT = 0x10000; // Largest JPEG segment, and largest EXIF block read
+
+    // TIFF tags
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_PIXEL_WIDTH = 0xA002;
+    private static final int TAG_PIXEL_HEIGHT = 0xA003;
+    private static final int TAG_GPS_LATITUDE_REF = 1;
+    private static final int TAG_GPS_LATITUDE = 2;
+    private static final int TAG_GPS_LONGITUDE_REF = 3;
+    private static final int TAG_GPS_LONGITUDE = 4;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_SEGMENT + 4);
+    private FileChannel channel;
+    private long windowStart; // File position of the first byte in the buffer
+    private int windowLength; // Bytes of the file in the buffer
+
+    // What has been found in the current file
+    private Calendar dateTaken;
+    private Calendar dateModified; // DateTime of IFD0, used if DateTimeOriginal is missing
+    private int width;
+    private int height;
+    private int orientation;
+    private double latitude;
+    private double longitude;
+
+    /**
+     * Reads the metadata of a photo file. Files that are not JPEG, PNG or GIF, or whose headers are damaged,
+     * yield what could be read, down to just the modification time.
+     *
+     * @param file the photo file
+     * @return the metadata
+     * @throws IOException If the file cannot be read
+     */
+    public PhotoMetadata read(File file) throws IOException {
+        dateTaken = null;
+        dateModified = null;
+        width = 0;
+        height = 0;
+        orientation = 1;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        windowStart = 0;
+        windowLength = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.channel = channel;
+            if (load(0, 8)) {
+                if (u8(0) == 0xFF && u8(1) == 0xD8) {
+                    readJpeg();
+                } else if (buffer.getLong(0) == 0x89504E470D0A1A0AL) {
+                    readPng();
+                } else if (u8(0) == 'G' && u8(1) == 'I' && u8(2) == 'F' && load(0, 10)) {
+                    width = u8(6) | u8(7) << 8;
+                    height = u8(8) | u8(9) << 8;
+                }
+            }
+        } finally {
+            channel = null;
+        }
+
+        boolean captureDate = true;
+        if (dateTaken == null) dateTaken = dateModified;
+        if (dateTaken == null) {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            dateTaken = Calendar.getInstance();
+            dateTaken.setTimeInMillis(attributes.lastModifiedTime().toMillis());
+            captureDate = false;
+        }
+        return new PhotoMetadata(dateTaken, captureDate, width, height, orientation, latitude, longitude);
+    }
+
+    /**
+     * Walks the segments of a JPEG file up to its frame header, reading the EXIF block and the image size.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void readJpeg() throws IOException {
+        long position = 2;
+        boolean exifRead = false;
+        while (load(position, 4)) {
+            if (u8(position) != 0xFF) return; // Not a marker: damaged
+            int marker = u8(position + 1);
+            if (marker == 0xFF) {
+                position++; // Fill byte
+                continue;
+            }
+            if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD8) {
+                position += 2; // Markers without a length
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) return; // End of image, or start of the pixel data
+
+            int length = u16(position + 2);
+            if (length < 2) return;
+            if (marker == 0xE1 && !exifRead && length >= 8 && load(position + 4, length - 2)
+                    && u8(position + 4) == 'E' && u8(position + 5) == 'x' && u8(position + 6) == 'i'
+                    && u8(position + 7) == 'f' && u8(position + 8) == 0) {
+                readTiff(position + 10, length - 8);
+                exifRead = true;
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // Frame header: the EXIF block comes before it, and the pixel data after
+                if (load(position + 4, 5)) {
+                    height = u16(position + 5);
+                    width = u16(position + 7);
+                }
+                return;
+            }
+            position += 2 + length;
+        }
+    }
+
+    /**
+     * Walks the chunks of a PNG file up to its image data, reading the image size and the EXIF block.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void readPng() throws IOException {
+        long position = 8;
+        while (load(position, 8)) {
+            long length = u32(position);
+            int type = buffer.getInt(index(position + 4));
+            if (type == 0x49484452 && load(position + 8, 8)) { // IHDR
+                width = (int) Math.min(Integer.MAX_VALUE, u32(position + 8));
+                height = (int) Math.min(Integer.MAX_VALUE, u32(position + 12));
+            } else if (type == 0x65584966 && length <= MAX_SEGMENT && load(position + 8, (int) length)) { // eXIf
+                readTiff(position + 8, (int) length);
+            } else if (type == 0x49444154 || type == 0x49454E44) { // IDAT, IEND
+                return;
+            }
+            position += 12 + length;
+        }
+    }
+
+    /**
+     * Reads the orientation, dates, size and GPS position from a TIFF structure that is entirely in the buffer.
+     * Damaged structures are read as far as they make sense.
+     *
+     * @param start the file position of the TIFF header
+     * @param length the length of the TIFF structure
+     */
+    private void readTiff(long start, int length) {
+        ByteBuffer tiff = buffer.duplicate();
+        tiff.limit(index(start) + length).position(index(start));
+        tiff = tiff.slice();
+        if (length < 8) return;
+        if (tiff.getShort(0) == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.getShort(0) != 0x4D4D) {
+            return;
+        }
+
+        int exifIfd = -1;
+        int gpsIfd = -1;
+        int ifd = tiff.getInt(4);
+        int count = entryCount(tiff, ifd);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case TAG_ORIENTATION:
+                    int value = (int) integer(tiff, entry);
+                    if (value >= 1 && value <= 8) orientation = value;
+                    break;
+                case TAG_DATE_TIME:
+                    dateModified = date(tiff, entry);
+                    break;
+                case TAG_EXIF_IFD:
+                    exifIfd = (int) integer(tiff, entry);
+                    break;
+                case TAG_GPS_IFD:
+                    gpsIfd = (int) integer(tiff, entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        count = entryCount(tiff, exifIfd);
+        for (int i = 0; i < count; i++) {
+            int entry = exifIfd + 2 + i * 12;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case TAG_DATE_TIME_ORIGINAL:
+                    dateTaken = date(tiff, entry);
+                    break;
+                case TAG_PIXEL_WIDTH:
+                    if (width == 0) width = (int) integer(tiff, entry);
+                    break;
+                case TAG_PIXEL_HEIGHT:
+                    if (height == 0) height = (int) integer(tiff, entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        char latitudeRef = 0;
+        char longitudeRef = 0;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        count = entryCount(tiff, gpsIfd);
+        for (int i = 0; i < count; i++) {
+            int entry = gpsIfd + 2 + i * 12;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case TAG_GPS_LATITUDE_REF:
+                    latitudeRef = (char) (tiff.get(entry + 8) & 0xFF);
+                    break;
+                case TAG_GPS_LATITUDE:
+                    lat = degrees(tiff, entry);
+                    break;
+                case TAG_GPS_LONGITUDE_REF:
+                    longitudeRef = (char) (tiff.get(entry + 8) & 0xFF);
+                    break;
+                case TAG_GPS_LONGITUDE:
+                    lon = degrees(tiff, entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!Double.isNaN(lat) && !Double.isNaN(lon)) {
+            latitude = latitudeRef == 'S' ? -lat : lat;
+            longitude = longitudeRef == 'W' ? -lon : lon;
+        }
+    }
+
+    /**
+     * Returns the number of entries of an image file directory, or 0 if the directory lies outside the structure.
+     *
+     * @param tiff the TIFF structure
+     * @param ifd the offset of the directory
+     * @return the number of entries that fit in the structure
+     */
+    private static int entryCount(ByteBuffer tiff, int ifd) {
+        if (ifd < 8 || ifd > tiff.limit() - 2) return 0;
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        return Math.min(count, (tiff.limit() - ifd - 2) / 12);
+    }
+
+    /**
+     * Returns the offset of an entry's values: within the entry if they fit in four bytes, elsewhere otherwise.
+     *
+     * @param tiff the TIFF structure
+     * @param entry the offset of the entry
+     * @param size the bytes the values take up
+     * @return the offset, or -1 if the values lie outside the structure
+     */
+    private static int valueOffset(ByteBuffer tiff, int entry, long size) {
+        if (size <= 4) return entry + 8;
+        long offset = tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+        return offset + size <= tiff.limit() ? (int) offset : -1;
+    }
+
+    /**
+     * Reads the first value of a SHORT or LONG entry.
+     *
+     * @param tiff the TIFF structure
+     * @param entry the offset of the entry
+     * @return the value, or -1 if the entry holds another type
+     */
+    private static long integer(ByteBuffer tiff, int entry) {
+        int type = tiff.getShort(entry + 2);
+        if (type == 3) return tiff.getShort(entry + 8) & 0xFFFF;
+        if (type == 4) return tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+        return -1;
+    }
+
+    /**
+     * Reads an ASCII date entry of the form "YYYY:MM:DD HH:MM:SS" as a time in the default time zone.
+     *
+     * @param tiff the TIFF structure
+     * @param entry the offset of the entry
+     * @return the date, or null if the entry is not a valid date
+     */
+    private static Calendar date(ByteBuffer tiff, int entry) {
+        long count = tiff.getInt(entry + 4) & 0xFFFFFFFFL;
+        if (tiff.getShort(entry + 2) != 2 || count < 19) return null;
+        int offset = valueOffset(tiff, entry, count);
+        if (offset < 0) return null;
+
+        int year = twoDigits(tiff, offset) * 100 + twoDigits(tiff, offset + 2);
+        int month = twoDigits(tiff, offset + 5);
+        int day = twoDigits(tiff, offset + 8);
+        int hour = twoDigits(tiff, offset + 11);
+        int minute = twoDigits(tiff, offset + 14);
+        int second = twoDigits(tiff, offset + 17);
+        if (year == 0 || year > 9999 || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+                || second > 60) {
+            return null; // Unset dates are written as zeros
+        }
+
+        Calendar date = Calendar.getInstance();
+        date.clear();
+        date.set(year, month - 1, day, hour, minute, Math.min(second, 59));
+        return date;
+    }
+
+    /**
+     * Reads two decimal digits.
+     *
+     * @param tiff the TIFF structure
+     * @param offset the offset of the first digit
+     * @return the number, or 99 if the bytes are not digits
+     */
+    private static int twoDigits(ByteBuffer tiff, int offset) {
+        int first = tiff.get(offset) - '0';
+        int second = tiff.get(offset + 1) - '0';
+        if (first < 0 || first > 9 || second < 0 || second > 9) return 99;
+        return first * 10 + second;
+    }
+
+    /**
+     * Reads a GPS coordinate entry of three rationals, degrees, minutes and seconds, as degrees.
+     *
+     * @param tiff the TIFF structure
+     * @param entry the offset of the entry
+     * @return the coordinate, or NaN if the entry is not a valid coordinate
+     */
+    private static double degrees(ByteBuffer tiff, int entry) {
+        long count = tiff.getInt(entry + 4) & 0xFFFFFFFFL;
+        if (tiff.getShort(entry + 2) != 5 || count < 3) return Double.NaN;
+        int offset = valueOffset(tiff, entry, count * 8);
+        if (offset < 0) return Double.NaN;
+
+        double value = 0;
+        double unit = 1;
+        for (int i = 0; i < 3; i++) {
+            long numerator = tiff.getInt(offset + i * 8) & 0xFFFFFFFFL;
+            long denominator = tiff.getInt(offset + i * 8 + 4) & 0xFFFFFFFFL;
+            if (denominator == 0) {
+                if (numerator != 0) return Double.NaN;
+            } else {
+                value += (double) numerator / denominator / unit;
+            }
+            unit *= 60;
+        }
+        return value;
+    }
+
+    /**
+     * Makes sure a range of the file is in the buffer, reading from its start if not. At least a chunk is read
+     * at a time, so the following headers usually come with it.
+     *
+     * @param position the file position of the range
+     * @param length the length of the range, at most the buffer's capacity
+     * @return true if the range is in the buffer, false if the file ends before it
+     * @throws IOException If an I/O error occurs
+     */
+    private boolean load(long position, int length) throws IOException {
+        if (position >= windowStart && position + length <= windowStart + windowLength) return true;
+        if (length > buffer.capacity()) return false;
+
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), Math.max(length, CHUNK)));
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        windowStart = position;
+        windowLength = total;
+        return total >= length;
+    }
+
+    /**
+     * Returns the buffer index of a file position in the buffer.
+     *
+     * @param position the file position
+     * @return the index
+     */
+    private int index(long position) {
+        return (int) (position - windowStart);
+    }
+
+    /**
+     * Reads an unsigned byte from the buffer.
+     *
+     * @param position the file position
+     * @return the byte
+     */
+    private int u8(long position) {
+        return buffer.get(index(position)) & 0xFF;
+    }
+
+    /**
+     * Reads an unsigned big-endian 16-bit number from the buffer.
+     *
+     * @param position the file position
+     * @return the number
+     */
+    private int u16(long position) {
+        return buffer.getShort(index(position)) & 0xFFFF;
+    }
+
+    /**
+     * Reads an unsigned big-endian 32-bit number from the buffer.
+     *
+     * @param position the file position
+     * @return the number
+     */
+    private long u32(long position) {
+        return buffer.getInt(index(position)) & 0xFFFFFFFFL;
+    }
+}
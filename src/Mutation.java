@@ -0,0 +1,472 @@
+package src;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents a single change to a user's albums, photos or tags.
+ * Mutations are appended to the user's journal and replayed on top of the last snapshot when the user is loaded.
+ */
+public class Mutation {
+
+    /**
+     * The kinds of changes that can be recorded in a journal.
+     */
+    public enum Type {
+        ADD_ALBUM, REMOVE_ALBUM, RENAME_ALBUM, ADD_PHOTO, REMOVE_PHOTO, SET_CAPTION, ADD_TAG, REMOVE_TAG, ADD_TAG_TYPE,
+        SET_PERCEPTUAL_HASH
+    }
+
+    private final Type type;
+    private final String album; // Album the change applies to, or null
+    private final String target; // Photo path, new album name or tag type
+    private final String name; // Caption or tag name
+    private final String value; // Tag value
+    private final long hash; // Perceptual hash
+    private final long modified; // Modification time of the file the perceptual hash was computed from
+    private final List<Photo> photos; // Detached copies of added photos
+
+    /**
+     * Constructs a mutation that carries no perceptual hash.
+     *
+     * @param type the kind of change
+     * @param album the album name, or null
+     * @param target the photo path, new album name or tag type, or null
+     * @param name the caption or tag name, or null
+     * @param value the tag value, or null
+     * @param photos the photos carried by the change
+     */
+    private Mutation(Type type, String album, String target, String name, String value, List<Photo> photos) {
+        this(type, album, target, name, value, 0, 0, photos);
+    }
+
+    /**
+     * Constructs a mutation with all of its fields.
+     *
+     * @param type the kind of change
+     * @param album the album name, or null
+     * @param target the photo path, new album name or tag type, or null
+     * @param name the caption or tag name, or null
+     * @param value the tag value, or null
+     * @param hash the perceptual hash, or 0
+     * @param modified the modification time the perceptual hash was computed for, or 0
+     * @param photos the photos carried by the change
+     */
+    private Mutation(Type type, String album, String target, String name, String value, long hash, long modified,
+                     List<Photo> photos) {
+        this.type = type;
+        this.album = album;
+        this.target = target;
+        this.name = name;
+        this.value = value;
+        this.hash = hash;
+        this.modified = modified;
+        this.photos = photos;
+    }
+
+    /**
+     * Creates a mutation recording that an album was added, together with the photos it already holds.
+     *
+     * @param album the added album
+     * @return the mutation
+     */
+    public static Mutation addAlbum(Album album) {
+        List<Photo> copies = new ArrayList<>();
+        for (Photo photo : album.getPhotos()) {
+            copies.add(photo.copy());
+        }
+        return new Mutation(Type.ADD_ALBUM, album.getName(), null, null, null, copies);
+    }
+
+    /**
+     * Creates a mutation recording that an album was removed.
+     *
+     * @param albumName the name of the removed album
+     * @return the mutation
+     */
+    public static Mutation removeAlbum(String albumName) {
+        return new Mutation(Type.REMOVE_ALBUM, albumName, null, null, null, Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording that an album was renamed.
+     *
+     * @param oldName the previous album name
+     * @param newName the new album name
+     * @return the mutation
+     */
+    public static Mutation renameAlbum(String oldName, String newName) {
+        return new Mutation(Type.RENAME_ALBUM, oldName, newName, null, null, Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording that a photo was added to an album.
+     *
+     * @param albumName the album the photo was added to
+     * @param photo the added photo
+     * @return the mutation
+     */
+    public static Mutation addPhoto(String albumName, Photo photo) {
+        return new Mutation(Type.ADD_PHOTO, albumName, photo.getFilePath(), null, null,
+                Collections.singletonList(photo.copy()));
+    }
+
+    /**
+     * Creates a mutation recording that a photo was removed from an album.
+     *
+     * @param albumName the album the photo was removed from
+     * @param photo the removed photo
+     * @return the mutation
+     */
+    public static Mutation removePhoto(String albumName, Photo photo) {
+        return new Mutation(Type.REMOVE_PHOTO, albumName, photo.getFilePath(), null, null, Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording a new caption for a photo.
+     *
+     * @param photo the captioned photo
+     * @param caption the new caption
+     * @return the mutation
+     */
+    public static Mutation setCaption(Photo photo, String caption) {
+        return new Mutation(Type.SET_CAPTION, null, photo.getFilePath(), caption, null, Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording that a tag was added to a photo.
+     *
+     * @param photo the tagged photo
+     * @param tag the added tag
+     * @return the mutation
+     */
+    public static Mutation addTag(Photo photo, Tag tag) {
+        return new Mutation(Type.ADD_TAG, null, photo.getFilePath(), tag.getName(), tag.getValue(),
+                Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording that a tag was removed from a photo.
+     *
+     * @param photo the photo
+     * @param tag the removed tag
+     * @return the mutation
+     */
+    public static Mutation removeTag(Photo photo, Tag tag) {
+        return new Mutation(Type.REMOVE_TAG, null, photo.getFilePath(), tag.getName(), tag.getValue(),
+                Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording the perceptual hash computed for a photo.
+     *
+     * @param photo the hashed photo
+     * @param hash the perceptual hash
+     * @param modified the modification time of the file the hash was computed from
+     * @return the mutation
+     */
+    public static Mutation setPerceptualHash(Photo photo, long hash, long modified) {
+        return new Mutation(Type.SET_PERCEPTUAL_HASH, null, photo.getFilePath(), null, null, hash, modified,
+                Collections.emptyList());
+    }
+
+    /**
+     * Creates a mutation recording that a tag type was added to a user.
+     *
+     * @param tagType the new tag type
+     * @return the mutation
+     */
+    public static Mutation addTagType(String tagType) {
+        return new Mutation(Type.ADD_TAG_TYPE, null, tagType, null, null, Collections.emptyList());
+    }
+
+    /**
+     * Returns the kind of change.
+     *
+     * @return the mutation type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Applies this change to the given user. Changes that no longer match the user's data are ignored.
+     * Photo changes are queued on albums whose photos are not loaded, so replaying a journal does not load
+     * every album.
+     *
+     * @param user the user to update
+     */
+    public void applyTo(User user) {
+        Album target = album == null ? null : user.getAlbumByName(album);
+
+        switch (type) {
+            case ADD_ALBUM:
+                if (target == null) {
+                    Album created = new Album(album);
+                    for (Photo photo : photos) {
+                        created.addPhoto(findOrAdopt(user, photo));
+                    }
+                    user.addAlbum(created);
+                }
+                break;
+            case REMOVE_ALBUM:
+                if (target != null) user.removeAlbum(target);
+                break;
+            case RENAME_ALBUM:
+                if (target != null && !user.hasAlbum(this.target)) target.setName(this.target);
+                break;
+            case ADD_PHOTO:
+                if (target != null && target.findPhoto(this.target) == null) {
+                    target.addPhoto(findOrAdopt(user, photos.get(0)));
+                }
+                break;
+            case REMOVE_PHOTO:
+                Photo removed = target == null ? null : target.findPhoto(this.target);
+                if (removed != null) target.removePhoto(removed);
+                break;
+            case SET_CAPTION:
+            case ADD_TAG:
+            case REMOVE_TAG:
+            case SET_PERCEPTUAL_HASH:
+                updateTagIndex(user);
+                for (Album album : user.getAlbums()) {
+                    if (!album.isLoaded()) {
+                        album.defer(this);
+                        continue;
+                    }
+                    Photo photo = album.findPhoto(this.target);
+                    if (photo != null) {
+                        applyTo(photo);
+                        album.markModified(); // Even if a shared photo was already updated through another album
+                    }
+                }
+                break;
+            case ADD_TAG_TYPE:
+                user.addTagType(this.target);
+                break;
+        }
+    }
+
+    /**
+     * Applies a tag change to the user's tag index, if it has one, so that searches see changes queued on albums
+     * that are not loaded. Photos of loaded albums update the index themselves, which does no harm twice.
+     *
+     * @param user the user to update
+     */
+    private void updateTagIndex(User user) {
+        TagIndex index = user.peekTagIndex();
+        if (index == null) return;
+        if (type == Type.ADD_TAG) index.addTag(target, new Tag(name, value));
+        else if (type == Type.REMOVE_TAG) index.removeTag(target, new Tag(name, value));
+    }
+
+    /**
+     * Checks whether this is a caption, tag or perceptual hash change recorded for the given photo.
+     *
+     * @param photo the photo to check
+     * @return true if the change applies to the photo
+     */
+    boolean concerns(Photo photo) {
+        return (type == Type.SET_CAPTION || type == Type.ADD_TAG || type == Type.REMOVE_TAG
+                || type == Type.SET_PERCEPTUAL_HASH) && photo.getFilePath().equals(target);
+    }
+
+    /**
+     * Applies a caption, tag or perceptual hash change to a photo.
+     *
+     * @param photo the photo to update
+     */
+    void applyTo(Photo photo) {
+        switch (type) {
+            case SET_CAPTION:
+                photo.setCaption(name);
+                break;
+            case ADD_TAG:
+                photo.addTag(name, value);
+                break;
+            case REMOVE_TAG:
+                photo.removeTag(name, value);
+                break;
+            case SET_PERCEPTUAL_HASH:
+                photo.setPerceptualHash(hash, modified);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the photo instance the user already has loaded for the same file, so copies shared between
+     * albums stay shared after a replay, or the given photo if there is none.
+     *
+     * @param user the user to search
+     * @param photo the photo to adopt
+     * @return the photo to insert
+     */
+    private static Photo findOrAdopt(User user, Photo photo) {
+        for (Album album : user.getAlbums()) {
+            if (!album.isLoaded()) continue; // Albums loaded later reuse loaded photos themselves
+            Photo existing = album.findPhoto(photo.getFilePath());
+            if (existing != null) return existing;
+        }
+        return photo;
+    }
+
+
+    /**
+     * Writes this mutation in the journal record format. Counts are ints and strings are UTF-8 with an int
+     * length, so albums of any size and strings of any length are written whole. A perceptual hash change
+     * also carries its hash and modification time.
+     *
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeNullable(out, album);
+        writeNullable(out, target);
+        writeNullable(out, name);
+        writeNullable(out, value);
+        if (type == Type.SET_PERCEPTUAL_HASH) {
+            out.writeLong(hash);
+            out.writeLong(modified);
+        }
+        out.writeInt(photos.size());
+        for (Photo photo : photos) {
+            writeString(out, photo.getFilePath());
+            writeString(out, photo.getCaption());
+            out.writeLong(photo.getDateTaken().getTimeInMillis());
+            out.writeInt(photo.getTags().size());
+            for (Tag tag : photo.getTags()) {
+                writeString(out, tag.getName());
+                writeString(out, tag.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads a mutation written by {@link #writeTo(DataOutput)}, or by an older version of it.
+     *
+     * @param in the input to read from
+     * @param version the journal version the record was written in; before version 3, counts were shorts,
+     *                strings were limited to 64 KB by {@link DataOutput#writeUTF(String)} and perceptual hashes
+     *                were written as decimal strings in the name and value fields
+     * @return the mutation
+     * @throws IOException If an I/O error occurs or the record is malformed
+     */
+    public static Mutation readFrom(DataInput in, int version) throws IOException {
+        boolean old = version < 3;
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown journal record type: " + ordinal);
+        }
+        Type type = Type.values()[ordinal];
+        String album = readNullable(in, old);
+        String target = readNullable(in, old);
+        String name = readNullable(in, old);
+        String value = readNullable(in, old);
+        long hash = 0;
+        long modified = 0;
+        if (type == Type.SET_PERCEPTUAL_HASH) {
+            try {
+                hash = old ? Long.parseLong(name) : in.readLong();
+                modified = old ? Long.parseLong(value) : in.readLong();
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed perceptual hash in journal record", e);
+            }
+            name = null;
+            value = null;
+        }
+
+        int count = old ? in.readUnsignedShort() : readCount(in);
+        List<Photo> photos = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String path = readString(in, old);
+            String caption = readString(in, old);
+            Calendar date = Calendar.getInstance();
+            date.setTimeInMillis(in.readLong());
+
+            Photo photo = new Photo(path, date);
+            photo.setCaption(caption);
+            int tagCount = old ? in.readUnsignedShort() : readCount(in);
+            for (int t = 0; t < tagCount; t++) {
+                photo.addTag(readString(in, old), readString(in, old));
+            }
+            photos.add(photo);
+        }
+
+        return new Mutation(type, album, target, name, value, hash, modified, photos);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes.
+     *
+     * @param out the output to write to
+     * @param s the string
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}, or by
+     * {@link DataOutput#writeUTF(String)} in the old record format.
+     *
+     * @param in the input to read from
+     * @param old whether the record is in the format before version 3
+     * @return the string
+     * @throws IOException If an I/O error occurs or the length is malformed
+     */
+    private static String readString(DataInput in, boolean old) throws IOException {
+        if (old) return in.readUTF();
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a count or length, which cannot be negative.
+     *
+     * @param in the input to read from
+     * @return the count
+     * @throws IOException If an I/O error occurs or the count is negative
+     */
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Malformed journal record: negative length " + count);
+        return count;
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out the output to write to
+     * @param s the string, or null
+     * @throws IOException If an I/O error occurs
+     */
+    private static void writeNullable(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) writeString(out, s);
+    }
+
+    /**
+     * Reads a string written by {@link #writeNullable(DataOutput, String)}.
+     *
+     * @param in the input to read from
+     * @param old whether the record is in the format before version 3
+     * @return the string, or null
+     * @throws IOException If an I/O error occurs
+     */
+    private static String readNullable(DataInput in, boolean old) throws IOException {
+        return in.readBoolean() ? readString(in, old) : null;
+    }
+}
@@ -0,0 +1,96 @@
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
+
+/**
+ * Computes perceptual hashes: 64-bit fingerprints of what an image looks like rather than of its bytes, so that
+ * burst shots, re-encoded exports and resized copies of a photo differ in only a few bits.
+ * <p>
+ * The hash is a difference hash (dHash). The image is decoded at a small size, reduced to a 9 by 8 grid of
+ * brightness values, and each bit records whether a cell is brighter than its right neighbour. Brightness,
+ * contrast, compression and scale barely change these gradients, while different scenes disagree on about half
+ * of the bits. Decoding needs no display, so hashes can be computed headless.
+ * </p>
+ */
+public class PerceptualHash {
+
+    /** Hashes this many bits apart or fewer are treated as the same picture by default. */
+    public static final int DEFAULT_DISTANCE = 10;
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+    private static final int CELL = 8; // Decoded pixels averaged into each grid cell along each side
+
+    /**
+     * Computes the hash of an image file.
+     *
+     * @param file the image file
+     * @return the hash
+     * @throws IOException If the file cannot be read or decoded
+     */
+    public static long compute(File file) throws IOException {
+        Image image;
+        try (InputStream in = new FileInputStream(file)) {
+            // Decoding straight to the grid size would drop pixels; a few per cell are averaged instead
+            image = new Image(in, COLUMNS * CELL, ROWS * CELL, false, true);
+        }
+        if (image.isError()) {
+            throw new IOException("Cannot decode " + file.getName());
+        }
+        return compute(image);
+    }
+
+    /**
+     * Computes the hash of a decoded image. Small images give the best results, since every pixel is read.
+     *
+     * @param image the image
+     * @return the hash
+     */
+    public static long compute(Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        PixelReader reader = image.getPixelReader();
+
+        // Average the brightness of the pixels falling in each cell
+        double[] sums = new double[COLUMNS * ROWS];
+        int[] counts = new int[COLUMNS * ROWS];
+        for (int y = 0; y < height; y++) {
+            int row = y * ROWS / height;
+            for (int x = 0; x < width; x++) {
+                int column = x * COLUMNS / width;
+                int argb = reader.getArgb(x, y);
+                int cell = row * COLUMNS + column;
+                sums[cell] += 0.299 * ((argb >> 16) & 0xFF) + 0.587 * ((argb >> 8) & 0xFF) + 0.114 * (argb & 0xFF);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS - 1; column++) {
+                int cell = row * COLUMNS + column;
+                double left = counts[cell] == 0 ? 0 : sums[cell] / counts[cell];
+                double right = counts[cell + 1] == 0 ? 0 : sums[cell + 1] / counts[cell + 1];
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns how many bits two hashes differ in.
+     *
+     * @param a a hash
+     * @param b another hash
+     * @return the Hamming distance, from 0 for identical pictures to 64
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
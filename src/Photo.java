@@ -2,7 +2,8 @@ package src;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
@@ -23,7 +24,11 @@ public class Photo implements Serializable {
     private String caption;
     private Calendar dateTaken;
     private List<Tag> tags;
+    private long perceptualHash; // Hash of what the photo looks like, see PerceptualHash
+    private long perceptualHashModified; // Modification time of the file the hash was computed from, 0 if none
     private transient Image image;
+    private transient Journal journal; // Journal of the owning user, or null if not tracked
+    private transient TagIndex tagIndex; // Tag index of the owning user, or null if not indexed
 
     /**
      * Constructor to initialize a Photo object with file path and date taken.
@@ -77,19 +82,44 @@ public class Photo implements Serializable {
 
     /**
      * Returns the Image object representing the photo.
-     * Attempts to load the image from the file path.
+     * Attempts to load the image from the file path. Decoding blocks, so views load it through {@link ImageLoader}.
+     * The image is accounted for by {@link ImageMemory} and decoded at a lower resolution when memory is short.
      * 
      * @return the Image object or null if an error occurs
      */
     public Image getImage() {
-        try {
-            return new Image(new FileInputStream(filePath));
-        } catch (FileNotFoundException e) {
+        return ImageMemory.getShared().decode(getFile());
+    }
+
+    /**
+     * Returns the photo decoded to fit in the given size, which takes far less memory than a full decode when
+     * the photo is only shown at that size. Decoding blocks, so views load it through {@link ImageLoader}.
+     * 
+     * @param width the maximum width
+     * @param height the maximum height
+     * @return the Image object or null if an error occurs
+     */
+    public Image getImage(int width, int height) {
+        try (InputStream in = new FileInputStream(filePath)) {
+            Image image = new Image(in, width, height, true, true);
+            return image.isError() ? null : image;
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Returns a thumbnail of the photo that fits in a square of the given size.
+     * Thumbnails come from the shared {@link ThumbnailCache}, so the file is only decoded once.
+     * 
+     * @param size the maximum width and height of the thumbnail
+     * @return the thumbnail or null if the image cannot be read
+     */
+    public Image getThumbnail(int size) {
+        return ThumbnailCache.getShared().get(filePath, size, size);
+    }
+
     /**
      * Returns a list of tags associated with the photo.
      * 
@@ -129,10 +159,7 @@ public class Photo implements Serializable {
      * @param value the value of the tag
      */
     public void addTag(String name, String value) {
-        Tag tag = new Tag(name, value);
-        if (!tags.contains(tag)) {
-            tags.add(tag);
-        }
+        addTag(new Tag(name, value));
     }
 
     /**
@@ -141,7 +168,9 @@ public class Photo implements Serializable {
      * @param tag the tag to be removed
      */
     public void removeTag(Tag tag) {
-        tags.remove(tag);
+        if (!tags.remove(tag)) return;
+        if (journal != null) journal.record(Mutation.removeTag(this, tag));
+        if (tagIndex != null) tagIndex.removeTag(filePath, tag);
     }
 
     /**
@@ -151,8 +180,7 @@ public class Photo implements Serializable {
      * @param value the value of the tag to be removed
      */
     public void removeTag(String name, String value) {
-        Tag tag = new Tag(name, value);
-        tags.remove(tag);
+        removeTag(new Tag(name, value));
     }
 
     /**
@@ -161,6 +189,9 @@ public class Photo implements Serializable {
      * @param caption the caption to be set
      */
     public void setCaption(String caption) {
+        if (journal != null && !caption.equals(this.caption)) {
+            journal.record(Mutation.setCaption(this, caption));
+        }
         this.caption = caption;
     }
 
@@ -172,16 +203,115 @@ public class Photo implements Serializable {
     public void addTag(Tag tag) {
         if (!tags.contains(tag)) {
             tags.add(tag);
+            if (journal != null) journal.record(Mutation.addTag(this, tag));
+            if (tagIndex != null) tagIndex.addTag(filePath, tag);
         }
     }
 
     /**
-     * Compares this photo to another object for equality based on file path.
+     * Checks whether a perceptual hash has been computed for the photo.
+     * 
+     * @return true if {@link #getPerceptualHash()} is known
+     */
+    public boolean hasPerceptualHash() {
+        return perceptualHashModified != 0;
+    }
+
+    /**
+     * Returns the perceptual hash of the photo, which differs in few bits between photos that look alike.
+     * 
+     * @return the hash, or 0 if none has been computed
+     */
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * Returns the modification time of the file when its perceptual hash was computed, so a hash can be
+     * recomputed once the file changes.
+     * 
+     * @return the modification time in milliseconds, or 0 if no hash has been computed
+     */
+    public long getPerceptualHashModified() {
+        return perceptualHashModified;
+    }
+
+    /**
+     * Sets the perceptual hash of the photo.
+     * 
+     * @param hash the hash
+     * @param modified the modification time of the file the hash was computed from
+     */
+    public void setPerceptualHash(long hash, long modified) {
+        if (hash == perceptualHash && modified == perceptualHashModified) return;
+        if (journal != null) journal.record(Mutation.setPerceptualHash(this, hash, modified));
+        perceptualHash = hash;
+        perceptualHashModified = modified;
+    }
+
+    /**
+     * Attaches the journal that records changes to this photo.
+     * 
+     * @param journal the journal of the owning user, or null to stop recording
+     */
+    void attach(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Attaches the tag index that follows this photo's tags.
+     * 
+     * @param tagIndex the tag index of the owning user, or null to stop indexing
+     */
+    void attachIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    /**
+     * Restores the caption and tags of a photo read from a catalog file, without recording a change.
+     * 
+     * @param caption the caption
+     * @param tags the tags, which must not contain duplicates
+     */
+    void restore(String caption, List<Tag> tags) {
+        this.caption = caption;
+        this.tags = tags;
+    }
+
+    /**
+     * Restores the perceptual hash of a photo read from a catalog file, without recording a change.
+     * 
+     * @param hash the hash
+     * @param modified the modification time of the file the hash was computed from, 0 if none
+     */
+    void restorePerceptualHash(long hash, long modified) {
+        perceptualHash = hash;
+        perceptualHashModified = modified;
+    }
+
+    /**
+     * Returns a detached copy of this photo with the same file path, caption, date, tags and perceptual hash.
+     * 
+     * @return a copy that does not record changes
+     */
+    Photo copy() {
+        Photo copy = new Photo(filePath, (Calendar) dateTaken.clone());
+        copy.caption = caption;
+        copy.tags.addAll(tags);
+        copy.perceptualHash = perceptualHash;
+        copy.perceptualHashModified = perceptualHashModified;
+        return copy;
+    }
+
+    /**
+     * Compares this photo to another object for equality based on file path, so the same file is only ever
+     * once in an album.
      * 
      * @param o the object to compare
      * @return true if the two objects are equal, false otherwise
      */
-    public boolean Equals(Object o) {
+    @Override
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof Photo)) return false;
 
@@ -194,7 +324,8 @@ public class Photo implements Serializable {
      * 
      * @return a hash code value for the photo
      */
-    public int hash_Code() {
+    @Override
+    public int hashCode() {
         return Objects.hash(filePath);
     }
 
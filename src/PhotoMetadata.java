@@ -0,0 +1,122 @@
+package src;
+
+import java.util.Calendar;
+
+/**
+ * What a photo's file says about it, as read by a {@link MetadataReader}: when it was taken, its size, how it is
+ * oriented and where it was taken. Values the file does not record are left unknown.
+ */
+public class PhotoMetadata {
+
+    private final Calendar dateTaken;
+    private final boolean captureDate;
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final double latitude;
+    private final double longitude;
+
+    /**
+     * Constructs photo metadata.
+     *
+     * @param dateTaken the time the photo was taken, or the file's modification time if it does not say
+     * @param captureDate true if the date was recorded by the camera rather than taken from the file system
+     * @param width the width in pixels as stored, or 0 if unknown
+     * @param height the height in pixels as stored, or 0 if unknown
+     * @param orientation the EXIF orientation, 1 if the photo is stored upright
+     * @param latitude the latitude in degrees, north positive, or NaN if unknown
+     * @param longitude the longitude in degrees, east positive, or NaN if unknown
+     */
+    public PhotoMetadata(Calendar dateTaken, boolean captureDate, int width, int height, int orientation,
+                         double latitude, double longitude) {
+        this.dateTaken = dateTaken;
+        this.captureDate = captureDate;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * Returns the time the photo was taken, or the file's modification time if the file does not record it.
+     *
+     * @return a copy of the date
+     */
+    public Calendar getDateTaken() {
+        return (Calendar) dateTaken.clone();
+    }
+
+    /**
+     * Checks whether the date was recorded by the camera rather than taken from the file system.
+     *
+     * @return true if the date is the capture date
+     */
+    public boolean hasCaptureDate() {
+        return captureDate;
+    }
+
+    /**
+     * Returns the width of the image as stored, before any rotation.
+     *
+     * @return the width in pixels, or 0 if unknown
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image as stored, before any rotation.
+     *
+     * @return the height in pixels, or 0 if unknown
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the EXIF orientation: 1 if the photo is stored upright, 3 if upside down, 6 or 8 if it must be
+     * turned a quarter clockwise or counterclockwise, and 2, 4, 5 or 7 for the mirrored variants.
+     *
+     * @return the orientation, from 1 to 8
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Checks whether the photo is shown turned a quarter, so its width and height swap on screen.
+     *
+     * @return true if the orientation is 5 to 8
+     */
+    public boolean isTransposed() {
+        return orientation >= 5;
+    }
+
+    /**
+     * Checks whether the file records where the photo was taken.
+     *
+     * @return true if the latitude and longitude are known
+     */
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * Returns the latitude the photo was taken at.
+     *
+     * @return the latitude in degrees, north positive, or NaN if unknown
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Returns the longitude the photo was taken at.
+     *
+     * @return the longitude in degrees, east positive, or NaN if unknown
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+}
@@ -16,6 +16,7 @@ public class Main extends Application {
 
     /**
      * Starts the JavaFX application by loading the login screen and setting the initial stage.
+     * Stored thumbnails nothing refers to any more are collected in the background.
      *
      * @param primaryStage the primary stage for this application.
      * @throws Exception if an error occurs during loading the FXML file or setting up the stage.
@@ -29,17 +30,21 @@ public class Main extends Application {
         primaryStage.setTitle("Photo Album Login");
         primaryStage.setScene(new Scene(root, 400, 300));
         primaryStage.show();
+
+        Thread collector = new Thread(() -> DataManager.collectThumbnails(false), "thumbnail-collector");
+        collector.setDaemon(true);
+        collector.start();
     }
 
     /**
      * Called when the application is about to stop.
-     * Saves the current user's data using {@link DataManager#saveCurrentUser()}.
+     * Writes any pending changes using {@link DataManager#flush()}.
      *
      * @throws Exception if an error occurs during saving user data.
      */
     @Override
     public void stop() throws Exception {
-        DataManager.saveCurrentUser();
+        DataManager.flush();
     }
 
     /**
@@ -0,0 +1,767 @@
+package src;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A search over a user's photos, built from nested AND, OR and NOT over simple predicates.
+ * <p>
+ * Queries are written in a small expression language, read by {@link #parse(String)}:
+ * </p>
+ * <pre>
+ * person=alice                 a tag with that name and value
+ * has:person                   any tag with that name
+ * caption:beach                the caption contains the text
+ * date:2023-01-01..2023-06-30  taken on those days, inclusive; either end may be left out
+ * date:2023-05-01              taken on that day
+ * album:Vacation               in that album
+ * a AND b, a OR b, NOT a       combined; AND binds tighter than OR, and may be left out
+ * ( ... )                      grouping
+ * </pre>
+ * Names and values holding spaces or any of {@code ()=:"} are written in double quotes, with {@code \}
+ * escaping a quote. Date bounds may also be epoch milliseconds after an {@code @}. Tags, album names and
+ * captions are matched ignoring case.
+ * <p>
+ * {@link #run(User)} evaluates a query against the user's {@link TagIndex} through a {@link QueryPlanner}:
+ * tags, dates and albums are answered as bitmaps of photo IDs, the most selective first, and captions are checked
+ * only on the photos still in question. {@link #matches(Photo, User)} and {@link #scan(User)} check photos one by
+ * one instead, for callers without an index.
+ * </p>
+ */
+public abstract class Query {
+
+    /**
+     * Reads a query written in the expression language.
+     *
+     * @param text the query
+     * @return the query
+     * @throws IllegalArgumentException If the text is not a valid query
+     */
+    public static Query parse(String text) {
+        return new QueryParser(text).parse();
+    }
+
+    /**
+     * Returns a query matching every photo.
+     *
+     * @return the query
+     */
+    public static Query all() {
+        return new And(Collections.emptyList());
+    }
+
+    /**
+     * Returns a query matching photos with a tag.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     * @return the query
+     */
+    public static Query tag(String name, String value) {
+        return new TagEquals(name, value);
+    }
+
+    /**
+     * Returns a query matching photos with any tag of a name.
+     *
+     * @param name the tag name
+     * @return the query
+     */
+    public static Query hasTag(String name) {
+        return new HasTag(name);
+    }
+
+    /**
+     * Returns a query matching photos whose caption contains a text.
+     *
+     * @param text the text
+     * @return the query
+     */
+    public static Query caption(String text) {
+        return new CaptionContains(text);
+    }
+
+    /**
+     * Returns a query matching photos taken within a range of dates.
+     *
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the query
+     */
+    public static Query dateRange(long from, long to) {
+        return new DateRange(from, to);
+    }
+
+    /**
+     * Returns a query matching photos in an album.
+     *
+     * @param name the album name
+     * @return the query
+     */
+    public static Query album(String name) {
+        return new InAlbum(name);
+    }
+
+    /**
+     * Returns a query matching photos that match every one of some queries.
+     *
+     * @param queries the queries; none matches every photo
+     * @return the query
+     */
+    public static Query and(List<Query> queries) {
+        return queries.size() == 1 ? queries.get(0) : new And(new ArrayList<>(queries));
+    }
+
+    /**
+     * Returns a query matching photos that match every one of some queries.
+     *
+     * @param queries the queries
+     * @return the query
+     */
+    public static Query and(Query... queries) {
+        return and(Arrays.asList(queries));
+    }
+
+    /**
+     * Returns a query matching photos that match any of some queries.
+     *
+     * @param queries the queries; none matches no photo
+     * @return the query
+     */
+    public static Query or(List<Query> queries) {
+        return queries.size() == 1 ? queries.get(0) : new Or(new ArrayList<>(queries));
+    }
+
+    /**
+     * Returns a query matching photos that match any of some queries.
+     *
+     * @param queries the queries
+     * @return the query
+     */
+    public static Query or(Query... queries) {
+        return or(Arrays.asList(queries));
+    }
+
+    /**
+     * Returns a query matching photos that do not match a query.
+     *
+     * @param query the query
+     * @return the query
+     */
+    public static Query not(Query query) {
+        return new Not(query);
+    }
+
+    /**
+     * Finds the user's photos matching this query, through the user's tag index.
+     *
+     * @param user the user
+     * @return the matching photos, each once
+     */
+    public List<Photo> run(User user) {
+        return new QueryPlanner(user).run(this);
+    }
+
+    /**
+     * Finds the user's photos matching this query by checking every photo, without an index.
+     *
+     * @param user the user
+     * @return the matching photos, each once, in album order
+     */
+    public List<Photo> scan(User user) {
+        Map<String, Photo> matching = new LinkedHashMap<>();
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getPhotos()) {
+                if (!matching.containsKey(photo.getFilePath()) && matches(photo, user)) {
+                    matching.put(photo.getFilePath(), photo);
+                }
+            }
+        }
+        return new ArrayList<>(matching.values());
+    }
+
+    /**
+     * Checks whether a photo matches this query.
+     *
+     * @param photo the photo
+     * @param user the owner of the photo, whose albums album predicates look in
+     * @return true if it matches
+     */
+    public abstract boolean matches(Photo photo, User user);
+
+    /**
+     * Checks whether this query can be answered from the index alone, without looking at photos.
+     *
+     * @return true if every predicate in it is indexed
+     */
+    abstract boolean isIndexed();
+
+    /**
+     * Estimates how many photos match this query, cheaply.
+     *
+     * @param planner the planner evaluating the query
+     * @return the estimated number of photos
+     */
+    abstract int estimate(QueryPlanner planner);
+
+    /**
+     * Finds the photos among some candidates that match this query.
+     *
+     * @param planner the planner evaluating the query
+     * @param candidates the IDs of the photos still in question
+     * @return the IDs of the matching candidates, which the caller may change
+     */
+    abstract CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates);
+
+    /**
+     * Writes this query in the expression language, so that {@link #parse(String)} reads it back.
+     *
+     * @return the query text
+     */
+    @Override
+    public abstract String toString();
+
+    /**
+     * Photos carrying a tag.
+     */
+    private static final class TagEquals extends Query {
+        private final Tag tag;
+
+        /**
+         * Constructs the predicate.
+         *
+         * @param name the tag name
+         * @param value the tag value
+         */
+        TagEquals(String name, String value) {
+            this.tag = new Tag(name, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            return photo.getTags().contains(tag);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            return planner.getIndex().find(tag.getName(), tag.getValue()).cardinality();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            return CompressedBitmap.and(planner.getIndex().find(tag.getName(), tag.getValue()), candidates);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return QueryParser.quote(tag.getName()) + "=" + QueryParser.quote(tag.getValue());
+        }
+    }
+
+    /**
+     * Photos carrying any tag of a name.
+     */
+    private static final class HasTag extends Query {
+        private final String name;
+
+        /**
+         * Constructs the predicate.
+         *
+         * @param name the tag name
+         */
+        HasTag(String name) {
+            this.name = name;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            for (Tag tag : photo.getTags()) {
+                if (tag.getName().equalsIgnoreCase(name)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            return planner.getIndex().findName(name).cardinality();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            return CompressedBitmap.and(planner.getIndex().findName(name), candidates);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "has:" + QueryParser.quote(name);
+        }
+    }
+
+    /**
+     * Photos whose caption contains a text. Captions are not indexed, so candidates are checked one by one.
+     */
+    private static final class CaptionContains extends Query {
+        private final String text;
+
+        /**
+         * Constructs the predicate.
+         *
+         * @param text the text
+         */
+        CaptionContains(String text) {
+            this.text = text.toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            String caption = photo.getCaption();
+            return caption != null && caption.toLowerCase(Locale.ROOT).contains(text);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            return planner.getUniverseSize(); // Unknown without reading the captions
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            return planner.filter(candidates, this);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "caption:" + QueryParser.quote(text);
+        }
+    }
+
+    /**
+     * Photos taken within a range of dates.
+     */
+    private static final class DateRange extends Query {
+        private final long from;
+        private final long to;
+
+        /**
+         * Constructs the predicate.
+         *
+         * @param from the earliest date, inclusive, in epoch milliseconds
+         * @param to the latest date, inclusive
+         */
+        DateRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            long time = photo.getDateTaken().getTimeInMillis();
+            return time >= from && time <= to;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            return planner.getIndex().countDates(from, to);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            return CompressedBitmap.and(planner.getIndex().findDates(from, to), candidates);
+        }
+
+        /**
+         * {@inheritDoc} Bounds that are not whole days in the default time zone are written as epoch
+         * milliseconds after an {@code @}.
+         */
+        @Override
+        public String toString() {
+            return "date:" + (from == Long.MIN_VALUE ? "" : formatDay(from, false)) + ".."
+                    + (to == Long.MAX_VALUE ? "" : formatDay(to, true));
+        }
+
+        /**
+         * Writes a bound as a day if it is the start or end of one.
+         *
+         * @param millis the bound
+         * @param end whether it is the last millisecond of its day
+         * @return the day, or the milliseconds
+         */
+        private static String formatDay(long millis, boolean end) {
+            ZoneId zone = ZoneId.systemDefault();
+            LocalDate day = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+            long expected = end ? QueryParser.endOfDay(day) : QueryParser.startOfDay(day);
+            return expected == millis ? day.toString() : "@" + millis;
+        }
+    }
+
+    /**
+     * Photos in an album.
+     */
+    private static final class InAlbum extends Query {
+        private final String name;
+
+        /**
+         * Constructs the predicate.
+         *
+         * @param name the album name
+         */
+        InAlbum(String name) {
+            this.name = name;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            Album album = user.getAlbumByName(name);
+            return album != null && album.findPhoto(photo.getFilePath()) != null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            Album album = planner.getUser().getAlbumByName(name);
+            return album == null ? 0 : album.getPhotoCount();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            Album album = planner.getUser().getAlbumByName(name);
+            if (album == null) return new CompressedBitmap();
+            return CompressedBitmap.and(planner.getIndex().getAlbum(album), candidates);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "album:" + QueryParser.quote(name);
+        }
+    }
+
+    /**
+     * Photos matching every one of some queries. The most selective indexed queries are evaluated first, each
+     * on the photos the previous ones left, and evaluation stops as soon as no photo is left.
+     */
+    private static final class And extends Query {
+        private final List<Query> queries;
+
+        /**
+         * Constructs the combination.
+         *
+         * @param queries the queries
+         */
+        And(List<Query> queries) {
+            this.queries = queries;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            for (Query query : queries) {
+                if (!query.matches(photo, user)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            for (Query query : queries) {
+                if (!query.isIndexed()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            int estimate = planner.getUniverseSize();
+            for (Query query : queries) estimate = Math.min(estimate, planner.estimate(query));
+            return estimate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            CompressedBitmap remaining = candidates;
+            for (Query query : planner.order(queries)) {
+                if (remaining.isEmpty()) break;
+                remaining = query.evaluate(planner, remaining);
+            }
+            return remaining == candidates ? candidates.copy() : remaining;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            if (queries.isEmpty()) return "()";
+            return join(queries, " AND ");
+        }
+    }
+
+    /**
+     * Photos matching any of some queries. Indexed queries are evaluated first, and later queries only check
+     * the photos no earlier one matched; evaluation stops once every candidate matched.
+     */
+    private static final class Or extends Query {
+        private final List<Query> queries;
+
+        /**
+         * Constructs the combination.
+         *
+         * @param queries the queries
+         */
+        Or(List<Query> queries) {
+            this.queries = queries;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            for (Query query : queries) {
+                if (query.matches(photo, user)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            for (Query query : queries) {
+                if (!query.isIndexed()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            long estimate = 0;
+            for (Query query : queries) estimate += planner.estimate(query);
+            return (int) Math.min(estimate, planner.getUniverseSize());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            CompressedBitmap matching = new CompressedBitmap();
+            CompressedBitmap remaining = candidates;
+            for (Query query : planner.order(queries)) {
+                matching = CompressedBitmap.or(matching, query.evaluate(planner, remaining));
+                remaining = CompressedBitmap.andNot(candidates, matching);
+                if (remaining.isEmpty()) break;
+            }
+            return matching;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            if (queries.isEmpty()) return "NOT ()";
+            return join(queries, " OR ");
+        }
+    }
+
+    /**
+     * Photos not matching a query.
+     */
+    private static final class Not extends Query {
+        private final Query query;
+
+        /**
+         * Constructs the negation.
+         *
+         * @param query the query
+         */
+        Not(Query query) {
+            this.query = query;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Photo photo, User user) {
+            return !query.matches(photo, user);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isIndexed() {
+            return query.isIndexed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int estimate(QueryPlanner planner) {
+            return planner.getUniverseSize() - planner.estimate(query);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        CompressedBitmap evaluate(QueryPlanner planner, CompressedBitmap candidates) {
+            return CompressedBitmap.andNot(candidates, query.evaluate(planner, candidates));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "NOT " + group(query);
+        }
+    }
+
+    /**
+     * Writes queries joined by an operator, grouping those that would otherwise bind differently.
+     *
+     * @param queries the queries
+     * @param operator the operator, with spaces around it
+     * @return the text
+     */
+    private static String join(List<Query> queries, String operator) {
+        StringBuilder text = new StringBuilder();
+        for (Query query : queries) {
+            if (text.length() > 0) text.append(operator);
+            text.append(group(query));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes a query, in parentheses if it combines others.
+     *
+     * @param query the query
+     * @return the text
+     */
+    private static String group(Query query) {
+        boolean compound = query instanceof And || query instanceof Or;
+        return compound ? "(" + query + ")" : query.toString();
+    }
+}
@@ -0,0 +1,346 @@
+package src;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads queries written in the expression language described by {@link Query}, by recursive descent:
+ * <pre>
+ * query  = and { "OR" and }
+ * and    = unary { [ "AND" ] unary }
+ * unary  = "NOT" unary | "(" [ query ] ")" | term
+ * term   = value "=" value | field ":" value
+ * value  = word | quoted string
+ * </pre>
+ * Keywords are recognised in any case. Errors report the position in the text they were found at.
+ */
+class QueryParser {
+
+    private static final String SPECIAL = "()=:\""; // Characters that end a word
+
+    /**
+     * The kinds of tokens.
+     */
+    private enum Kind {
+        WORD, STRING, OPEN, CLOSE, EQUALS, COLON, END
+    }
+
+    /**
+     * A token of the query text.
+     */
+    private static final class Token {
+        final Kind kind;
+        final String text;
+        final int position;
+
+        /**
+         * Constructs a token.
+         *
+         * @param kind the kind
+         * @param text the word or the unquoted string
+         * @param position where it starts in the query text
+         */
+        Token(Kind kind, String text, int position) {
+            this.kind = kind;
+            this.text = text;
+            this.position = position;
+        }
+
+        /**
+         * Checks whether this token is an unquoted keyword.
+         *
+         * @param keyword the keyword, in upper case
+         * @return true if it is
+         */
+        boolean is(String keyword) {
+            return kind == Kind.WORD && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    private final List<Token> tokens;
+    private int next; // Index of the current token
+
+    /**
+     * Constructs a parser and splits the text into tokens.
+     *
+     * @param text the query text
+     * @throws IllegalArgumentException If a quoted string is not closed
+     */
+    QueryParser(String text) {
+        this.tokens = tokenize(text);
+    }
+
+    /**
+     * Reads the whole query. Empty text matches every photo.
+     *
+     * @return the query
+     * @throws IllegalArgumentException If the text is not a valid query
+     */
+    Query parse() {
+        if (current().kind == Kind.END) return Query.all();
+        Query query = or();
+        if (current().kind != Kind.END) throw error("Unexpected '" + current().text + "'");
+        return query;
+    }
+
+    /**
+     * Reads terms joined by OR.
+     *
+     * @return the query
+     */
+    private Query or() {
+        List<Query> queries = new ArrayList<>();
+        queries.add(and());
+        while (current().is("OR")) {
+            next++;
+            queries.add(and());
+        }
+        return Query.or(queries);
+    }
+
+    /**
+     * Reads terms joined by AND, or simply written one after another.
+     *
+     * @return the query
+     */
+    private Query and() {
+        List<Query> queries = new ArrayList<>();
+        queries.add(unary());
+        while (true) {
+            Token token = current();
+            if (token.is("AND")) {
+                next++;
+            } else if (token.is("OR") || (token.kind != Kind.WORD && token.kind != Kind.STRING
+                    && token.kind != Kind.OPEN)) {
+                break;
+            }
+            queries.add(unary());
+        }
+        return Query.and(queries);
+    }
+
+    /**
+     * Reads a negation, a group in parentheses or a single term.
+     *
+     * @return the query
+     */
+    private Query unary() {
+        Token token = current();
+        if (token.is("NOT")) {
+            next++;
+            return Query.not(unary());
+        }
+        if (token.kind == Kind.OPEN) {
+            next++;
+            if (current().kind == Kind.CLOSE) {
+                next++;
+                return Query.all();
+            }
+            Query query = or();
+            if (current().kind != Kind.CLOSE) throw error("Expected ')'");
+            next++;
+            return query;
+        }
+        return term();
+    }
+
+    /**
+     * Reads a tag equality or a field predicate.
+     *
+     * @return the query
+     */
+    private Query term() {
+        Token name = current();
+        if (name.kind != Kind.WORD && name.kind != Kind.STRING) throw error("Expected a search term");
+        next++;
+
+        if (current().kind == Kind.EQUALS) {
+            next++;
+            return Query.tag(name.text, value());
+        }
+        if (current().kind != Kind.COLON || name.kind != Kind.WORD) {
+            throw error("Expected '=' or ':' after '" + name.text + "'");
+        }
+        next++;
+
+        Token value = current();
+        switch (name.text.toLowerCase(Locale.ROOT)) {
+            case "has":
+                return Query.hasTag(value());
+            case "caption":
+                return Query.caption(value());
+            case "album":
+                return Query.album(value());
+            case "date":
+                return date(value(), value.position);
+            default:
+                throw new IllegalArgumentException("Unknown field '" + name.text + "' at position "
+                        + (name.position + 1));
+        }
+    }
+
+    /**
+     * Reads a word or quoted string.
+     *
+     * @return its text
+     */
+    private String value() {
+        Token token = current();
+        if (token.kind != Kind.WORD && token.kind != Kind.STRING) throw error("Expected a value");
+        next++;
+        return token.text;
+    }
+
+    /**
+     * Reads a date range: a day, or two bounds around {@code ..} of which either may be left out. A bound is a
+     * day, taken as a whole, or epoch milliseconds after an {@code @}.
+     *
+     * @param text the range
+     * @param position where it starts in the query text
+     * @return the query
+     */
+    private Query date(String text, int position) {
+        try {
+            int dots = text.indexOf("..");
+            if (dots < 0) {
+                LocalDate day = LocalDate.parse(text);
+                return Query.dateRange(startOfDay(day), endOfDay(day));
+            }
+            String from = text.substring(0, dots);
+            String to = text.substring(dots + 2);
+            return Query.dateRange(from.isEmpty() ? Long.MIN_VALUE : bound(from, false),
+                    to.isEmpty() ? Long.MAX_VALUE : bound(to, true));
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid date '" + text + "' at position " + (position + 1));
+        }
+    }
+
+    /**
+     * Reads one bound of a date range.
+     *
+     * @param text a day or {@code @} and epoch milliseconds
+     * @param end whether it is the upper bound, which includes the whole day
+     * @return the bound in epoch milliseconds
+     */
+    private static long bound(String text, boolean end) {
+        if (text.startsWith("@")) return Long.parseLong(text.substring(1));
+        LocalDate day = LocalDate.parse(text);
+        return end ? endOfDay(day) : startOfDay(day);
+    }
+
+    /**
+     * Returns the first millisecond of a day in the default time zone.
+     *
+     * @param day the day
+     * @return the time in epoch milliseconds
+     */
+    static long startOfDay(LocalDate day) {
+        return day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Returns the last millisecond of a day in the default time zone.
+     *
+     * @param day the day
+     * @return the time in epoch milliseconds
+     */
+    static long endOfDay(LocalDate day) {
+        return startOfDay(day.plusDays(1)) - 1;
+    }
+
+    /**
+     * Writes a name or value so that the parser reads it back as one value: as it is if it is a plain word,
+     * otherwise in quotes.
+     *
+     * @param s the name or value
+     * @return the text
+     */
+    static String quote(String s) {
+        boolean plain = !s.isEmpty() && !s.equalsIgnoreCase("AND") && !s.equalsIgnoreCase("OR")
+                && !s.equalsIgnoreCase("NOT");
+        for (int i = 0; i < s.length() && plain; i++) {
+            plain = isWordChar(s.charAt(i));
+        }
+        if (plain) return s;
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Returns the current token.
+     *
+     * @return the token
+     */
+    private Token current() {
+        return tokens.get(next);
+    }
+
+    /**
+     * Builds the exception for an error at the current token.
+     *
+     * @param message what is wrong
+     * @return the exception
+     */
+    private IllegalArgumentException error(String message) {
+        Token token = current();
+        String where = token.kind == Kind.END ? "at the end" : "at position " + (token.position + 1);
+        return new IllegalArgumentException(message + " " + where);
+    }
+
+    /**
+     * Splits a query into tokens, ending with an {@link Kind#END} token.
+     *
+     * @param text the query text
+     * @return the tokens
+     * @throws IllegalArgumentException If a quoted string is not closed
+     */
+    private static List<Token> tokenize(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(Kind.OPEN, "(", i++));
+            } else if (c == ')') {
+                tokens.add(new Token(Kind.CLOSE, ")", i++));
+            } else if (c == '=') {
+                tokens.add(new Token(Kind.EQUALS, "=", i++));
+            } else if (c == ':') {
+                tokens.add(new Token(Kind.COLON, ":", i++));
+            } else if (c == '"') {
+                int start = i++;
+                StringBuilder s = new StringBuilder();
+                while (i < text.length() && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\' && i + 1 < text.length()) i++;
+                    s.append(text.charAt(i++));
+                }
+                if (i == text.length()) {
+                    throw new IllegalArgumentException("Unclosed quote at position " + (start + 1));
+                }
+                i++;
+                tokens.add(new Token(Kind.STRING, s.toString(), start));
+            } else {
+                int start = i;
+                while (i < text.length() && isWordChar(text.charAt(i))) i++;
+                tokens.add(new Token(Kind.WORD, text.substring(start, i), start));
+            }
+        }
+        tokens.add(new Token(Kind.END, "", text.length()));
+        return tokens;
+    }
+
+    /**
+     * Checks whether a character can be part of an unquoted word.
+     *
+     * @param c the character
+     * @return true if it can
+     */
+    private static boolean isWordChar(char c) {
+        return !Character.isWhitespace(c) && SPECIAL.indexOf(c) < 0;
+    }
+}
@@ -0,0 +1,117 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a {@link Query} against a user's {@link TagIndex}.
+ * <p>
+ * Each predicate estimates how many photos it matches from the index: tag and album bitmaps know their size,
+ * and a date range is counted by two binary searches. The operands of AND and OR are evaluated in order of
+ * cost: predicates the index answers come first, fewest matches first, and predicates that must look at photos,
+ * such as captions, come last and only look at the photos the others left in question. An AND stops as soon as
+ * no photo is left, and an OR as soon as every photo matched.
+ * </p>
+ */
+class QueryPlanner {
+
+    private final User user;
+    private final TagIndex index;
+    private final CompressedBitmap universe; // Every photo of the user
+    private final int universeSize;
+    private final Map<Query, Integer> estimates = new IdentityHashMap<>();
+
+    /**
+     * Constructs a planner for a user, building the user's index if needed.
+     *
+     * @param user the user
+     */
+    QueryPlanner(User user) {
+        this.user = user;
+        this.index = user.getTagIndex();
+        this.universe = index.getAll();
+        this.universeSize = universe.cardinality();
+    }
+
+    /**
+     * Finds the photos matching a query.
+     *
+     * @param query the query
+     * @return the matching photos, each once
+     */
+    List<Photo> run(Query query) {
+        return index.getPhotos(query.evaluate(this, universe));
+    }
+
+    /**
+     * Returns the user being searched.
+     *
+     * @return the user
+     */
+    User getUser() {
+        return user;
+    }
+
+    /**
+     * Returns the user's index.
+     *
+     * @return the index
+     */
+    TagIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the number of photos being searched.
+     *
+     * @return the photo count
+     */
+    int getUniverseSize() {
+        return universeSize;
+    }
+
+    /**
+     * Returns a query's estimate, working it out once per planner.
+     *
+     * @param query the query
+     * @return the estimated number of matching photos
+     */
+    int estimate(Query query) {
+        Integer estimate = estimates.get(query);
+        if (estimate == null) {
+            estimate = query.estimate(this);
+            estimates.put(query, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Orders the operands of an AND or OR for evaluation: indexed ones first, then by estimated matches.
+     *
+     * @param queries the operands
+     * @return the operands in evaluation order
+     */
+    List<Query> order(List<Query> queries) {
+        List<Query> ordered = new ArrayList<>(queries);
+        ordered.sort(Comparator.comparing((Query query) -> !query.isIndexed()).thenComparingInt(this::estimate));
+        return ordered;
+    }
+
+    /**
+     * Checks photos one by one, for predicates the index cannot answer.
+     *
+     * @param candidates the IDs of the photos to check
+     * @param predicate the predicate
+     * @return the IDs of the photos matching it
+     */
+    CompressedBitmap filter(CompressedBitmap candidates, Query predicate) {
+        CompressedBitmap matching = new CompressedBitmap();
+        for (Photo photo : index.getPhotos(candidates)) {
+            if (predicate.matches(photo, user)) matching.add(index.getId(photo));
+        }
+        return matching;
+    }
+}
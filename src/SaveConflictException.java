@@ -0,0 +1,36 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a user is saved after another instance of the application saved the same user.
+ * The unsaved changes have been written on top of the other instance's changes, so nothing is lost, but the
+ * loaded user does not show the other instance's changes until it is loaded again.
+ */
+public class SaveConflictException extends IOException {
+
+    /** The serial version UID for this class. */
+    private static final long serialVersionUID = 1L;
+
+    /** The user whose files were changed by another instance. */
+    private final String username;
+
+    /**
+     * Constructs a conflict for the given user.
+     *
+     * @param username the user whose files were changed by another instance
+     */
+    public SaveConflictException(String username) {
+        super("User " + username + " was changed by another instance; the changes were merged");
+        this.username = username;
+    }
+
+    /**
+     * Returns the user whose files were changed by another instance.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+}
@@ -0,0 +1,138 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves users with unsaved changes on a background thread.
+ * <p>
+ * Every change marks its user dirty and (re)starts a short quiet period; when the period passes without
+ * further changes, all dirty users are written in one go. A burst of edits therefore costs a single save,
+ * and a user without changes is never written at all.
+ * </p>
+ * <p>
+ * A user that fails to save stays dirty and is tried again after a delay that doubles with every failure in a
+ * row, so a passing I/O error does not leave changes unsaved until the next edit.
+ * </p>
+ */
+public class SaveService {
+
+    private static final long QUIET_PERIOD_MS = 500; // Delay after the last change before saving
+    private static final long MAX_DELAY_MS = 5000; // Longest a change may wait while edits keep coming
+    private static final long RETRY_MIN_MS = 1000; // Delay before retrying after the first failed save
+    private static final long RETRY_MAX_MS = 60000; // Longest delay between retries
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "photo-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<User> dirtyUsers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private ScheduledFuture<?> scheduled; // Pending save, or null
+    private long firstChange; // Time the oldest unsaved change was reported
+    private long retryDelay; // Delay before the next retry, or 0 if the last save succeeded
+
+    /**
+     * Marks a user dirty and schedules a save after the quiet period.
+     *
+     * @param user the user that changed
+     */
+    public synchronized void changed(User user) {
+        long now = System.currentTimeMillis();
+        if (dirtyUsers.isEmpty()) {
+            firstChange = now;
+        }
+        dirtyUsers.add(user);
+
+        // Keep postponing while edits arrive, but never past the maximum delay
+        if (scheduled != null) {
+            if (now - firstChange >= MAX_DELAY_MS) return;
+            scheduled.cancel(false);
+        }
+        scheduled = executor.schedule(this::saveDirtyUsers, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves every dirty user immediately and waits for the writes to finish.
+     *
+     * @throws IOException If an I/O error occurs while saving.
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            if (scheduled != null) scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        try {
+            IOException error = executor.submit(this::saveDirtyUsers).get();
+            if (error != null) throw error;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving user data", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error saving user data", e.getCause());
+        }
+    }
+
+    /**
+     * Writes all dirty users. Runs on the saver thread.
+     *
+     * @return the last error that occurred, or null if every user was saved
+     */
+    private IOException saveDirtyUsers() {
+        List<User> users;
+        synchronized (this) {
+            users = new ArrayList<>(dirtyUsers);
+            dirtyUsers.clear();
+            scheduled = null;
+        }
+
+        IOException error = null;
+        List<User> failed = new ArrayList<>();
+        for (User user : users) {
+            try {
+                DataManager.saveUser(user);
+            } catch (SaveConflictException e) {
+                System.err.println(e.getMessage()); // Saved; the merged user is read on its next load
+            } catch (IOException e) {
+                System.err.println("Error saving user: " + user.getUsername());
+                failed.add(user);
+                error = e;
+            }
+        }
+        retry(failed);
+        return error;
+    }
+
+    /**
+     * Marks users whose save failed dirty again and schedules another attempt, backing off while saves keep
+     * failing. Runs on the saver thread.
+     *
+     * @param failed the users that were not saved
+     */
+    private synchronized void retry(List<User> failed) {
+        if (failed.isEmpty()) {
+            retryDelay = 0;
+            return;
+        }
+        if (dirtyUsers.isEmpty()) {
+            firstChange = System.currentTimeMillis();
+        }
+        dirtyUsers.addAll(failed);
+        retryDelay = retryDelay == 0 ? RETRY_MIN_MS : Math.min(retryDelay * 2, RETRY_MAX_MS);
+        if (scheduled == null) { // Otherwise edits made meanwhile already scheduled a save, which retries them
+            scheduled = executor.schedule(this::saveDirtyUsers, retryDelay, TimeUnit.MILLISECONDS);
+        }
+        System.err.println("Retrying failed saves in " + retryDelay + " ms");
+    }
+}
@@ -0,0 +1,277 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds photos that look alike by their perceptual hashes, without comparing every pair.
+ * <p>
+ * Photos are kept in a multi-index hash table: each 64-bit hash is cut into four 16-bit blocks, and each block
+ * indexes the photo in its own table. Two hashes at most {@code d} bits apart must agree to within {@code d / 4}
+ * bits in at least one block, so a search only looks up the few keys that close to the query in each table and
+ * compares the photos filed under them. Every table is a head array over all keys plus a linked list through
+ * the photos, so adding a photo never moves others.
+ * </p>
+ * <p>
+ * Photos without a perceptual hash are left out.
+ * </p>
+ */
+public class SimilarityIndex {
+
+    private static final int BLOCKS = 4;
+    private static final int BLOCK_BITS = 64 / BLOCKS;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+
+    private long[] hashes = new long[16];
+    private Photo[] photos = new Photo[16];
+    private final int[][] heads = new int[BLOCKS][1 << BLOCK_BITS]; // First photo filed under each block key
+    private int[][] next = new int[BLOCKS][16]; // Next photo filed under the same block key
+    private int size;
+
+    /**
+     * Constructs an empty index.
+     */
+    public SimilarityIndex() {
+        for (int[] head : heads) Arrays.fill(head, -1);
+    }
+
+    /**
+     * Constructs an index of the given photos. A photo that appears more than once is indexed once.
+     *
+     * @param photos the photos
+     */
+    public SimilarityIndex(Collection<Photo> photos) {
+        this();
+        Map<String, Photo> distinct = new LinkedHashMap<>();
+        for (Photo photo : photos) distinct.putIfAbsent(photo.getFilePath(), photo);
+        for (Photo photo : distinct.values()) add(photo);
+    }
+
+    /**
+     * Adds a photo to the index.
+     *
+     * @param photo the photo
+     * @return true if it was added, false if it has no perceptual hash
+     */
+    public boolean add(Photo photo) {
+        if (!photo.hasPerceptualHash()) return false;
+        if (size == hashes.length) grow();
+        int added = size++;
+        long hash = photo.getPerceptualHash();
+        hashes[added] = hash;
+        photos[added] = photo;
+        for (int b = 0; b < BLOCKS; b++) {
+            int key = block(hash, b);
+            next[b][added] = heads[b][key];
+            heads[b][key] = added;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of photos in the index.
+     *
+     * @return the photo count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the photos that look like a given photo.
+     *
+     * @param photo the photo, which must have a perceptual hash
+     * @param maxDistance the most bits a hash may differ in
+     * @return the other photos within the distance, closest first
+     */
+    public List<Photo> findSimilar(Photo photo, int maxDistance) {
+        List<Photo> similar = findSimilar(photo.getPerceptualHash(), maxDistance);
+        similar.removeIf(other -> other.getFilePath().equals(photo.getFilePath()));
+        return similar;
+    }
+
+    /**
+     * Finds the photos whose hash is close to a given hash.
+     *
+     * @param hash the perceptual hash
+     * @param maxDistance the most bits a hash may differ in
+     * @return the photos within the distance, closest first
+     */
+    public List<Photo> findSimilar(long hash, int maxDistance) {
+        List<int[]> matches = new ArrayList<>(); // Photo and distance
+        search(hash, maxDistance, (index, distance) -> matches.add(new int[] { index, distance }));
+        matches.sort(Comparator.comparingInt(match -> match[1]));
+
+        List<Photo> similar = new ArrayList<>(matches.size());
+        for (int[] match : matches) similar.add(photos[match[0]]);
+        return similar;
+    }
+
+    /**
+     * Groups photos that look alike. Two photos are in the same group if they are within the distance of each
+     * other, or both of a third photo in the group, so a burst of slowly changing shots forms one group.
+     *
+     * @param maxDistance the most bits the hashes of neighbouring photos may differ in
+     * @return the groups of two or more photos, in the order their first photo was added
+     */
+    public List<List<Photo>> findGroups(int maxDistance) {
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) parent[i] = i;
+        for (int i = 0; i < size; i++) {
+            int current = i;
+            search(hashes[i], maxDistance, (index, distance) -> union(parent, current, index));
+        }
+
+        Map<Integer, List<Photo>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            groups.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(photos[i]);
+        }
+        List<List<Photo>> result = new ArrayList<>();
+        for (List<Photo> group : groups.values()) {
+            if (group.size() > 1) result.add(group);
+        }
+        return result;
+    }
+
+    /**
+     * Receives the photos found by a search.
+     */
+    private interface Visitor {
+
+        /**
+         * Called once for each photo within the searched distance.
+         *
+         * @param index the photo's position in the index
+         * @param distance its distance to the searched hash
+         */
+        void found(int index, int distance);
+    }
+
+    /**
+     * Visits every photo within a distance of a hash. Large distances, which would look up more keys than there
+     * are photos, compare every photo instead.
+     *
+     * @param hash the hash
+     * @param maxDistance the most bits a hash may differ in
+     * @param visitor receives the photos found
+     */
+    private void search(long hash, int maxDistance, Visitor visitor) {
+        int radius = maxDistance / BLOCKS;
+        long keys = 0; // Keys looked up per block
+        long choices = 1;
+        for (int k = 0; k <= radius && k <= BLOCK_BITS; k++) {
+            keys += choices;
+            choices = choices * (BLOCK_BITS - k) / (k + 1);
+        }
+
+        if (radius >= BLOCK_BITS || keys * BLOCKS >= size) {
+            for (int i = 0; i < size; i++) {
+                int distance = PerceptualHash.distance(hash, hashes[i]);
+                if (distance <= maxDistance) visitor.found(i, distance);
+            }
+            return;
+        }
+        for (int b = 0; b < BLOCKS; b++) {
+            probe(hash, maxDistance, radius, b, block(hash, b), 0, 0, visitor);
+        }
+    }
+
+    /**
+     * Looks up a key of a block table and every key that differs from it in more of the remaining bits, up to
+     * the radius. A photo is only reported from the first block it is close enough in, so no photo is visited
+     * twice.
+     *
+     * @param hash the searched hash
+     * @param maxDistance the most bits a hash may differ in
+     * @param radius the most bits a block may differ in
+     * @param b the block
+     * @param key the key to look up
+     * @param fromBit the lowest bit that may still be flipped
+     * @param flipped the bits flipped so far
+     * @param visitor receives the photos found
+     */
+    private void probe(long hash, int maxDistance, int radius, int b, int key, int fromBit, int flipped,
+            Visitor visitor) {
+        for (int i = heads[b][key]; i >= 0; i = next[b][i]) {
+            if (foundEarlier(hash, hashes[i], b, radius)) continue;
+            int distance = PerceptualHash.distance(hash, hashes[i]);
+            if (distance <= maxDistance) visitor.found(i, distance);
+        }
+        if (flipped == radius) return;
+        for (int bit = fromBit; bit < BLOCK_BITS; bit++) {
+            probe(hash, maxDistance, radius, b, key ^ (1 << bit), bit + 1, flipped + 1, visitor);
+        }
+    }
+
+    /**
+     * Checks whether a photo was already found through an earlier block.
+     *
+     * @param hash the searched hash
+     * @param other the photo's hash
+     * @param b the block being searched
+     * @param radius the most bits a block may differ in
+     * @return true if an earlier block is within the radius
+     */
+    private static boolean foundEarlier(long hash, long other, int b, int radius) {
+        for (int earlier = 0; earlier < b; earlier++) {
+            if (Integer.bitCount(block(hash, earlier) ^ block(other, earlier)) <= radius) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns one block of a hash.
+     *
+     * @param hash the hash
+     * @param b the block, from 0 for the lowest bits
+     * @return the block's bits
+     */
+    private static int block(long hash, int b) {
+        return (int) (hash >>> (b * BLOCK_BITS)) & BLOCK_MASK;
+    }
+
+    /**
+     * Returns the representative of a photo's group, shortening the path to it on the way.
+     *
+     * @param parent the parent of each photo in the group forest
+     * @param index the photo
+     * @return the root of its group
+     */
+    private static int find(int[] parent, int index) {
+        while (parent[index] != index) {
+            parent[index] = parent[parent[index]];
+            index = parent[index];
+        }
+        return index;
+    }
+
+    /**
+     * Merges the groups of two photos.
+     *
+     * @param parent the parent of each photo in the group forest
+     * @param a a photo
+     * @param b another photo
+     */
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // The earlier photo becomes the root, so groups keep the order photos were added in
+        if (rootA < rootB) parent[rootB] = rootA;
+        else if (rootB < rootA) parent[rootA] = rootB;
+    }
+
+    /**
+     * Doubles the capacity of the photo arrays.
+     */
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        photos = Arrays.copyOf(photos, capacity);
+        for (int b = 0; b < BLOCKS; b++) next[b] = Arrays.copyOf(next[b], capacity);
+    }
+}
@@ -0,0 +1,613 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An inverted index of a user's tags: for every tag, the set of photos carrying it. The same photo IDs also order
+ * the photos by date.
+ * <p>
+ * Every file in the user's albums gets a small integer ID, and each tag name and value maps to a
+ * {@link CompressedBitmap} of the IDs of the photos tagged with it, so a search combines bitmaps instead of
+ * reading every photo's tags. Each album also has a bitmap of the photos it holds, which tells when a photo has
+ * left its last album and lets an album be dropped without loading it. Tag names and values are compared
+ * ignoring case, as {@link Tag#equals(Object)} does.
+ * </p>
+ * <p>
+ * The index is kept current by the albums and photos it is attached to as they change, and is stored in the
+ * user's manifest so a loaded user has it without reading its photos. IDs of photos that were removed are handed
+ * out again.
+ * </p>
+ * <p>
+ * The date each photo was taken is stored along with its ID. A {@link DateIndex} of all photos, and one per
+ * album, is sorted from those dates the first time a date query needs it and kept in order from then on.
+ * </p>
+ */
+public class TagIndex {
+
+    private static final int FEW_RELEASED = 64; // Released photos removed one by one rather than in one pass
+
+    private final Map<String, Integer> ids = new HashMap<>(); // ID of each file path
+    private String[] paths; // File path of each ID, or null if the ID is free
+    private Photo[] photos; // Loaded photo of each ID, or null until its album is loaded
+    private long[] times; // Date each ID was taken, in epoch milliseconds
+    private int idCount; // IDs handed out so far, including free ones
+    private final CompressedBitmap free = new CompressedBitmap();
+    private final Map<String, Map<String, CompressedBitmap>> tags = new HashMap<>(); // By tag name, then value
+    private final Map<Album, CompressedBitmap> albums = new IdentityHashMap<>();
+    private CompressedBitmap all; // Every photo in an album, or null until a search needs it
+    private DateIndex dates; // Every photo by date, or null until a date query needs it
+    private final Map<Album, DateIndex> albumDates = new IdentityHashMap<>(); // Sorted for albums queried so far
+
+    /**
+     * Constructs an empty index.
+     */
+    public TagIndex() {
+        this(new String[16], new long[16], 0);
+    }
+
+    /**
+     * Constructs an index of files with the given IDs, without any tags or albums yet.
+     *
+     * @param paths the file path of each ID, null for free IDs; may have spare room at the end
+     * @param times the date each ID was taken, as long as the paths
+     * @param idCount the number of IDs
+     */
+    TagIndex(String[] paths, long[] times, int idCount) {
+        this.paths = paths;
+        this.times = times;
+        this.photos = new Photo[paths.length];
+        this.idCount = idCount;
+        for (int id = 0; id < idCount; id++) {
+            if (paths[id] == null) free.add(id);
+            else ids.put(paths[id], id);
+        }
+    }
+
+    /**
+     * Builds the index of a user's albums, loading every album.
+     *
+     * @param albums the albums
+     * @return the index
+     */
+    static TagIndex build(List<Album> albums) {
+        TagIndex index = new TagIndex();
+        for (Album album : albums) {
+            index.addAlbum(album);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the photos carrying a tag.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap find(String name, String value) {
+        Map<String, CompressedBitmap> values = tags.get(normalize(name));
+        CompressedBitmap bitmap = values == null ? null : values.get(normalize(value));
+        return bitmap == null ? new CompressedBitmap() : bitmap.copy();
+    }
+
+    /**
+     * Returns the photos carrying a tag of the given name, whatever its value.
+     *
+     * @param name the tag name
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap findName(String name) {
+        CompressedBitmap result = new CompressedBitmap();
+        Map<String, CompressedBitmap> values = tags.get(normalize(name));
+        if (values == null) return result;
+        for (CompressedBitmap bitmap : values.values()) {
+            result = CompressedBitmap.or(result, bitmap);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the photos of an album.
+     *
+     * @param album the album
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap getAlbum(Album album) {
+        CompressedBitmap bitmap = albums.get(album);
+        return bitmap == null ? new CompressedBitmap() : bitmap.copy();
+    }
+
+    /**
+     * Returns every photo in the user's albums.
+     *
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap getAll() {
+        if (all == null) {
+            all = new CompressedBitmap();
+            for (CompressedBitmap bitmap : albums.values()) {
+                all = CompressedBitmap.or(all, bitmap);
+            }
+        }
+        return all.copy();
+    }
+
+    /**
+     * Returns the photos taken within a range of dates.
+     *
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap findDates(long from, long to) {
+        return dates().find(from, to);
+    }
+
+    /**
+     * Counts the photos taken within a range of dates, without listing them.
+     *
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the number of photos
+     */
+    public synchronized int countDates(long from, long to) {
+        return dates().count(from, to);
+    }
+
+    /**
+     * Returns the photos of an album taken within a range of dates.
+     *
+     * @param album the album
+     * @param from the earliest date, inclusive, in epoch milliseconds
+     * @param to the latest date, inclusive
+     * @return the IDs of the photos, which the caller may change
+     */
+    public synchronized CompressedBitmap findDates(Album album, long from, long to) {
+        DateIndex albumIndex = dates(album);
+        return albumIndex == null ? new CompressedBitmap() : albumIndex.find(from, to);
+    }
+
+    /**
+     * Returns the date of the earliest photo in an album.
+     *
+     * @param album the album
+     * @return the date, or null if the album is empty or not indexed
+     */
+    public synchronized Calendar getEarliest(Album album) {
+        DateIndex albumIndex = dates(album);
+        return albumIndex == null || albumIndex.isEmpty() ? null : toCalendar(albumIndex.getEarliest());
+    }
+
+    /**
+     * Returns the date of the latest photo in an album.
+     *
+     * @param album the album
+     * @return the date, or null if the album is empty or not indexed
+     */
+    public synchronized Calendar getLatest(Album album) {
+        DateIndex albumIndex = dates(album);
+        return albumIndex == null || albumIndex.isEmpty() ? null : toCalendar(albumIndex.getLatest());
+    }
+
+    /**
+     * Returns the date of the earliest photo in the user's albums.
+     *
+     * @return the date, or null if there are no photos
+     */
+    public synchronized Calendar getEarliest() {
+        return dates().isEmpty() ? null : toCalendar(dates.getEarliest());
+    }
+
+    /**
+     * Returns the date of the latest photo in the user's albums.
+     *
+     * @return the date, or null if there are no photos
+     */
+    public synchronized Calendar getLatest() {
+        return dates().isEmpty() ? null : toCalendar(dates.getLatest());
+    }
+
+    /**
+     * Returns the ID of a photo.
+     *
+     * @param photo the photo
+     * @return the ID, or -1 if the photo is in none of the user's albums
+     */
+    public synchronized int getId(Photo photo) {
+        Integer id = ids.get(photo.getFilePath());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the photos with the given IDs, loading the albums that hold photos not loaded yet.
+     *
+     * @param ids the IDs
+     * @return the photos, in ID order
+     */
+    public List<Photo> getPhotos(CompressedBitmap ids) {
+        List<Album> toLoad = new ArrayList<>();
+        synchronized (this) {
+            int[] missing = { 0 };
+            ids.forEach(id -> {
+                if (id < idCount && paths[id] != null && photos[id] == null) missing[0]++;
+            });
+            if (missing[0] > 0) {
+                for (Map.Entry<Album, CompressedBitmap> entry : albums.entrySet()) {
+                    if (!CompressedBitmap.and(entry.getValue(), ids).isEmpty()) toLoad.add(entry.getKey());
+                }
+            }
+        }
+        for (Album album : toLoad) {
+            album.getPhotos(); // Binds its photos to their IDs
+        }
+
+        List<Photo> result = new ArrayList<>();
+        synchronized (this) {
+            ids.forEach(id -> {
+                if (id < idCount && photos[id] != null) result.add(photos[id]);
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the index that later changes do not affect, for writing it out. The copy is not attached
+     * to any album or photo.
+     *
+     * @return the copy
+     */
+    synchronized TagIndex copy() {
+        TagIndex copy = new TagIndex(Arrays.copyOf(paths, idCount), Arrays.copyOf(times, idCount), idCount);
+        for (Map.Entry<String, Map<String, CompressedBitmap>> name : tags.entrySet()) {
+            for (Map.Entry<String, CompressedBitmap> value : name.getValue().entrySet()) {
+                copy.restoreTag(name.getKey(), value.getKey(), value.getValue().copy());
+            }
+        }
+        for (Map.Entry<Album, CompressedBitmap> album : albums.entrySet()) {
+            copy.albums.put(album.getKey(), album.getValue().copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the tag names in the index.
+     *
+     * @return the normalized names
+     */
+    synchronized List<String> getNames() {
+        return new ArrayList<>(tags.keySet());
+    }
+
+    /**
+     * Returns the values of a tag name and their photos.
+     *
+     * @param name the normalized tag name
+     * @return the photos by normalized value
+     */
+    synchronized Map<String, CompressedBitmap> getValues(String name) {
+        Map<String, CompressedBitmap> values = tags.get(name);
+        return values == null ? Collections.emptyMap() : values;
+    }
+
+    /**
+     * Returns the number of IDs handed out, including free ones.
+     *
+     * @return the ID count
+     */
+    synchronized int getIdCount() {
+        return idCount;
+    }
+
+    /**
+     * Returns the file path of an ID.
+     *
+     * @param id the ID
+     * @return the path, or null if the ID is free
+     */
+    synchronized String getPath(int id) {
+        return paths[id];
+    }
+
+    /**
+     * Returns the date an ID was taken.
+     *
+     * @param id the ID
+     * @return the date in epoch milliseconds; undefined if the ID is free
+     */
+    synchronized long getTime(int id) {
+        return times[id];
+    }
+
+    /**
+     * Restores the photos carrying a tag, read from a catalog file.
+     *
+     * @param name the normalized tag name
+     * @param value the normalized tag value
+     * @param bitmap the IDs of the photos
+     */
+    synchronized void restoreTag(String name, String value, CompressedBitmap bitmap) {
+        tags.computeIfAbsent(name, key -> new HashMap<>()).put(value, bitmap);
+    }
+
+    /**
+     * Restores the photos of an album, read from a catalog file.
+     *
+     * @param album the album
+     * @param bitmap the IDs of its photos
+     */
+    synchronized void restoreAlbum(Album album, CompressedBitmap bitmap) {
+        all = null;
+        albums.put(album, bitmap);
+        album.attachIndex(this);
+    }
+
+    /**
+     * Adds an album and all of its photos, loading them. The order of all photos by date is sorted again when
+     * next needed, rather than updated photo by photo.
+     *
+     * @param album the album
+     */
+    synchronized void addAlbum(Album album) {
+        dates = null;
+        albums.put(album, new CompressedBitmap());
+        album.attachIndex(this);
+        for (Photo photo : album.getPhotos()) {
+            addPhoto(album, photo);
+        }
+    }
+
+    /**
+     * Removes an album, and the photos that are in no other album.
+     *
+     * @param album the album
+     */
+    synchronized void removeAlbum(Album album) {
+        CompressedBitmap removed = albums.remove(album);
+        albumDates.remove(album);
+        album.attachIndex(null);
+        if (removed == null) return;
+        CompressedBitmap released = new CompressedBitmap();
+        removed.forEach(id -> {
+            if (!isInAnyAlbum(id)) released.add(id);
+        });
+        release(released);
+    }
+
+    /**
+     * Adds a photo to an album, and its tags to the index.
+     *
+     * @param album the album
+     * @param photo the photo
+     */
+    synchronized void addPhoto(Album album, Photo photo) {
+        String path = photo.getFilePath();
+        Integer id = ids.get(path);
+        if (id == null) {
+            id = free.isEmpty() ? idCount++ : takeFree();
+            if (id >= paths.length) {
+                paths = Arrays.copyOf(paths, Math.max(16, paths.length * 2));
+                photos = Arrays.copyOf(photos, paths.length);
+                times = Arrays.copyOf(times, paths.length);
+            }
+            paths[id] = path;
+            times[id] = photo.getDateTaken().getTimeInMillis();
+            ids.put(path, id);
+            if (dates != null) dates.add(times[id], id);
+        }
+        if (photos[id] == null) photos[id] = photo;
+        photo.attachIndex(this);
+
+        CompressedBitmap members = albums.get(album);
+        if (members != null && members.add(id)) {
+            DateIndex albumIndex = albumDates.get(album);
+            if (albumIndex != null) albumIndex.add(times[id], id);
+            if (all != null) all.add(id);
+        }
+        for (Tag tag : photo.getTags()) {
+            bitmap(tag.getName(), tag.getValue()).add(id);
+        }
+    }
+
+    /**
+     * Removes a photo from an album, and from the index if it is in no other album.
+     *
+     * @param album the album
+     * @param photo the photo
+     */
+    synchronized void removePhoto(Album album, Photo photo) {
+        Integer id = ids.get(photo.getFilePath());
+        if (id == null) return;
+        CompressedBitmap members = albums.get(album);
+        if (members != null && members.remove(id)) {
+            DateIndex albumIndex = albumDates.get(album);
+            if (albumIndex != null) albumIndex.remove(times[id], id);
+        }
+        if (isInAnyAlbum(id)) return;
+        CompressedBitmap released = new CompressedBitmap();
+        released.add(id);
+        release(released);
+    }
+
+    /**
+     * Binds a photo loaded from a catalog file to its ID, so searches can return it.
+     *
+     * @param photo the photo
+     */
+    synchronized void bind(Photo photo) {
+        Integer id = ids.get(photo.getFilePath());
+        if (id != null && photos[id] == null) photos[id] = photo;
+        photo.attachIndex(this);
+    }
+
+    /**
+     * Records that a photo was tagged.
+     *
+     * @param path the file path of the photo
+     * @param tag the tag
+     */
+    synchronized void addTag(String path, Tag tag) {
+        Integer id = ids.get(path);
+        if (id != null) bitmap(tag.getName(), tag.getValue()).add(id);
+    }
+
+    /**
+     * Records that a tag was removed from a photo.
+     *
+     * @param path the file path of the photo
+     * @param tag the tag
+     */
+    synchronized void removeTag(String path, Tag tag) {
+        Integer id = ids.get(path);
+        if (id == null) return;
+        String name = normalize(tag.getName());
+        Map<String, CompressedBitmap> values = tags.get(name);
+        if (values == null) return;
+        String value = normalize(tag.getValue());
+        CompressedBitmap bitmap = values.get(value);
+        if (bitmap == null || !bitmap.remove(id)) return;
+        if (bitmap.isEmpty()) {
+            values.remove(value);
+            if (values.isEmpty()) tags.remove(name);
+        }
+    }
+
+    /**
+     * Returns the bitmap of a tag, creating it if needed.
+     *
+     * @param name the tag name
+     * @param value the tag value
+     * @return the bitmap held by the index
+     */
+    private CompressedBitmap bitmap(String name, String value) {
+        return tags.computeIfAbsent(normalize(name), key -> new HashMap<>())
+                .computeIfAbsent(normalize(value), key -> new CompressedBitmap());
+    }
+
+    /**
+     * Returns every photo in date order, sorting it on first use.
+     *
+     * @return the date index held by this index
+     */
+    private DateIndex dates() {
+        if (dates == null) dates = sortByDate(getAll());
+        return dates;
+    }
+
+    /**
+     * Returns the photos of an album in date order, sorting them on first use.
+     *
+     * @param album the album
+     * @return the date index held by this index, or null if the album is not indexed
+     */
+    private DateIndex dates(Album album) {
+        DateIndex albumIndex = albumDates.get(album);
+        if (albumIndex == null) {
+            CompressedBitmap members = albums.get(album);
+            if (members == null) return null;
+            albumIndex = sortByDate(members);
+            albumDates.put(album, albumIndex);
+        }
+        return albumIndex;
+    }
+
+    /**
+     * Sorts photos by date.
+     *
+     * @param members the IDs of the photos
+     * @return a new date index of them
+     */
+    private DateIndex sortByDate(CompressedBitmap members) {
+        int[] memberIds = members.toArray();
+        long[] memberTimes = new long[memberIds.length];
+        for (int i = 0; i < memberIds.length; i++) memberTimes[i] = times[memberIds[i]];
+        return DateIndex.of(memberTimes, memberIds, memberIds.length);
+    }
+
+    /**
+     * Converts epoch milliseconds to a calendar in the default time zone.
+     *
+     * @param millis the time in epoch milliseconds
+     * @return the calendar
+     */
+    private static Calendar toCalendar(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    /**
+     * Checks whether any album holds a photo.
+     *
+     * @param id the photo's ID
+     * @return true if an album holds it
+     */
+    private boolean isInAnyAlbum(int id) {
+        for (CompressedBitmap members : albums.values()) {
+            if (members.contains(id)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops photos that are in no album any more and frees their IDs. Every tag is checked, since a photo's
+     * tags are not known for albums that were never loaded. A few photos are removed one by one; many are
+     * removed in one pass over each bitmap and over the date order.
+     *
+     * @param released the IDs of the photos
+     */
+    private void release(CompressedBitmap released) {
+        if (released.isEmpty()) return;
+        boolean few = released.cardinality() <= FEW_RELEASED;
+        for (Map<String, CompressedBitmap> values : tags.values()) {
+            for (Map.Entry<String, CompressedBitmap> entry : values.entrySet()) {
+                if (few) released.forEach(entry.getValue()::remove);
+                else entry.setValue(CompressedBitmap.andNot(entry.getValue(), released));
+            }
+            values.values().removeIf(CompressedBitmap::isEmpty);
+        }
+        tags.values().removeIf(Map::isEmpty);
+        if (dates != null) {
+            if (few) released.forEach(id -> dates.remove(times[id], id));
+            else dates.removeAll(released);
+        }
+        if (all != null) {
+            if (few) released.forEach(all::remove);
+            else all = CompressedBitmap.andNot(all, released);
+        }
+        released.forEach(id -> {
+            ids.remove(paths[id]);
+            paths[id] = null;
+            photos[id] = null;
+            free.add(id);
+        });
+    }
+
+    /**
+     * Takes the lowest free ID.
+     *
+     * @return the ID
+     */
+    private int takeFree() {
+        int id = free.first();
+        free.remove(id);
+        return id;
+    }
+
+    /**
+     * Normalizes a tag name or value, so that tags equal ignoring case share a bitmap.
+     *
+     * @param s the name or value
+     * @return the lower case string
+     */
+    static String normalize(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
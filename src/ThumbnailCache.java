@@ -0,0 +1,314 @@
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+
+/**
+ * An in-memory cache of photo thumbnails, shared by every view.
+ * <p>
+ * Thumbnails are decoded straight at the requested size rather than at full resolution, and kept in least
+ * recently used order until their decoded pixels exceed the budget. Entries are keyed by file path and size and
+ * remember the file's modification time and length, so a file that changes on disk is decoded again. Thumbnails
+ * missing from memory are read from a {@link ThumbnailStore} if there is one, and stored there once decoded, so
+ * each original is only decoded once across sessions. Thumbnails are accounted for by the {@link ImageMemory}
+ * governor, which may have the cache drop thumbnails for more important images; when memory is short, thumbnails
+ * are decoded smaller and not kept.
+ * </p>
+ */
+public class ThumbnailCache implements ImageMemory.Consumer {
+
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024; // Decoded pixel bytes kept by default
+    private static final ThumbnailCache shared = new ThumbnailCache(DEFAULT_BUDGET, DataManager.getThumbnailStore());
+
+    /**
+     * A cached thumbnail and the state of its file when it was decoded.
+     */
+    private static class Entry {
+        final Image image;
+        final long modified;
+        final long length;
+        final long bytes;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param image the decoded thumbnail
+         * @param modified the file's modification time
+         * @param length the file's length
+         */
+        Entry(Image image, long modified, long length) {
+            this.image = image;
+            this.modified = modified;
+            this.length = length;
+            this.bytes = pixelBytes(image);
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final ThumbnailStore store; // Thumbnails kept on disk, or null
+    private final ImageMemory memory = ImageMemory.getShared();
+    private long budget;
+    private long totalBytes;
+
+    /**
+     * Constructs a cache that only keeps thumbnails in memory.
+     *
+     * @param budget the decoded pixel bytes the cache may hold
+     */
+    public ThumbnailCache(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * Constructs a cache backed by a thumbnail store.
+     *
+     * @param budget the decoded pixel bytes the cache may hold
+     * @param store the store to read thumbnails from before decoding them, or null
+     */
+    public ThumbnailCache(long budget, ThumbnailStore store) {
+        this.budget = budget;
+        this.store = store;
+        memory.register(this);
+    }
+
+    /**
+     * Returns the cache shared by all views.
+     *
+     * @return the shared cache
+     */
+    public static ThumbnailCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Changes the budget, evicting thumbnails if the cache no longer fits.
+     *
+     * @param budget the decoded pixel bytes the cache may hold
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Returns the decoded pixel bytes currently held.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns a thumbnail of an image file that fits in the given size, reading it from the store or decoding it
+     * if it is not cached or the file has changed since.
+     *
+     * @param path the image file path
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return the thumbnail, or null if the file cannot be read
+     */
+    public Image get(String path, int width, int height) {
+        File file = new File(path);
+        long modified = file.lastModified();
+        long length = file.length();
+        String key = path + '|' + width + 'x' + height;
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified && entry.length == length) {
+                return entry.image;
+            }
+        }
+
+        // Load without holding the lock, so other thumbnails can be served meanwhile
+        long wanted = (long) width * height * 4;
+        long granted = memory.reserve(wanted, ImageMemory.Priority.VISIBLE);
+        double scale = ImageMemory.getScale(wanted, granted);
+        Image image = store == null ? null : store.load(file, modified, length, width, height);
+        if (image == null && scale < 1) {
+            // Memory is short: make do with a smaller thumbnail, and do not keep it
+            image = decode(file, (int) Math.ceil(width * scale), (int) Math.ceil(height * scale));
+            if (image == null) {
+                memory.release(granted);
+                return null;
+            }
+            return memory.track(image, granted);
+        }
+        if (image == null) {
+            image = decode(file, width, height);
+            if (image == null) {
+                memory.release(granted);
+                return null;
+            }
+            if (store != null) {
+                try {
+                    store.save(file, modified, length, width, height, image);
+                } catch (IOException e) {
+                    System.err.println("Error storing thumbnail of " + path);
+                }
+            }
+        }
+
+        Entry entry = new Entry(image, modified, length);
+        memory.allocate(entry.bytes - granted);
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                totalBytes -= old.bytes;
+                memory.release(old.bytes);
+            }
+            totalBytes += entry.bytes;
+            evict();
+        }
+        return image;
+    }
+
+    /**
+     * Makes sure the thumbnail of an image file is in the store, decoding it if needed, without keeping it in
+     * memory. Used by imports, so imported photos show at once without filling the cache with thumbnails that
+     * may never be looked at.
+     *
+     * @param path the image file path
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return false if the file cannot be decoded
+     */
+    public boolean prepare(String path, int width, int height) {
+        File file = new File(path);
+        long modified = file.lastModified();
+        long length = file.length();
+        if (store != null && store.contains(file, modified, length, width, height)) return true;
+
+        Image image = decode(file, width, height);
+        if (image == null) return false;
+        if (store != null) {
+            try {
+                store.save(file, modified, length, width, height, image);
+            } catch (IOException e) {
+                System.err.println("Error storing thumbnail of " + path);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a thumbnail only if it is held in memory and its file has not changed, without reading anything.
+     *
+     * @param path the image file path
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return the thumbnail, or null if it would have to be loaded
+     */
+    public Image getIfCached(String path, int width, int height) {
+        File file = new File(path);
+        long modified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Entry entry = entries.get(path + '|' + width + 'x' + height);
+            if (entry != null && entry.modified == modified && entry.length == length) {
+                return entry.image;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Removes every cached thumbnail.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        memory.release(totalBytes);
+        totalBytes = 0;
+    }
+
+    /**
+     * Returns a name for monitoring.
+     *
+     * @return the name
+     */
+    @Override
+    public String getName() {
+        return "thumbnails";
+    }
+
+    /**
+     * Returns the decoded pixel bytes currently held.
+     *
+     * @return the size in bytes
+     */
+    @Override
+    public long getBytes() {
+        return getTotalBytes();
+    }
+
+    /**
+     * Drops least recently used thumbnails for more important images. Cached thumbnails are the least
+     * important images there are, so they are only dropped when cached images are asked for.
+     *
+     * @param bytes the bytes wanted
+     * @param priority the most important priority that may be dropped
+     */
+    @Override
+    public synchronized void reclaim(long bytes, ImageMemory.Priority priority) {
+        if (priority != ImageMemory.Priority.CACHED) return;
+        evict(Math.max(0, totalBytes - bytes));
+    }
+
+    /**
+     * Evicts least recently used thumbnails until the rest fit the budget.
+     */
+    private void evict() {
+        evict(budget);
+    }
+
+    /**
+     * Evicts least recently used thumbnails until the rest fit the given size.
+     *
+     * @param limit the bytes that may remain
+     */
+    private void evict(long limit) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > limit && eldest.hasNext()) {
+            long bytes = eldest.next().bytes;
+            eldest.remove();
+            totalBytes -= bytes;
+            memory.release(bytes);
+        }
+    }
+
+    /**
+     * Decodes an image file scaled down to fit the given size.
+     *
+     * @param file the image file
+     * @param width the maximum width
+     * @param height the maximum height
+     * @return the image, or null if the file cannot be read or decoded
+     */
+    private static Image decode(File file, int width, int height) {
+        try (InputStream in = new FileInputStream(file)) {
+            Image image = new Image(in, width, height, true, true);
+            return image.isError() ? null : image;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the memory taken by an image's decoded pixels.
+     *
+     * @param image the image
+     * @return the size in bytes, at four bytes per pixel
+     */
+    static long pixelBytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
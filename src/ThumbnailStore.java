@@ -0,0 +1,271 @@
+package src;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+
+/**
+ * A directory of pre-scaled thumbnails that outlives the application, shared by every user.
+ * <p>
+ * Each thumbnail is stored once per source file state and size: its name is a hash of the file's absolute path,
+ * modification time, length and the thumbnail size, so the same photo in several albums or several users'
+ * libraries maps to a single entry, and a file that changes on disk simply maps to a new one. Entries are spread
+ * over subdirectories named after the first two hash digits. Each entry starts with a small header naming its
+ * source, which {@link #collect(Set)} uses to delete entries whose file changed or that no photo refers to.
+ * </p>
+ * <pre>
+ * header:  magic, version, source path, modification time, length, width, height
+ * image:   JPEG, or PNG if the thumbnail has transparent pixels
+ * </pre>
+ */
+public class ThumbnailStore {
+
+    private static final int MAGIC = 0x5054484D; // "PTHM"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".thm";
+    private static final String MARKER = "collected"; // Touched after each collection
+    private static final long TEMP_MAX_AGE_MS = 60 * 60 * 1000; // Temporary files older than this are abandoned
+
+    private final File dir;
+
+    /**
+     * Constructs a store. The directory is created when the first thumbnail is written.
+     *
+     * @param dir the directory holding the thumbnails
+     */
+    public ThumbnailStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Reads the stored thumbnail of an image file.
+     *
+     * @param source the image file
+     * @param modified the file's modification time
+     * @param length the file's length
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return the thumbnail, or null if none is stored for this state of the file
+     */
+    public Image load(File source, long modified, long length, int width, int height) {
+        String path = source.getAbsolutePath();
+        File file = getEntryFile(path, modified, length, width, height);
+        if (!file.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return null;
+            if (!path.equals(in.readUTF()) || in.readLong() != modified || in.readLong() != length
+                    || in.readInt() != width || in.readInt() != height) {
+                return null;
+            }
+            Image image = new Image(in);
+            return image.isError() ? null : image;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a thumbnail is stored for an image file, without reading it.
+     *
+     * @param source the image file
+     * @param modified the file's modification time
+     * @param length the file's length
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return true if a thumbnail is stored for this state of the file
+     */
+    public boolean contains(File source, long modified, long length, int width, int height) {
+        return getEntryFile(source.getAbsolutePath(), modified, length, width, height).isFile();
+    }
+
+    /**
+     * Stores the thumbnail of an image file, replacing any stored for the same file state and size.
+     * The entry is written to a temporary file and moved into place, so readers never see it half written.
+     *
+     * @param source the image file
+     * @param modified the file's modification time
+     * @param length the file's length
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @param image the thumbnail
+     * @throws IOException If an I/O error occurs or the thumbnail cannot be encoded
+     */
+    public void save(File source, long modified, long length, int width, int height, Image image)
+            throws IOException {
+        String path = source.getAbsolutePath();
+        File file = getEntryFile(path, modified, length, width, height);
+        file.getParentFile().mkdirs();
+
+        File temp = new File(file.getParentFile(),
+                file.getName() + "." + ProcessHandle.current().pid() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(path);
+            out.writeLong(modified);
+            out.writeLong(length);
+            out.writeInt(width);
+            out.writeInt(height);
+            encode(image, out);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns when the store was last collected.
+     *
+     * @return the time in milliseconds, or 0 if it never was
+     */
+    public long getLastCollected() {
+        return new File(dir, MARKER).lastModified();
+    }
+
+    /**
+     * Deletes every entry whose source is not among the given paths or has changed since the entry was written,
+     * along with unreadable entries and abandoned temporary files.
+     *
+     * @param paths the absolute paths of every photo that is still referred to
+     * @return the number of files deleted
+     */
+    public int collect(Set<String> paths) {
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        File[] buckets = dir.listFiles(File::isDirectory);
+        if (buckets == null) return 0;
+
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) continue;
+
+            for (File file : files) {
+                String name = file.getName();
+                boolean garbage;
+                if (name.endsWith(".tmp")) {
+                    garbage = now - file.lastModified() > TEMP_MAX_AGE_MS;
+                } else if (name.endsWith(SUFFIX)) {
+                    garbage = !isCurrent(file, paths);
+                } else {
+                    garbage = false;
+                }
+                if (garbage && file.delete()) deleted++;
+            }
+        }
+
+        try {
+            File marker = new File(dir, MARKER);
+            if (!marker.createNewFile()) marker.setLastModified(now);
+        } catch (IOException e) {
+            System.err.println("Error recording thumbnail collection");
+        }
+        return deleted;
+    }
+
+    /**
+     * Checks whether an entry's source is still referred to and unchanged.
+     *
+     * @param file the entry
+     * @param paths the absolute paths of every photo that is still referred to
+     * @return true if the entry should be kept
+     */
+    private static boolean isCurrent(File file, Set<String> paths) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return false;
+            String path = in.readUTF();
+            if (!paths.contains(path)) return false;
+            File source = new File(path);
+            return in.readLong() == source.lastModified() && in.readLong() == source.length();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the file an entry is stored in.
+     *
+     * @param path the absolute path of the image file
+     * @param modified the file's modification time
+     * @param length the file's length
+     * @param width the maximum thumbnail width
+     * @param height the maximum thumbnail height
+     * @return the entry file
+     */
+    private File getEntryFile(String path, long modified, long length, int width, int height) {
+        String key = path + '|' + modified + '|' + length + '|' + width + 'x' + height;
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(new File(dir, hex.substring(0, 2)), hex + SUFFIX);
+    }
+
+    /**
+     * Encodes a thumbnail as JPEG, or as PNG if it has transparent pixels.
+     *
+     * @param image the thumbnail
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs or the image cannot be encoded
+     */
+    private static void encode(Image image, DataOutputStream out) throws IOException {
+        PixelReader reader = image.getPixelReader();
+        if (reader == null) throw new IOException("Thumbnail pixels are not readable");
+
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        int[] pixels = new int[width * height];
+        reader.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+
+        boolean opaque = true;
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+
+        BufferedImage buffered = new BufferedImage(width, height,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        buffered.setRGB(0, 0, width, height, pixels, 0, width);
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) { // Leaves the output open
+            if (!ImageIO.write(buffered, opaque ? "jpg" : "png", stream)) {
+                throw new IOException("No image writer available");
+            }
+        }
+    }
+}
@@ -14,6 +14,8 @@ public class User implements Serializable {
     private String username;
     private List<Album> albums;
     private List<String> tagTypes;
+    private transient Journal journal; // Records changes while the user is tracked by DataManager
+    private transient TagIndex tagIndex; // Built on first use, or restored from the catalog
 
     /**
      * Constructs a new User with the specified username.
@@ -52,19 +54,36 @@ public class User implements Serializable {
      * 
      * @param album The album to add.
      */
-    public void addAlbum(Album album) {
+    public synchronized void addAlbum(Album album) {
         if (!albums.contains(album)) {
             albums.add(album);
+            if (journal != null) {
+                album.attach(journal);
+                journal.record(Mutation.addAlbum(album));
+            }
+            if (tagIndex != null) tagIndex.addAlbum(album);
         }
     }
 
+    /**
+     * Returns a copy of the user's list of albums, taken under the same lock that adding and removing albums
+     * holds, so threads other than the one editing the user can go through it.
+     * 
+     * @return The albums.
+     */
+    synchronized List<Album> copyAlbums() {
+        return new ArrayList<>(albums);
+    }
+
     /**
      * Removes the specified album from the user's list of albums.
      * 
      * @param album The album to remove.
      */
-    public void removeAlbum(Album album) {
-        albums.remove(album);
+    public synchronized void removeAlbum(Album album) {
+        if (!albums.remove(album)) return;
+        if (journal != null) journal.record(Mutation.removeAlbum(album.getName()));
+        if (tagIndex != null) tagIndex.removeAlbum(album);
     }
 
     /**
@@ -75,7 +94,7 @@ public class User implements Serializable {
     public void removeAlbum(String name) {
         Album album = getAlbumByName(name);
         if (album != null) {
-            albums.remove(album);
+            removeAlbum(album);
         }
     }
 
@@ -143,6 +162,79 @@ public class User implements Serializable {
     public void addTagType(String tagType) {
         if (!tagTypes.contains(tagType.toLowerCase())) {
             tagTypes.add(tagType.toLowerCase());
+            if (journal != null) journal.record(Mutation.addTagType(tagType.toLowerCase()));
+        }
+    }
+
+    /**
+     * Returns the journal recording changes to this user.
+     * 
+     * @return the journal, or null if changes are not recorded
+     */
+    Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Checks whether the user has changes that have not been saved yet.
+     * A user without a journal is always considered to have unsaved changes.
+     * 
+     * @return true if saving the user would write anything
+     */
+    public boolean hasUnsavedChanges() {
+        return journal == null || journal.isDirty();
+    }
+
+    /**
+     * Restores the tag types and albums of a user read from a catalog file, without recording a change.
+     * 
+     * @param tagTypes the tag types
+     * @param albums the albums
+     */
+    synchronized void restore(List<String> tagTypes, List<Album> albums) {
+        this.tagTypes = tagTypes;
+        this.albums = albums;
+        this.tagIndex = null;
+    }
+
+    /**
+     * Returns the index of this user's tags, building it on first use if it was not stored in the catalog.
+     * Building it loads every album.
+     * 
+     * @return the tag index
+     */
+    public synchronized TagIndex getTagIndex() {
+        if (tagIndex == null) tagIndex = TagIndex.build(albums);
+        return tagIndex;
+    }
+
+    /**
+     * Returns the tag index without building it.
+     * 
+     * @return the tag index, or null if it has not been built or restored
+     */
+    synchronized TagIndex peekTagIndex() {
+        return tagIndex;
+    }
+
+    /**
+     * Restores the tag index read from a catalog file. Its albums must already be attached to it.
+     * 
+     * @param tagIndex the tag index
+     */
+    synchronized void restoreTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    /**
+     * Attaches the journal that records changes to this user, its albums and their photos.
+     * 
+     * @param journal the journal to record into, or null to stop recording
+     */
+    void attachJournal(Journal journal) {
+        this.journal = journal;
+        for (Album album : albums) {
+            album.attach(journal);
         }
     }
 
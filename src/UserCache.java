@@ -0,0 +1,155 @@
+package src;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently loaded users in memory so logging back in to a recently used account does not read its
+ * files again.
+ * <p>
+ * Entries are kept in least recently used order and evicted once their estimated heap footprint exceeds the
+ * budget. Each entry remembers the modification stamp of the user's files at the time it was loaded or last
+ * saved, so a user whose files were changed behind the cache's back is read again rather than served stale.
+ * </p>
+ */
+public class UserCache {
+
+    private static final long USER_BYTES = 1024; // Estimated size of a user and its album list
+    private static final long ALBUM_BYTES = 256; // Estimated size of an album, loaded or not
+    private static final long PHOTO_BYTES = 640; // Estimated size of a photo with its calendar, without strings
+    private static final long TAG_BYTES = 48; // Estimated size of a tag reference
+
+    /**
+     * A cached user and the stamp of its files.
+     */
+    private static class Entry {
+        final User user;
+        long stamp;
+        long size;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param user the cached user
+         * @param stamp the stamp of the user's files
+         */
+        Entry(User user, long stamp) {
+            this.user = user;
+            this.stamp = stamp;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private long budget;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param budget the estimated heap size, in bytes, the cached users may take up
+     */
+    public UserCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Changes the heap budget, evicting users if the cache no longer fits.
+     *
+     * @param budget the budget in bytes
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Returns a cached user if its files have not changed since it was cached.
+     *
+     * @param username the username
+     * @param stamp the current stamp of the user's files
+     * @return the user, or null if it is not cached or its entry is out of date
+     */
+    public synchronized User get(String username, long stamp) {
+        Entry entry = entries.get(username);
+        if (entry == null) return null;
+        if (entry.stamp != stamp) {
+            entries.remove(username);
+            return null;
+        }
+        return entry.user;
+    }
+
+    /**
+     * Caches a user that was just loaded.
+     *
+     * @param user the user
+     * @param stamp the stamp of the user's files when it was read
+     */
+    public synchronized void put(User user, long stamp) {
+        entries.put(user.getUsername(), new Entry(user, stamp));
+        evict();
+    }
+
+    /**
+     * Records the new stamp of a user's files after the user was saved. Only updates the entry if it holds
+     * this very user object, since a different object with the same name no longer matches the files.
+     *
+     * @param user the saved user
+     * @param stamp the stamp of the user's files after the save
+     */
+    public synchronized void saved(User user, long stamp) {
+        Entry entry = entries.get(user.getUsername());
+        if (entry == null) return;
+        if (entry.user == user) {
+            entry.stamp = stamp;
+        } else {
+            entries.remove(user.getUsername());
+        }
+    }
+
+    /**
+     * Removes a user from the cache.
+     *
+     * @param username the username
+     */
+    public synchronized void remove(String username) {
+        entries.remove(username);
+    }
+
+    /**
+     * Evicts least recently used users until the rest fits the budget. The most recently used user is always
+     * kept. Sizes are estimated again each time, since cached users grow as their albums are opened.
+     */
+    private void evict() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            entry.size = estimateSize(entry.user);
+            total += entry.size;
+        }
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (total > budget && entries.size() > 1) {
+            total -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Estimates the heap taken up by a user. Photos of albums that have not been loaded are not counted.
+     *
+     * @param user the user
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(User user) {
+        long size = USER_BYTES;
+        for (Album album : user.getAlbums()) {
+            size += ALBUM_BYTES;
+            if (!album.isLoaded()) continue;
+            for (Photo photo : album.getPhotos()) {
+                size += PHOTO_BYTES + photo.getFilePath().length() + photo.getCaption().length()
+                        + TAG_BYTES * photo.getTags().size();
+            }
+        }
+        return size;
+    }
+}
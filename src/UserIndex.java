@@ -0,0 +1,165 @@
+package src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A small file listing a {@link UserSummary} for every stored user, so the user list can be shown without
+ * reading each user's catalog.
+ * <p>
+ * The index is only a cache: it is rewritten whenever a user is saved or removed, and a missing or unreadable
+ * index file is simply treated as empty and rebuilt by the caller.
+ * </p>
+ */
+public class UserIndex {
+
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private Map<String, UserSummary> entries; // By username, or null until the file is read
+
+    /**
+     * Constructs an index stored in the given file. The file is read on first use.
+     *
+     * @param file the index file
+     */
+    public UserIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the summary of a user.
+     *
+     * @param username the username
+     * @return the summary, or null if the user is not in the index
+     */
+    public synchronized UserSummary get(String username) {
+        return entries().get(username);
+    }
+
+    /**
+     * Returns the summaries of all indexed users, ordered by username.
+     *
+     * @return the summaries
+     */
+    public synchronized List<UserSummary> getAll() {
+        return new ArrayList<>(entries().values());
+    }
+
+    /**
+     * Adds or replaces a user's summary and writes the index.
+     *
+     * @param summary the summary to store
+     * @throws IOException If an I/O error occurs while writing the index
+     */
+    public synchronized void put(UserSummary summary) throws IOException {
+        entries().put(summary.getUsername(), summary);
+        write();
+    }
+
+    /**
+     * Removes a user from the index and writes the index.
+     *
+     * @param username the username
+     * @throws IOException If an I/O error occurs while writing the index
+     */
+    public synchronized void remove(String username) throws IOException {
+        if (entries().remove(username) != null) {
+            write();
+        }
+    }
+
+    /**
+     * Stores the given summaries, drops every user not in {@code existing}, and writes the index if anything
+     * changed.
+     *
+     * @param updated the summaries to add or replace
+     * @param existing the usernames that still exist
+     * @throws IOException If an I/O error occurs while writing the index
+     */
+    public synchronized void update(Collection<UserSummary> updated, Set<String> existing) throws IOException {
+        boolean changed = entries().keySet().retainAll(existing);
+        for (UserSummary summary : updated) {
+            entries.put(summary.getUsername(), summary);
+            changed = true;
+        }
+        if (changed) {
+            write();
+        }
+    }
+
+    /**
+     * Returns the entries, reading the index file if it has not been read yet.
+     *
+     * @return the entries by username
+     */
+    private Map<String, UserSummary> entries() {
+        if (entries == null) {
+            entries = new TreeMap<>();
+            if (file.exists()) {
+                try {
+                    read();
+                } catch (IOException e) {
+                    entries.clear(); // Rebuilt from the user files
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the index file into the entries.
+     *
+     * @throws IOException If an I/O error occurs or the file is not an index of a supported version
+     */
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("Not a supported user index: " + file.getName());
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UserSummary summary = new UserSummary(in.readUTF(), in.readLong(), in.readInt(), in.readInt(),
+                        in.readLong());
+                entries.put(summary.getUsername(), summary);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file that then replaces the index file.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void write() throws IOException {
+        File temp = new File(file.getPath() + "." + ProcessHandle.current().pid() + ".tmp"); // Per instance
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(entries.size());
+            for (UserSummary summary : entries.values()) {
+                out.writeUTF(summary.getUsername());
+                out.writeLong(summary.getFileSize());
+                out.writeInt(summary.getAlbumCount());
+                out.writeInt(summary.getPhotoCount());
+                out.writeLong(summary.getLastModified());
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
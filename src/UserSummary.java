@@ -0,0 +1,76 @@
+package src;
+
+/**
+ * A short description of a stored user, as kept in the {@link UserIndex}.
+ * Lets the user list be shown without reading any user's albums.
+ */
+public class UserSummary {
+
+    private final String username;
+    private final long fileSize;
+    private final int albumCount;
+    private final int photoCount;
+    private final long lastModified;
+
+    /**
+     * Constructs a user summary.
+     *
+     * @param username the username
+     * @param fileSize the number of bytes the user's files take on disk
+     * @param albumCount the number of albums
+     * @param photoCount the number of photos, counted once per album they are in
+     * @param lastModified the time the user's files were last written, in epoch milliseconds
+     */
+    public UserSummary(String username, long fileSize, int albumCount, int photoCount, long lastModified) {
+        this.username = username;
+        this.fileSize = fileSize;
+        this.albumCount = albumCount;
+        this.photoCount = photoCount;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the username.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the number of bytes the user's files take on disk.
+     *
+     * @return the size in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of albums.
+     *
+     * @return the album count
+     */
+    public int getAlbumCount() {
+        return albumCount;
+    }
+
+    /**
+     * Returns the number of photos, counted once per album they are in.
+     *
+     * @return the photo count
+     */
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     * Returns the time the user's files were last written.
+     *
+     * @return the time in epoch milliseconds
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
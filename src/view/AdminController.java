@@ -13,6 +13,7 @@ import java.util.List;
 
 import src.DataManager;
 import src.User;
+import src.UserSummary;
 
 /**
  * Controller class for the admin user management interface.
@@ -21,10 +22,16 @@ import src.User;
 public class AdminController {
 
     /** Table view displaying all users */
-    @FXML private TableView<User> userTableView;
+    @FXML private TableView<UserSummary> userTableView;
 
     /** Table column displaying usernames */
-    @FXML private TableColumn<User, String> usernameColumn;
+    @FXML private TableColumn<UserSummary, String> usernameColumn;
+
+    /** Table column displaying album counts */
+    @FXML private TableColumn<UserSummary, Integer> albumCountColumn;
+
+    /** Table column displaying photo counts */
+    @FXML private TableColumn<UserSummary, Integer> photoCountColumn;
 
     /** Text field to enter a new username */
     @FXML private TextField newUsernameField;
@@ -33,18 +40,20 @@ public class AdminController {
     @FXML private Label statusLabel;
 
     /** Internal list of users */
-    private List<User> users = new ArrayList<>();
+    private List<UserSummary> users = new ArrayList<>();
 
     /**
      * Initializes the admin controller.
-     * Sets up the user table, loads users from the data manager,
+     * Sets up the user table, lists users from the data manager's user index,
      * and ensures the admin user is always present.
      */
     @FXML
     public void initialize() {
         usernameColumn.setCellValueFactory(new PropertyValueFactory<>("username"));
-        users.add(new User("admin"));
-        users.addAll(0, DataManager.getAllUsers());
+        albumCountColumn.setCellValueFactory(new PropertyValueFactory<>("albumCount"));
+        photoCountColumn.setCellValueFactory(new PropertyValueFactory<>("photoCount"));
+        users.add(new UserSummary("admin", 0, 0, 0, 0));
+        users.addAll(0, DataManager.getUserSummaries());
         userTableView.getItems().setAll(users);
     }
 
@@ -71,7 +80,7 @@ public class AdminController {
 
         User newUser = new User(username);
         DataManager.saveUser(newUser);
-        users.add(newUser);
+        users.add(DataManager.getUserSummary(username));
         userTableView.getItems().setAll(users);
         newUsernameField.clear();
         showStatus("User created successfully", false);
@@ -83,7 +92,7 @@ public class AdminController {
      */
     @FXML
     private void handleDeleteUser() {
-        User selectedUser = userTableView.getSelectionModel().getSelectedItem();
+        UserSummary selectedUser = userTableView.getSelectionModel().getSelectedItem();
 
         if (selectedUser == null) {
             showStatus("Please select a user to delete", true);
@@ -1,30 +1,38 @@
 package src.view;
 
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Pos;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.TilePane;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import src.Album;
+import src.BulkImport;
 import src.DataManager;
+import src.MetadataReader;
 import src.Photo;
+import src.PerceptualHash;
+import src.PhotoMetadata;
+import src.SimilarityIndex;
 import src.Tag;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Controller class for displaying and managing a photo album view.
@@ -36,9 +44,11 @@ import java.util.Optional;
  */
 public class AlbumController {
 
+    private static final int THUMBNAIL_SIZE = 100; // Width and height of grid thumbnails
+
     @FXML private Label albumNameLabel;
-    @FXML private TilePane photoGrid;
-    @FXML private ImageView displayedImageView;
+    @FXML private PhotoGrid photoGrid;
+    @FXML private PhotoView photoView;
     @FXML private Label captionLabel;
     @FXML private Label dateLabel;
     @FXML private Label photoIndexLabel;
@@ -78,6 +88,12 @@ public class AlbumController {
         tagListView.getSelectionModel().selectedItemProperty().addListener(
             (obs, oldVal, newVal) -> noTagSelected.set(newVal == null));
         
+        // Set up photo grid; it follows changes to the photo list
+        photoGrid.setTileSize(THUMBNAIL_SIZE);
+        photoGrid.setPhotos(photos);
+        photoGrid.setOnSelect(this::selectPhoto);
+        photoView.setThumbnailSize(THUMBNAIL_SIZE);
+        
         // Initial state
         noPhotoSelected.set(true);
         noPhotos.set(true);
@@ -109,48 +125,26 @@ public class AlbumController {
     }
 
     /**
-     * Refreshes the photo grid with current photos.
+     * Shows the current list of photos in the photo grid. Changes to the list itself are followed by the grid.
      */
     private void refreshPhotoGrid() {
-        photoGrid.getChildren().clear();
-        
-        for (int i = 0; i < photos.size(); i++) {
-            Photo photo = photos.get(i);
-            
-            // Create thumbnail
-            ImageView thumbnailView = new ImageView(photo.getImage());
-            thumbnailView.setFitHeight(100);
-            thumbnailView.setFitWidth(100);
-            thumbnailView.setPreserveRatio(true);
-            
-            // Create caption label
-            Label captionLabel = new Label(photo.getCaption());
-            captionLabel.setWrapText(true);
-            captionLabel.setMaxWidth(100);
-            
-            // Create container for thumbnail and caption
-            VBox photoBox = new VBox(5);
-            photoBox.setAlignment(Pos.CENTER);
-            photoBox.getChildren().addAll(thumbnailView, captionLabel);
-            
-            // Set selection style
-            if (currentPhotoIndex == i) {
-                photoBox.setStyle("-fx-background-color: #e0e0e0; -fx-padding: 5px;");
-            } else {
-                photoBox.setStyle("-fx-padding: 5px;");
-            }
-            
-            // Add click handler
-            final int index = i;
-            photoBox.setOnMouseClicked(event -> selectPhoto(index));
-            
-            photoGrid.getChildren().add(photoBox);
-        }
+        photoGrid.setPhotos(photos);
+        photoGrid.setSelectedIndex(currentPhotoIndex);
         
         // Update photo index display
         updatePhotoIndexLabel();
     }
 
+    /**
+     * Removes a photo from the view. The selection is dropped, since the photo is gone.
+     * @param index The index of the photo
+     */
+    private void removePhotoAt(int index) {
+        photos.remove(index);
+        currentPhotoIndex = -1;
+        photoGrid.setSelectedIndex(-1);
+    }
+
     /**
      * Selects a photo by index.
      * @param index The index of the photo to select
@@ -160,8 +154,8 @@ public class AlbumController {
             currentPhotoIndex = index;
             currentPhoto = photos.get(index);
             
-            // Update display
-            displayedImageView.setImage(currentPhoto.getImage());
+            // Update display; the sharp image replaces the thumbnail once decoded
+            photoView.show(photos, index);
             captionLabel.setText(currentPhoto.getCaption());
             Calendar dateTaken = currentPhoto.getDateTaken();
             int year = dateTaken.get(Calendar.YEAR);
@@ -182,8 +176,9 @@ public class AlbumController {
             // Update properties
             noPhotoSelected.set(false);
             
-            // Refresh grid to show selection
-            refreshPhotoGrid();
+            // Move the highlight to the selected photo
+            photoGrid.setSelectedIndex(index);
+            updatePhotoIndexLabel();
         }
     }
 
@@ -203,14 +198,15 @@ public class AlbumController {
      * Clears the photo display area.
      */
     private void clearPhotoDisplay() {
+        photoGrid.setSelectedIndex(-1);
         currentPhoto = null;
         currentPhotoIndex = -1;
-        displayedImageView.setImage(null);
+        photoView.clear();
         captionLabel.setText("");
         dateLabel.setText("");
         tagStrings.clear();
         noPhotoSelected.set(true);
-        refreshPhotoGrid();
+        updatePhotoIndexLabel();
     }
 
     /**
@@ -238,8 +234,20 @@ public class AlbumController {
         File selectedFile = fileChooser.showOpenDialog(photoGrid.getScene().getWindow());
         if (selectedFile != null) {
             try {
-                // Create new photo
-                Photo newPhoto = new Photo(selectedFile.getAbsolutePath(), Calendar.getInstance());
+                // Refuse a copy of a photo already in the album
+                List<String> paths = new ArrayList<>();
+                for (Photo photo : photos) {
+                    paths.add(photo.getFilePath());
+                }
+                String copy = DataManager.getContentHashIndex().findCopy(selectedFile, paths);
+                if (copy != null) {
+                    showErrorAlert("Duplicate Photo", "This photo is already in the album as " + copy + ".");
+                    return;
+                }
+
+                // Create new photo, dated when it was taken
+                PhotoMetadata metadata = new MetadataReader().read(selectedFile);
+                Photo newPhoto = new Photo(selectedFile.getAbsolutePath(), metadata.getDateTaken());
                 
                 // Add to album
                 currentAlbum.addPhoto(newPhoto);
@@ -257,6 +265,169 @@ public class AlbumController {
         }
     }
 
+    /**
+     * Handles the action to import every photo in a folder and its subfolders.
+     * Photos are added in batches while the import runs, and a dialog shows the progress until it is done or
+     * cancelled. Photos already in the album are skipped.
+     */
+    @FXML
+    private void handleImportFolder() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder to Import");
+        File selectedDirectory = directoryChooser.showDialog(photoGrid.getScene().getWindow());
+        if (selectedDirectory == null) return;
+
+        List<String> existingPaths = new ArrayList<>();
+        for (Photo photo : currentAlbum.getPhotos()) {
+            existingPaths.add(photo.getFilePath());
+        }
+        Album album = currentAlbum;
+        BulkImport bulkImport = new BulkImport(selectedDirectory, existingPaths, THUMBNAIL_SIZE,
+                batch -> runAndWait(() -> addImportedPhotos(album, batch)));
+
+        // Progress dialog; closing it cancels the import
+        ProgressBar progressBar = new ProgressBar(ProgressBar.INDETERMINATE_PROGRESS);
+        progressBar.setPrefWidth(300);
+        Label progressLabel = new Label("Scanning " + selectedDirectory.getName() + "...");
+        VBox content = new VBox(10, progressLabel, progressBar);
+        Alert dialog = new Alert(Alert.AlertType.NONE, null, ButtonType.CANCEL);
+        dialog.setTitle("Import Folder");
+        dialog.setHeaderText("Importing photos into " + album.getName());
+        dialog.getDialogPane().setContent(content);
+        dialog.setOnHidden(event -> bulkImport.cancel());
+
+        bulkImport.setOnProgress(progress -> Platform.runLater(() -> {
+            int found = progress.getFound();
+            progressBar.setProgress(found == 0 ? ProgressBar.INDETERMINATE_PROGRESS
+                    : (double) progress.getProcessed() / found);
+            progressLabel.setText(progress.getImported() + " imported, " + progress.getDuplicates()
+                    + " already in album, " + progress.getFailed() + " unreadable, of " + found + " found");
+            if (progress.isDone()) dialog.close();
+        }));
+        dialog.show();
+        bulkImport.start();
+    }
+
+    /**
+     * Adds a batch of imported photos to an album, and to the view if it still shows that album.
+     * @param album The album being imported into
+     * @param batch The imported photos
+     */
+    private void addImportedPhotos(Album album, List<Photo> batch) {
+        List<Photo> added = album.addPhotos(batch);
+        if (album != currentAlbum || added.isEmpty()) return;
+
+        photos.addAll(added);
+        noPhotos.set(false);
+        if (currentPhotoIndex < 0) {
+            selectPhoto(0);
+        } else {
+            updatePhotoIndexLabel();
+        }
+        try {
+            DataManager.requestSave();
+        } catch (IOException e) {
+            System.err.println("Error saving imported photos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs an action on the JavaFX Application Thread and waits for it, so an import never gets ahead of the
+     * album it adds to.
+     * @param action The action to run
+     */
+    private static void runAndWait(Runnable action) {
+        FutureTask<Void> task = new FutureTask<>(action, null);
+        Platform.runLater(task);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while adding photos", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Handles the action to find photos in any of the user's albums that look like the selected photo.
+     * Photos are hashed in the background the first time, so the view stays responsive; the photos themselves
+     * are only read and updated on this thread.
+     */
+    @FXML
+    private void handleFindSimilar() {
+        if (currentPhoto == null) return;
+        Photo photo = currentPhoto;
+        List<Photo> photos = DataManager.getAllPhotos(DataManager.getCurrentUser());
+        photos.add(photo);
+        Map<File, Long> hashedFor = DataManager.listPerceptualHashFiles(photos);
+        Thread finder = new Thread(() -> {
+            Map<File, long[]> hashes = DataManager.computePerceptualHashes(hashedFor);
+            Platform.runLater(() -> {
+                DataManager.applyPerceptualHashes(photos, hashes);
+                List<Photo> similar = DataManager.findSimilarPhotos(photos, photo, PerceptualHash.DEFAULT_DISTANCE);
+                if (similar.isEmpty()) {
+                    showInfoAlert("Similar Photos", "No similar photos found.");
+                } else {
+                    showPhotoReport("Similar Photos", similar.size() + " photos look like "
+                            + photo.getFile().getName(), List.of(similar));
+                }
+            });
+        }, "similar-finder");
+        finder.setDaemon(true);
+        finder.start();
+    }
+
+    /**
+     * Handles the action to group the photos of the album that look alike, such as burst shots and re-encoded
+     * copies. Photos are hashed in the background the first time, so the view stays responsive; the photos
+     * themselves are only read and updated on this thread.
+     */
+    @FXML
+    private void handleFindNearDuplicates() {
+        List<Photo> photos = new ArrayList<>(currentAlbum.getPhotos());
+        Map<File, Long> hashedFor = DataManager.listPerceptualHashFiles(photos);
+        Thread finder = new Thread(() -> {
+            Map<File, long[]> hashes = DataManager.computePerceptualHashes(hashedFor);
+            Platform.runLater(() -> {
+                DataManager.applyPerceptualHashes(photos, hashes);
+                List<List<Photo>> groups = new SimilarityIndex(photos).findGroups(PerceptualHash.DEFAULT_DISTANCE);
+                if (groups.isEmpty()) {
+                    showInfoAlert("Near Duplicates", "No photos in this album look alike.");
+                } else {
+                    showPhotoReport("Near Duplicates", groups.size() + " sets of photos that look alike", groups);
+                }
+            });
+        }, "near-duplicate-finder");
+        finder.setDaemon(true);
+        finder.start();
+    }
+
+    /**
+     * Shows a report listing the file paths of groups of photos.
+     * @param title The dialog title
+     * @param header The summary shown above the list
+     * @param groups The groups of photos, separated by blank lines
+     */
+    private void showPhotoReport(String title, String header, List<List<Photo>> groups) {
+        StringBuilder report = new StringBuilder();
+        for (List<Photo> group : groups) {
+            for (Photo photo : group) {
+                report.append(photo.getFilePath()).append("\n");
+            }
+            report.append("\n");
+        }
+
+        TextArea text = new TextArea(report.toString());
+        text.setEditable(false);
+        text.setPrefSize(600, 300);
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle(title);
+        alert.setHeaderText(header);
+        alert.getDialogPane().setContent(text);
+        alert.showAndWait();
+    }
+
     /**
      * Handles the action to remove a photo.
      */
@@ -275,7 +446,7 @@ public class AlbumController {
             
             // Remove from album
             currentAlbum.removePhoto(currentPhoto);
-            photos.remove(currentPhoto);
+            removePhotoAt(indexToRemove);
             
             // Update UI
             noPhotos.set(photos.isEmpty());
@@ -318,8 +489,8 @@ public class AlbumController {
                 captionLabel.setText(caption);
             }
             
-            // Refresh photo grid to update captions
-            refreshPhotoGrid();
+            // Update the captions in the photo grid
+            photoGrid.refresh();
         });
     }
 
@@ -353,8 +524,9 @@ public class AlbumController {
             targetAlbum.addPhoto(currentPhoto);
             
             // Remove from current album
+            int indexToRemove = currentPhotoIndex;
             currentAlbum.removePhoto(currentPhoto);
-            photos.remove(currentPhoto);
+            removePhotoAt(indexToRemove);
             
             // Update UI
             noPhotos.set(photos.isEmpty());
@@ -363,7 +535,7 @@ public class AlbumController {
                 clearPhotoDisplay();
             } else {
                 // Select next available photo
-                int newIndex = Math.min(currentPhotoIndex, photos.size() - 1);
+                int newIndex = Math.min(indexToRemove, photos.size() - 1);
                 selectPhoto(newIndex);
             }
             
@@ -534,7 +706,7 @@ public class AlbumController {
             Stage stage = (Stage) albumNameLabel.getScene().getWindow();
             stage.setScene(scene);
             stage.show();
-            DataManager.saveCurrentUser();
+            DataManager.requestSave();
         } catch (IOException e) {
             showErrorAlert("Navigation Error", "Error returning to albums view: " + e.getMessage());
         }
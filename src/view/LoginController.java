@@ -8,7 +8,6 @@ import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 import src.DataManager;
-import src.User;
 
 import java.io.IOException;
 
@@ -25,11 +24,10 @@ public class LoginController {
     /**
      * Handles the login process when the user submits their username.
      * Validates the input and either loads the admin view or the main view based on the username.
-     * 
-     * @throws ClassNotFoundException if there is an error while loading user data.
+     * The username is checked without reading the user's data, which is then loaded once.
      */
     @FXML
-    private void handleLogin() throws ClassNotFoundException {
+    private void handleLogin() {
         // Retrieve the username entered by the user
         String username = usernameField.getText();
 
@@ -46,23 +44,23 @@ public class LoginController {
             if (username.equals("admin")) {
                 loader = new FXMLLoader(getClass().getResource("/src/view/admin.fxml"));
             } else {
-                try {
-                    // Check if the user exists in the system
-                    if (DataManager.loadUser(username) == null) {
-                        errorLabel.setText("Username does not exist.");
-                        return;
-                    }
-                } catch (ClassNotFoundException e) {
-                    // Handle error if user data cannot be loaded
-                    errorLabel.setText("Error: User data could not be loaded.");
+                // Check if the user exists in the system
+                if (!DataManager.userExists(username)) {
+                    errorLabel.setText("Username does not exist.");
+                    return;
                 }
                 // Load the main view for regular users
                 loader = new FXMLLoader(getClass().getResource("/src/view/main.fxml"));
             }
 
             // Load the user data for the current user
-            User currentUser = DataManager.loadUser(username);
-            DataManager.setCurrentUser(currentUser);
+            try {
+                DataManager.setCurrentUser(DataManager.loadUser(username));
+            } catch (ClassNotFoundException e) {
+                // Handle error if user data cannot be loaded
+                errorLabel.setText("Error: User data could not be loaded.");
+                return;
+            }
 
             // Load the appropriate view
             Parent root = loader.load();
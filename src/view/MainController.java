@@ -1,5 +1,6 @@
 package src.view;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -10,8 +11,11 @@ import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.stage.Stage;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import src.Album;
 import src.DataManager;
+import src.Photo;
 import src.User;
 
 /**
@@ -178,7 +182,7 @@ public class MainController {
                     stage.setTitle("Photo Album - " + selectedAlbum);
                     stage.show();
 
-                    DataManager.saveCurrentUser();
+                    DataManager.requestSave();
                 } catch (IOException e) {
                     showAlert("Error loading album: " + e.getMessage(), Alert.AlertType.ERROR);
                 }
@@ -186,6 +190,60 @@ public class MainController {
         }
     }
 
+    /**
+     * Reports the photos in the user's library whose files have identical content. The files are compared on a
+     * background thread, which only sees their paths, and the report is shown once it is ready.
+     */
+    @FXML
+    private void handleFindDuplicates() {
+        User user = currentUser;
+        Map<String, Photo> photos = DataManager.getPhotosByFile(user);
+        Thread finder = new Thread(() -> {
+            List<List<String>> paths = DataManager.findDuplicateFiles(photos.keySet());
+            Platform.runLater(() -> showDuplicates(user, DataManager.groupPhotos(paths, photos)));
+        }, "duplicate-finder");
+        finder.setDaemon(true);
+        finder.start();
+    }
+
+    /**
+     * Shows a report of photos with identical files, listing the albums each file is in.
+     *
+     * @param user   the user whose library was searched
+     * @param groups the groups of photos with identical files
+     */
+    private void showDuplicates(User user, List<List<Photo>> groups) {
+        if (groups.isEmpty()) {
+            showAlert("No duplicate photos found.", Alert.AlertType.INFORMATION);
+            return;
+        }
+
+        StringBuilder report = new StringBuilder();
+        for (List<Photo> group : groups) {
+            for (Photo photo : group) {
+                report.append(photo.getFilePath()).append(" (");
+                String separator = "";
+                for (Album album : user.getAlbums()) {
+                    if (album.getPhotos().contains(photo)) {
+                        report.append(separator).append(album.getName());
+                        separator = ", ";
+                    }
+                }
+                report.append(")\n");
+            }
+            report.append("\n");
+        }
+
+        TextArea text = new TextArea(report.toString());
+        text.setEditable(false);
+        text.setPrefSize(600, 300);
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Duplicate Photos");
+        alert.setHeaderText(groups.size() + " sets of identical photos");
+        alert.getDialogPane().setContent(text);
+        alert.showAndWait();
+    }
+
     /**
      * Logs the user out and returns to the login screen.
      */
@@ -201,7 +259,7 @@ public class MainController {
             stage.setTitle("Photo Album Login");
             stage.show();
 
-            DataManager.saveCurrentUser();
+            DataManager.requestSave();
             DataManager.setCurrentUser(null);
         } catch (IOException e) {
             showAlert("Error during logout: " + e.getMessage(), Alert.AlertType.ERROR);
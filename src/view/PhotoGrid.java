@@ -0,0 +1,293 @@
+package src.view;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+import src.Photo;
+
+/**
+ * A scrollable grid of photo thumbnails that only creates cells for the rows in view.
+ * <p>
+ * The grid lays photos out in rows of equally sized {@link PhotoTile} cells, as many columns as fit the width.
+ * Only the rows in the viewport, plus one row above and below, have cells; scrolling rebinds cells that leave
+ * the viewport to the photos coming into it, so the number of nodes and loaded thumbnails depends on the size of
+ * the grid rather than the number of photos. The grid follows changes to its photo list.
+ * </p>
+ * <p>
+ * Selection is owned by the view: clicks and arrow keys are reported through {@link #setOnSelect(IntConsumer)},
+ * and the view highlights the photo it selected with {@link #setSelectedIndex(int)}.
+ * </p>
+ */
+public class PhotoGrid extends Region {
+
+    private static final double GAP = 10;
+    private static final int OVERSCAN_ROWS = 1; // Rows laid out beyond each edge of the viewport
+    private static final int DEFAULT_COLUMNS = 3;
+    private static final int DEFAULT_ROWS = 3;
+
+    private final ScrollBar scrollBar = new ScrollBar();
+    private final Pane cellPane = new Pane();
+    private final Rectangle clip = new Rectangle();
+    private final List<PhotoTile> cells = new ArrayList<>();
+    private final ListChangeListener<Photo> photosListener = change -> requestLayout();
+    private List<Photo> photos = Collections.emptyList();
+    private int tileSize = 100;
+    private int selectedIndex = -1;
+    private int columns = 1;
+    private IntConsumer onSelect;
+
+    /**
+     * Constructs an empty grid.
+     */
+    public PhotoGrid() {
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.valueProperty().addListener(observable -> requestLayout());
+        cellPane.setClip(clip);
+        getChildren().addAll(cellPane, scrollBar);
+
+        setFocusTraversable(true);
+        setOnScroll(event -> scrollTo(scrollBar.getValue() - event.getDeltaY()));
+        setOnMousePressed(event -> requestFocus());
+        addEventHandler(KeyEvent.KEY_PRESSED, this::handleKey);
+    }
+
+    /**
+     * Sets the width and height of the thumbnails.
+     *
+     * @param tileSize the thumbnail size in pixels
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+        cellPane.getChildren().clear();
+        for (PhotoTile cell : cells) {
+            cell.unbind();
+        }
+        cells.clear();
+        requestLayout();
+    }
+
+    /**
+     * Sets the photos shown. If the list is observable, the grid follows its changes.
+     *
+     * @param photos the photos
+     */
+    public void setPhotos(List<Photo> photos) {
+        if (this.photos instanceof ObservableList) {
+            ((ObservableList<Photo>) this.photos).removeListener(photosListener);
+        }
+        this.photos = photos;
+        if (photos instanceof ObservableList) {
+            ((ObservableList<Photo>) photos).addListener(photosListener);
+        }
+        scrollBar.setValue(0);
+        requestLayout();
+    }
+
+    /**
+     * Sets the handler called when the user picks a photo by clicking it or with the arrow keys.
+     *
+     * @param onSelect receives the index of the photo
+     */
+    public void setOnSelect(IntConsumer onSelect) {
+        this.onSelect = onSelect;
+    }
+
+    /**
+     * Highlights a photo and scrolls it into view.
+     *
+     * @param index the index of the photo, or -1 to clear the highlight
+     */
+    public void setSelectedIndex(int index) {
+        selectedIndex = index;
+        for (PhotoTile cell : cells) {
+            cell.setSelected(cell.getPhoto() != null && cell.getIndex() == index);
+        }
+        if (index >= 0) scrollIntoView(index);
+    }
+
+    /**
+     * Shows the current captions of the photos in view.
+     */
+    public void refresh() {
+        for (PhotoTile cell : cells) {
+            cell.refreshCaption();
+        }
+    }
+
+    /**
+     * Returns the number of cells created, which only depends on the size of the grid.
+     *
+     * @return the number of cells
+     */
+    public int getCellCount() {
+        return cells.size();
+    }
+
+    /**
+     * Scrolls so the row of a photo is fully visible.
+     *
+     * @param index the index of the photo
+     */
+    private void scrollIntoView(int index) {
+        double rowHeight = PhotoTile.getCellHeight(tileSize) + GAP;
+        double top = (index / columns) * rowHeight;
+        double bottom = top + PhotoTile.getCellHeight(tileSize);
+        if (top < scrollBar.getValue()) {
+            scrollTo(top);
+        } else if (bottom > scrollBar.getValue() + getHeight()) {
+            scrollTo(bottom - getHeight());
+        }
+    }
+
+    /**
+     * Scrolls to a position, kept within the scroll range.
+     *
+     * @param value the distance from the top in pixels
+     */
+    private void scrollTo(double value) {
+        scrollBar.setValue(Math.max(0, Math.min(scrollBar.getMax(), value)));
+    }
+
+    /**
+     * Moves the selection with the arrow, page and home/end keys.
+     *
+     * @param event the key event
+     */
+    private void handleKey(KeyEvent event) {
+        if (photos.isEmpty() || onSelect == null) return;
+
+        int visibleRows = Math.max(1, (int) (getHeight() / (PhotoTile.getCellHeight(tileSize) + GAP)));
+        int index = Math.max(selectedIndex, 0);
+        switch (event.getCode()) {
+            case LEFT: index--; break;
+            case RIGHT: index++; break;
+            case UP: index -= columns; break;
+            case DOWN: index += columns; break;
+            case PAGE_UP: index -= visibleRows * columns; break;
+            case PAGE_DOWN: index += visibleRows * columns; break;
+            case HOME: index = 0; break;
+            case END: index = photos.size() - 1; break;
+            default: return;
+        }
+        event.consume();
+
+        index = Math.max(0, Math.min(photos.size() - 1, index));
+        if (index != selectedIndex) onSelect.accept(index);
+    }
+
+    /**
+     * Lays out the scroll bar and binds and positions a cell for every photo in or near the viewport.
+     */
+    @Override
+    protected void layoutChildren() {
+        double width = getWidth();
+        double height = getHeight();
+        double barWidth = scrollBar.prefWidth(-1);
+        double cellWidth = PhotoTile.getCellWidth(tileSize);
+        double cellHeight = PhotoTile.getCellHeight(tileSize);
+        double rowHeight = cellHeight + GAP;
+
+        // Size the scroll range to the rows
+        columns = Math.max(1, (int) ((width - barWidth + GAP) / (cellWidth + GAP)));
+        int rows = (photos.size() + columns - 1) / columns;
+        double contentHeight = Math.max(0, rows * rowHeight - GAP);
+        double maxScroll = Math.max(0, contentHeight - height);
+        scrollBar.setMax(maxScroll);
+        scrollBar.setVisibleAmount(contentHeight > 0 ? maxScroll * height / contentHeight : 0);
+        scrollBar.setBlockIncrement(height);
+        scrollBar.setUnitIncrement(rowHeight / 2);
+        scrollBar.setDisable(maxScroll == 0);
+        double scroll = Math.min(scrollBar.getValue(), maxScroll);
+
+        scrollBar.resizeRelocate(width - barWidth, 0, barWidth, height);
+        cellPane.resizeRelocate(0, 0, width - barWidth, height);
+        clip.setWidth(width - barWidth);
+        clip.setHeight(height);
+
+        // Range of photos that need a cell
+        int firstRow = Math.max(0, (int) (scroll / rowHeight) - OVERSCAN_ROWS);
+        int lastRow = Math.min(rows - 1, (int) ((scroll + height) / rowHeight) + OVERSCAN_ROWS);
+        int first = firstRow * columns;
+        int last = Math.min(photos.size(), (lastRow + 1) * columns); // Exclusive
+
+        // Keep cells that still show the right photo, and free the others for reuse
+        PhotoTile[] bound = new PhotoTile[Math.max(0, last - first)];
+        List<PhotoTile> free = new ArrayList<>();
+        for (PhotoTile cell : cells) {
+            int index = cell.getIndex();
+            boolean current = index >= first && index < last && cell.getPhoto() == photos.get(index);
+            if (current && bound[index - first] == null) {
+                bound[index - first] = cell;
+            } else {
+                free.add(cell);
+            }
+        }
+
+        for (int i = 0; i < bound.length; i++) {
+            int index = first + i;
+            PhotoTile cell = bound[i];
+            if (cell == null) {
+                cell = free.isEmpty() ? createCell() : free.remove(free.size() - 1);
+                cell.bind(photos.get(index), index);
+                cell.setVisible(true);
+            }
+            cell.setSelected(index == selectedIndex);
+            cell.resizeRelocate((index % columns) * (cellWidth + GAP), (index / columns) * rowHeight - scroll,
+                    cellWidth, cellHeight);
+            cell.load();
+        }
+
+        // Cells left over stay around for when the grid grows or scrolls
+        for (PhotoTile cell : free) {
+            cell.unbind();
+            cell.setVisible(false);
+        }
+    }
+
+    /**
+     * Creates a cell and adds it to the grid.
+     *
+     * @return the cell
+     */
+    private PhotoTile createCell() {
+        PhotoTile cell = new PhotoTile(tileSize);
+        cell.setOnMouseClicked(event -> {
+            if (onSelect != null && cell.getPhoto() != null) onSelect.accept(cell.getIndex());
+        });
+        cells.add(cell);
+        cellPane.getChildren().add(cell);
+        return cell;
+    }
+
+    /**
+     * Computes the preferred width, enough for three columns.
+     *
+     * @param height the height, ignored
+     * @return the preferred width
+     */
+    @Override
+    protected double computePrefWidth(double height) {
+        return DEFAULT_COLUMNS * (PhotoTile.getCellWidth(tileSize) + GAP) + scrollBar.prefWidth(-1);
+    }
+
+    /**
+     * Computes the preferred height, enough for three rows.
+     *
+     * @param width the width, ignored
+     * @return the preferred height
+     */
+    @Override
+    protected double computePrefHeight(double width) {
+        return DEFAULT_ROWS * (PhotoTile.getCellHeight(tileSize) + GAP);
+    }
+}
@@ -0,0 +1,166 @@
+package src.view;
+
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.VBox;
+import src.ImageLoader;
+import src.Photo;
+
+/**
+ * A photo grid cell showing a thumbnail and its caption.
+ * <p>
+ * Cells are recycled by {@link PhotoGrid}: as the grid scrolls, a cell that leaves the viewport is bound to
+ * another photo. The cell shows a placeholder until the thumbnail of its current photo is loaded by the
+ * {@link ImageLoader}, and a load still pending when the cell is rebound is cancelled.
+ * </p>
+ */
+public class PhotoTile extends VBox {
+
+    private static final double PADDING = 5;
+    private static final double SPACING = 5;
+    private static final double CAPTION_HEIGHT = 34; // Two lines of text
+
+    private final int size;
+    private final ImageView thumbnailView;
+    private final Label captionLabel;
+    private Photo photo; // Photo shown, or null if the cell is unused
+    private int index = -1; // Position of the photo in the grid
+    private ImageLoader.Request request; // Pending thumbnail load, or null
+    private boolean loaded;
+
+    /**
+     * Constructs an unused cell.
+     *
+     * @param size the width and height of the thumbnail
+     */
+    public PhotoTile(int size) {
+        super(SPACING);
+        this.size = size;
+
+        // Create thumbnail
+        thumbnailView = new ImageView(ImageLoader.getPlaceholder());
+        thumbnailView.setFitHeight(size);
+        thumbnailView.setFitWidth(size);
+        thumbnailView.setPreserveRatio(true);
+
+        // Create caption label; long captions are cut off so every cell has the same height
+        captionLabel = new Label();
+        captionLabel.setWrapText(true);
+        captionLabel.setMaxWidth(size);
+        captionLabel.setMinHeight(CAPTION_HEIGHT);
+        captionLabel.setMaxHeight(CAPTION_HEIGHT);
+        captionLabel.setAlignment(Pos.TOP_CENTER);
+
+        setAlignment(Pos.TOP_CENTER);
+        getChildren().addAll(thumbnailView, captionLabel);
+        setSelected(false);
+    }
+
+    /**
+     * Returns the width of a cell.
+     *
+     * @param size the width and height of the thumbnail
+     * @return the width in pixels
+     */
+    public static double getCellWidth(int size) {
+        return size + 2 * PADDING;
+    }
+
+    /**
+     * Returns the height of a cell.
+     *
+     * @param size the width and height of the thumbnail
+     * @return the height in pixels
+     */
+    public static double getCellHeight(int size) {
+        return size + SPACING + CAPTION_HEIGHT + 2 * PADDING;
+    }
+
+    /**
+     * Shows a photo in this cell. Rebinding to the photo already shown only updates the index.
+     *
+     * @param photo the photo
+     * @param index the position of the photo in the grid
+     */
+    public void bind(Photo photo, int index) {
+        this.index = index;
+        if (photo == this.photo) return;
+
+        cancel();
+        this.photo = photo;
+        loaded = false;
+        thumbnailView.setImage(ImageLoader.getPlaceholder());
+        captionLabel.setText(photo.getCaption());
+    }
+
+    /**
+     * Detaches the cell from its photo so it can be reused, cancelling its thumbnail load.
+     */
+    public void unbind() {
+        cancel();
+        photo = null;
+        index = -1;
+    }
+
+    /**
+     * Returns the photo shown by this cell.
+     *
+     * @return the photo, or null if the cell is unused
+     */
+    public Photo getPhoto() {
+        return photo;
+    }
+
+    /**
+     * Returns the position of the photo in the grid.
+     *
+     * @return the index, or -1 if the cell is unused
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Shows the photo's current caption under the thumbnail.
+     */
+    public void refreshCaption() {
+        if (photo != null) captionLabel.setText(photo.getCaption());
+    }
+
+    /**
+     * Sets whether the cell is highlighted as the selected photo.
+     *
+     * @param selected true to highlight the cell
+     */
+    public void setSelected(boolean selected) {
+        if (selected) {
+            setStyle("-fx-background-color: #e0e0e0; -fx-padding: 5px;");
+        } else {
+            setStyle("-fx-padding: 5px;");
+        }
+    }
+
+    /**
+     * Starts loading the thumbnail, unless it is loaded or loading already.
+     */
+    public void load() {
+        if (photo == null || loaded || request != null) return;
+        ImageLoader.Request pending = ImageLoader.getShared().loadThumbnail(photo, size, image -> {
+            request = null;
+            loaded = true;
+            if (image != null) thumbnailView.setImage(image);
+        });
+        if (!loaded) request = pending; // Thumbnails held in memory arrive before the call returns
+    }
+
+    /**
+     * Cancels the thumbnail load if it has not finished.
+     */
+    private void cancel() {
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+    }
+}
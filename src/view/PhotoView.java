@@ -0,0 +1,155 @@
+package src.view;
+
+import java.util.List;
+
+import javafx.animation.PauseTransition;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Window;
+import javafx.util.Duration;
+import src.ImageLoader;
+import src.ImagePrefetcher;
+import src.Photo;
+import src.ThumbnailCache;
+
+/**
+ * Shows the selected photo as large as the pane allows, decoded at the pane's size rather than at full
+ * resolution.
+ * <p>
+ * A newly selected photo first shows its grid thumbnail, if that is in memory, and is replaced by the sharp image
+ * once the {@link ImagePrefetcher} has decoded it. Decode sizes follow the pane's size in device pixels, rounded up
+ * to a step so small resizes reuse the same decode; once a resize settles, the photo is decoded again at the new
+ * size and swapped in.
+ * </p>
+ */
+public class PhotoView extends StackPane {
+
+    private static final int SIZE_STEP = 64; // Decode sizes are rounded up to a multiple of this
+    private static final Duration RESIZE_DELAY = Duration.millis(200); // Quiet time before decoding a new size
+
+    private final ImageView imageView = new ImageView();
+    private final PauseTransition resizeDelay = new PauseTransition(RESIZE_DELAY);
+    private List<Photo> photos;
+    private int index = -1;
+    private int thumbnailSize = 100;
+    private int decodedWidth; // Size the shown photo was requested at
+    private int decodedHeight;
+    private ImageLoader.Request request; // Pending load of the shown photo, or null
+
+    /**
+     * Constructs an empty view.
+     */
+    public PhotoView() {
+        imageView.setPreserveRatio(true);
+        imageView.setSmooth(true);
+        imageView.fitWidthProperty().bind(widthProperty());
+        imageView.fitHeightProperty().bind(heightProperty());
+        getChildren().add(imageView);
+        setMinSize(0, 0);
+
+        resizeDelay.setOnFinished(event -> reload());
+        widthProperty().addListener(observable -> resizeDelay.playFromStart());
+        heightProperty().addListener(observable -> resizeDelay.playFromStart());
+    }
+
+    /**
+     * Sets the size of the grid thumbnails shown while a photo is decoded.
+     *
+     * @param thumbnailSize the thumbnail size in pixels
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    /**
+     * Shows a photo of a list. Its neighbours in the list are prefetched.
+     *
+     * @param photos the photos being stepped through
+     * @param index the index of the photo to show
+     */
+    public void show(List<Photo> photos, int index) {
+        this.photos = photos;
+        this.index = index;
+
+        // Show the thumbnail until the sharp image is ready
+        Photo photo = photos.get(index);
+        imageView.setImage(ThumbnailCache.getShared().getIfCached(photo.getFilePath(), thumbnailSize, thumbnailSize));
+        load();
+    }
+
+    /**
+     * Clears the view.
+     */
+    public void clear() {
+        cancel();
+        photos = null;
+        index = -1;
+        imageView.setImage(null);
+    }
+
+    /**
+     * Decodes the shown photo again if the pane's size calls for a different decode size. The current image
+     * stays until the new one is ready.
+     */
+    private void reload() {
+        if (photos == null || index >= photos.size()) return;
+        if (getDecodeWidth() != decodedWidth || getDecodeHeight() != decodedHeight) load();
+    }
+
+    /**
+     * Requests the shown photo at the current decode size.
+     */
+    private void load() {
+        cancel();
+        decodedWidth = getDecodeWidth();
+        decodedHeight = getDecodeHeight();
+        request = ImagePrefetcher.getShared().show(photos, index, decodedWidth, decodedHeight, image -> {
+            if (image != null) imageView.setImage(image);
+        });
+    }
+
+    /**
+     * Cancels delivery of a pending load.
+     */
+    private void cancel() {
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+    }
+
+    /**
+     * Returns the width to decode at: the pane's width in device pixels, rounded up.
+     *
+     * @return the width in pixels
+     */
+    private int getDecodeWidth() {
+        Window window = getScene() == null ? null : getScene().getWindow();
+        double scale = window == null ? 1 : window.getOutputScaleX();
+        double width = getWidth() > 0 ? getWidth() : getPrefWidth();
+        return roundUp(width * scale);
+    }
+
+    /**
+     * Returns the height to decode at: the pane's height in device pixels, rounded up.
+     *
+     * @return the height in pixels
+     */
+    private int getDecodeHeight() {
+        Window window = getScene() == null ? null : getScene().getWindow();
+        double scale = window == null ? 1 : window.getOutputScaleY();
+        double height = getHeight() > 0 ? getHeight() : getPrefHeight();
+        return roundUp(height * scale);
+    }
+
+    /**
+     * Rounds a size up to the next multiple of the size step.
+     *
+     * @param size the size in pixels
+     * @return the rounded size, at least one step
+     */
+    private static int roundUp(double size) {
+        return Math.max(1, (int) Math.ceil(size / SIZE_STEP)) * SIZE_STEP;
+    }
+}
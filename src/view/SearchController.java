@@ -6,22 +6,20 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Pos;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.TilePane;
-import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import src.Album;
 import src.DataManager;
 import src.Photo;
+import src.Query;
 import src.Tag;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Optional;
@@ -31,8 +29,10 @@ import java.util.Optional;
  */
 public class SearchController {
 
-    @FXML private TilePane photoGrid;
-    @FXML private ImageView displayedImageView;
+    private static final int THUMBNAIL_SIZE = 100; // Width and height of grid thumbnails
+
+    @FXML private PhotoGrid photoGrid;
+    @FXML private PhotoView photoView;
     @FXML private Label captionLabel;
     @FXML private Label dateLabel;
     @FXML private ListView<String> tagListView;
@@ -43,6 +43,7 @@ public class SearchController {
     @FXML private TextField tag2TypeField;
     @FXML private TextField tag2ValueField;
     @FXML private ComboBox<String> tagComboBox;
+    @FXML private TextField queryField;
 
     private Photo currentPhoto;
     private int currentPhotoIndex = -1;
@@ -93,6 +94,12 @@ public class SearchController {
         tagListView.getSelectionModel().selectedItemProperty().addListener(
             (obs, oldVal, newVal) -> noTagSelected.set(newVal == null));
         
+        // Set up photo grid; it follows changes to the photo list
+        photoGrid.setTileSize(THUMBNAIL_SIZE);
+        photoGrid.setPhotos(photos);
+        photoGrid.setOnSelect(this::selectPhoto);
+        photoView.setThumbnailSize(THUMBNAIL_SIZE);
+        
         // Initial state
         noPhotoSelected.set(true);
         noPhotos.set(true);
@@ -114,44 +121,11 @@ public class SearchController {
     }
 
     /**
-     * Refreshes the photo grid with the current list of photos.
+     * Shows the current list of photos in the photo grid. Changes to the list itself are followed by the grid.
      */
     private void refreshPhotoGrid() {
-        photoGrid.getChildren().clear();
-        
-        for (int i = 0; i < photos.size(); i++) {
-            Photo photo = photos.get(i);
-            
-            // Create thumbnail
-            ImageView thumbnailView = new ImageView(photo.getImage());
-            thumbnailView.setFitHeight(100);
-            thumbnailView.setFitWidth(100);
-            thumbnailView.setPreserveRatio(true);
-            
-            // Create caption label
-            Label captionLabel = new Label(photo.getCaption());
-            captionLabel.setWrapText(true);
-            captionLabel.setMaxWidth(100);
-            
-            // Create container for thumbnail and caption
-            VBox photoBox = new VBox(5);
-            photoBox.setAlignment(Pos.CENTER);
-            photoBox.getChildren().addAll(thumbnailView, captionLabel);
-            
-            // Set selection style
-            if (currentPhotoIndex == i) {
-                photoBox.setStyle("-fx-background-color: #e0e0e0; -fx-padding: 5px;");
-            } else {
-                photoBox.setStyle("-fx-padding: 5px;");
-            }
-            
-            // Add click handler
-            final int index = i;
-            photoBox.setOnMouseClicked(event -> selectPhoto(index));
-            
-            photoGrid.getChildren().add(photoBox);
-        }
-        
+        photoGrid.setPhotos(photos);
+        photoGrid.setSelectedIndex(currentPhotoIndex);
     }
 
     /**
@@ -163,8 +137,8 @@ public class SearchController {
             currentPhotoIndex = index;
             currentPhoto = photos.get(index);
             
-            // Update display
-            displayedImageView.setImage(currentPhoto.getImage());
+            // Update display; the sharp image replaces the thumbnail once decoded
+            photoView.show(photos, index);
             captionLabel.setText(currentPhoto.getCaption());
             Calendar dateTaken = currentPhoto.getDateTaken();
             int year = dateTaken.get(Calendar.YEAR);
@@ -185,8 +159,8 @@ public class SearchController {
             // Update properties
             noPhotoSelected.set(false);
             
-            // Refresh grid to show selection
-            refreshPhotoGrid();
+            // Move the highlight to the selected photo
+            photoGrid.setSelectedIndex(index);
         }
     }
 
@@ -206,14 +180,14 @@ public class SearchController {
      * Clears the photo display area and resets the UI to its initial state.
      */
     private void clearPhotoDisplay() {
+        photoGrid.setSelectedIndex(-1);
         currentPhoto = null;
         currentPhotoIndex = -1;
-        displayedImageView.setImage(null);
+        photoView.clear();
         captionLabel.setText("");
         dateLabel.setText("");
         tagStrings.clear();
         noPhotoSelected.set(true);
-        refreshPhotoGrid();
     }
 
     /**
@@ -263,38 +237,35 @@ public class SearchController {
             return;
         }
         
-        // Filtering photos based on the search criteria
-        photos.clear();
-        tagStrings.clear();
-        for (Photo photo : loadPhotos()){
-            boolean matches = true;
-            Calendar photoDate = photo.getDateTaken();
-            if (fromDate != null && photoDate.compareTo(fromDate) < 0) {
-                matches = false;
-            }
-            if (toDate != null && photoDate.compareTo(toDate) > 0) {
-                matches = false;
-            }
-            if (!tag1Type.isEmpty() && !tag1Value.isEmpty() && tag2Type.isEmpty() && tag2Value.isEmpty()) {
-                Tag tag1 = new Tag(tag1Type, tag1Value);
-                if(!photo.getTags().contains(tag1)) matches = false;
-            } else if (tag1Type.isEmpty() && tag1Value.isEmpty() && !tag2Type.isEmpty() && !tag2Value.isEmpty()) {
-                Tag tag2 = new Tag(tag2Type, tag2Value);
-                if(!photo.getTags().contains(tag2)) matches = false;
-            } else {
-                Tag tag1 = new Tag(tag1Type, tag1Value);
-                Tag tag2 = new Tag(tag2Type, tag2Value);
-                if (tagComboBox.getSelectionModel().getSelectedItem().equals("AND")) {
-                    if (!photo.getTags().contains(tag1) || !photo.getTags().contains(tag2)) matches = false;
-                } else {
-                    if (!photo.getTags().contains(tag1) && !photo.getTags().contains(tag2)) matches = false;
-                }
-            }
-
-            if (matches) {
-                photos.add(photo);
+        // The form fields and the typed query all have to match
+        List<Query> criteria = new ArrayList<>();
+        if (!tag1Type.isEmpty() && !tag2Type.isEmpty()) {
+            Query tag1 = Query.tag(tag1Type, tag1Value);
+            Query tag2 = Query.tag(tag2Type, tag2Value);
+            criteria.add(tagComboBox.getSelectionModel().getSelectedItem().equals("AND")
+                    ? Query.and(tag1, tag2) : Query.or(tag1, tag2));
+        } else if (!tag1Type.isEmpty()) {
+            criteria.add(Query.tag(tag1Type, tag1Value));
+        } else if (!tag2Type.isEmpty()) {
+            criteria.add(Query.tag(tag2Type, tag2Value));
+        }
+        if (fromDate != null || toDate != null) {
+            criteria.add(Query.dateRange(fromDate == null ? Long.MIN_VALUE : fromDate.getTimeInMillis(),
+                    toDate == null ? Long.MAX_VALUE : toDate.getTimeInMillis()));
+        }
+        String text = queryField.getText().trim();
+        if (!text.isEmpty()) {
+            try {
+                criteria.add(Query.parse(text));
+            } catch (IllegalArgumentException e) {
+                showAlert("Invalid Query", e.getMessage());
+                return;
             }
         }
+
+        photos.clear();
+        tagStrings.clear();
+        photos.addAll(Query.and(criteria).run(DataManager.getCurrentUser()));
         refreshPhotoGrid();
     }
 
@@ -322,6 +293,7 @@ public class SearchController {
         tag1ValueField.clear();
         tag2TypeField.clear();
         tag2ValueField.clear();
+        queryField.clear();
         photos.clear();
         tagStrings.clear();
         noPhotoSelected.set(true);
@@ -366,7 +338,7 @@ public class SearchController {
             Stage stage = (Stage) photoGrid.getScene().getWindow();
             stage.setScene(scene);
             stage.show();
-            DataManager.saveCurrentUser();
+            DataManager.requestSave();
         } catch (IOException e) {
             showErrorAlert("Navigation Error", "Error returning to albums view: " + e.getMessage());
         }